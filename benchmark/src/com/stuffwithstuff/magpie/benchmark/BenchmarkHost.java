@@ -0,0 +1,77 @@
+package com.stuffwithstuff.magpie.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.stuffwithstuff.magpie.MagpieHost;
+import com.stuffwithstuff.magpie.SourceFile;
+import com.stuffwithstuff.magpie.util.FileReader;
+
+/**
+ * Loads modules from the lib directory of the Magpie repo. Benchmarks are run
+ * from the root of the repo, so paths are relative to the working directory.
+ */
+public class BenchmarkHost implements MagpieHost {
+  /**
+   * Reads one of the programs in benchmark/programs.
+   */
+  public static SourceFile loadProgram(String name) throws IOException {
+    File file = new File(PROGRAM_DIR, name + ".mag");
+    return new SourceFile(file.getPath(), FileReader.read(file.getPath()));
+  }
+  
+  /**
+   * Reads every module in the lib directory, in a stable order.
+   */
+  public static List<SourceFile> loadLibrary() throws IOException {
+    List<File> files = new ArrayList<File>();
+    findModules(new File(LIB_DIR), files);
+    Collections.sort(files);
+    
+    List<SourceFile> sources = new ArrayList<SourceFile>();
+    for (File file : files) {
+      sources.add(new SourceFile(file.getPath(),
+          FileReader.read(file.getPath())));
+    }
+    
+    return sources;
+  }
+  
+  @Override
+  public SourceFile loadModule(String name) {
+    String modulePath = name.replace('.', '/');
+    
+    File file = new File(LIB_DIR, modulePath + ".mag");
+    if (!file.exists()) file = new File(LIB_DIR, modulePath + "/_init.mag");
+    
+    try {
+      return new SourceFile(file.getPath(), FileReader.read(file.getPath()));
+    } catch (IOException ex) {
+      throw new IllegalStateException("Couldn't find module " + name, ex);
+    }
+  }
+
+  @Override
+  public void showSyntaxError(String message) {
+    throw new IllegalStateException(message);
+  }
+  
+  private static void findModules(File dir, List<File> files) {
+    File[] children = dir.listFiles();
+    if (children == null) return;
+    
+    for (File child : children) {
+      if (child.isDirectory()) {
+        findModules(child, files);
+      } else if (child.getName().endsWith(".mag")) {
+        files.add(child);
+      }
+    }
+  }
+  
+  private static final String LIB_DIR = "lib";
+  private static final String PROGRAM_DIR = "benchmark/programs";
+}
@@ -0,0 +1,31 @@
+package com.stuffwithstuff.magpie.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stuffwithstuff.magpie.interpreter.Interpreter;
+
+/**
+ * Creates a new interpreter, which loads magpie.core and the modules it
+ * imports. (magpie.syntax is loaded later, the first time code is quoted.) The
+ * first iteration in each fork is what a user sees at startup, so this is
+ * measured as single shots across several forks instead of only warmed up.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 20)
+@Fork(5)
+public class BootstrapBenchmark {
+  @Benchmark
+  public Interpreter bootstrap() {
+    return new Interpreter(new BenchmarkHost());
+  }
+}
@@ -0,0 +1,105 @@
+package com.stuffwithstuff.magpie.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.stuffwithstuff.magpie.SourceFile;
+import com.stuffwithstuff.magpie.interpreter.Callable;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Interpreter;
+import com.stuffwithstuff.magpie.interpreter.MethodGraph;
+import com.stuffwithstuff.magpie.interpreter.Multimethod;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+
+/**
+ * Selects methods from a multimethod with a varying number of methods. With
+ * "class" patterns, each method takes a different class in a chain of
+ * subclasses, so selections come from the dispatch table once they've been
+ * made. With "value" patterns, each method takes a different Int, so every
+ * selection walks the patterns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+  @Param({"4", "16", "64"})
+  public int methods;
+  
+  @Param({"class", "value"})
+  public String patterns;
+  
+  @Setup
+  public void setUp() {
+    mInterpreter = new Interpreter(new BenchmarkHost());
+    mContext = mInterpreter.getBaseModule();
+    
+    StringBuilder script = new StringBuilder();
+    for (int i = 0; i < methods; i++) {
+      if (patterns.equals("class")) {
+        script.append("defclass C").append(i);
+        if (i > 0) script.append(" is C").append(i - 1);
+        script.append("\nend\n");
+        script.append("def dispatch(is C").append(i).append(")\n    ")
+            .append(i).append("\nend\n");
+        script.append("def instance(").append(i).append(")\n    C")
+            .append(i).append(" new()\nend\n");
+      } else {
+        script.append("def dispatch(").append(i).append(")\n    ")
+            .append(i).append("\nend\n");
+      }
+    }
+    mInterpreter.interpret(new SourceFile("dispatch", script.toString()));
+    
+    mMultimethod = mInterpreter.getMultimethods().get("dispatch");
+    
+    mArgs = new Obj[methods];
+    for (int i = 0; i < methods; i++) {
+      Obj value = mInterpreter.getInt(i);
+      if (patterns.equals("class")) {
+        value = mInterpreter.getMultimethods().get("instance").invoke(
+            "instance", mContext, mInterpreter.nothing(), value);
+      }
+      mArgs[i] = value;
+    }
+    
+    mGraph = buildGraph();
+  }
+  
+  /**
+   * Sorts the methods into a new graph.
+   */
+  @Benchmark
+  public MethodGraph build() {
+    return buildGraph();
+  }
+  
+  /**
+   * Selects a method for each argument in turn.
+   */
+  @Benchmark
+  public Callable select() {
+    Obj arg = mArgs[mNext];
+    mNext = (mNext + 1) % mArgs.length;
+    
+    return mGraph.select("dispatch", mContext, mInterpreter.nothing(), arg);
+  }
+  
+  private MethodGraph buildGraph() {
+    return new MethodGraph(mContext, mMultimethod.getMethods(), null);
+  }
+  
+  private Interpreter mInterpreter;
+  private Context mContext;
+  private Multimethod mMultimethod;
+  private MethodGraph mGraph;
+  private Obj[] mArgs;
+  private int mNext = 0;
+}
@@ -0,0 +1,53 @@
+package com.stuffwithstuff.magpie.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.stuffwithstuff.magpie.SourceFile;
+import com.stuffwithstuff.magpie.parser.Lexer;
+import com.stuffwithstuff.magpie.parser.StringReader;
+import com.stuffwithstuff.magpie.parser.TokenType;
+
+/**
+ * Tokenizes the whole standard library, repeated to make a large source.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LexerBenchmark {
+  @Param({"1", "16"})
+  public int copies;
+  
+  @Setup
+  public void setUp() throws IOException {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < copies; i++) {
+      for (SourceFile source : BenchmarkHost.loadLibrary()) {
+        builder.append(source.getSource()).append("\n");
+      }
+    }
+    
+    mSource = builder.toString();
+  }
+  
+  @Benchmark
+  public int lex() {
+    Lexer lexer = new Lexer(new StringReader("library", mSource));
+    
+    int tokens = 0;
+    while (lexer.readToken().getType() != TokenType.EOF) tokens++;
+    
+    return tokens;
+  }
+  
+  private String mSource;
+}
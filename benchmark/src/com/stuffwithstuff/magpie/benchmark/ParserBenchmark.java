@@ -0,0 +1,44 @@
+package com.stuffwithstuff.magpie.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.stuffwithstuff.magpie.SourceFile;
+import com.stuffwithstuff.magpie.parser.MagpieParser;
+import com.stuffwithstuff.magpie.parser.StringReader;
+
+/**
+ * Parses every module in the standard library.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParserBenchmark {
+  @Setup
+  public void setUp() throws IOException {
+    mSources = BenchmarkHost.loadLibrary();
+  }
+  
+  @Benchmark
+  public int parseModule() {
+    int expressions = 0;
+    for (SourceFile source : mSources) {
+      MagpieParser parser = new MagpieParser(
+          new StringReader(source.getPath(), source.getSource()));
+      expressions += parser.parseModule().size();
+    }
+    
+    return expressions;
+  }
+  
+  private List<SourceFile> mSources;
+}
@@ -0,0 +1,64 @@
+package com.stuffwithstuff.magpie.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.stuffwithstuff.magpie.Magpie;
+import com.stuffwithstuff.magpie.Method;
+import com.stuffwithstuff.magpie.SourceFile;
+import com.stuffwithstuff.magpie.interpreter.ExecutionMode;
+
+/**
+ * Runs one of the programs in benchmark/programs, in each execution mode.
+ * Every run gets a fresh interpreter, since running a script defines methods
+ * that can't be defined again. Creating it isn't measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProgramBenchmark {
+  @Param({"fib", "primes", "PriorityQueue"})
+  public String program;
+  
+  @Param({"EVALUATE", "COMPILE", "VM", "JIT"})
+  public String mode;
+  
+  @Setup(Level.Trial)
+  public void load() throws IOException {
+    mSource = BenchmarkHost.loadProgram(program);
+  }
+  
+  @Setup(Level.Invocation)
+  public void createInterpreter() {
+    mMagpie = new Magpie(new BenchmarkHost(), ExecutionMode.valueOf(mode));
+    
+    // Throw away the output.
+    mMagpie.defineMethod("printString(s is String)",
+        "Discards the given string.", new Method() {
+      public Object call(Object left, Object right) {
+        return null;
+      }
+    });
+  }
+  
+  @Benchmark
+  public void run() throws InterruptedException {
+    String result = mMagpie.run(mSource);
+    if (result != null) throw new IllegalStateException(result);
+    
+    mMagpie.awaitRoutines();
+  }
+  
+  private SourceFile mSource;
+  private Magpie mMagpie;
+}
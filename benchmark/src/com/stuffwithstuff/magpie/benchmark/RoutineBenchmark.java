@@ -0,0 +1,61 @@
+package com.stuffwithstuff.magpie.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.stuffwithstuff.magpie.Magpie;
+import com.stuffwithstuff.magpie.Method;
+import com.stuffwithstuff.magpie.SourceFile;
+
+/**
+ * Runs benchmark/programs/routines.mag, which blocks thousands of routines at
+ * once, with each kind of Scheduler. Pass "-prof gc" to JMH to also see how
+ * much each one allocates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RoutineBenchmark {
+  @Param({"thread", "pool", "virtual"})
+  public String scheduler;
+  
+  @Setup(Level.Trial)
+  public void load() throws IOException {
+    mSource = BenchmarkHost.loadProgram("routines");
+  }
+  
+  @Setup(Level.Invocation)
+  public void createInterpreter() {
+    mMagpie = new Magpie(new BenchmarkHost());
+    mMagpie.setScheduler(scheduler);
+    
+    // Throw away the output.
+    mMagpie.defineMethod("printString(s is String)",
+        "Discards the given string.", new Method() {
+      public Object call(Object left, Object right) {
+        return null;
+      }
+    });
+  }
+  
+  @Benchmark
+  public void run() throws InterruptedException {
+    String result = mMagpie.run(mSource);
+    if (result != null) throw new IllegalStateException(result);
+    
+    mMagpie.awaitRoutines();
+  }
+  
+  private SourceFile mSource;
+  private Magpie mMagpie;
+}
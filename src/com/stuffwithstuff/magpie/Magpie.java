@@ -1,9 +1,14 @@
 package com.stuffwithstuff.magpie;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
 import com.stuffwithstuff.magpie.interpreter.Callable;
 import com.stuffwithstuff.magpie.interpreter.ErrorException;
+import com.stuffwithstuff.magpie.interpreter.ExecutionMode;
 import com.stuffwithstuff.magpie.interpreter.Interpreter;
+import com.stuffwithstuff.magpie.interpreter.Scheduler;
 import com.stuffwithstuff.magpie.interpreter.Scope;
 import com.stuffwithstuff.magpie.intrinsic.IntrinsicCallable;
 import com.stuffwithstuff.magpie.intrinsic.IntrinsicLoader;
@@ -13,7 +18,11 @@ import com.stuffwithstuff.magpie.util.Pair;
 
 public class Magpie {
   public Magpie(MagpieHost host) {
-    mInterpreter = new Interpreter(host);
+    this(host, ExecutionMode.EVALUATE);
+  }
+  
+  public Magpie(MagpieHost host, ExecutionMode mode) {
+    mInterpreter = new Interpreter(host, mode);
   }
   
   public String run(SourceFile source) {
@@ -26,6 +35,30 @@ public class Magpie {
     }
   }
   
+  /**
+   * Sets how routines started by run() are scheduled: "thread", "pool" or
+   * "virtual". See {@link Scheduler}.
+   */
+  public void setScheduler(String kind) {
+    mInterpreter.setScheduler(Scheduler.create(kind));
+  }
+  
+  /**
+   * Waits until every routine started by the script has finished.
+   *
+   * @return A message for each error thrown by a routine that was never
+   *         joined.
+   */
+  public List<String> awaitRoutines() throws InterruptedException {
+    List<String> messages = new ArrayList<String>();
+    for (ErrorException ex : mInterpreter.getScheduler().awaitRoutines()) {
+      messages.add(String.format("Uncaught %s in routine: %s",
+          ex.getError().getClassObj().getName(), ex.getError().getValue()));
+    }
+
+    return messages;
+  }
+  
   public Repl createRepl() {
     return new Repl(mInterpreter);
   }
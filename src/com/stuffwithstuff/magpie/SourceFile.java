@@ -1,19 +1,89 @@
 package com.stuffwithstuff.magpie;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import com.stuffwithstuff.magpie.parser.ByteBufferReader;
+import com.stuffwithstuff.magpie.parser.StringReader;
+
+/**
+ * A named piece of Magpie source code: either a string, or a file that has
+ * been memory-mapped. A mapped file is decoded a chunk at a time as it's
+ * lexed, so its text is never copied onto the heap as a whole.
+ */
 public class SourceFile {
+  /**
+   * Memory-maps the UTF-8 file at the given path.
+   */
+  public static SourceFile map(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Source file " + path + " is too large.");
+      }
+      
+      // The mapping stays valid after the file is closed.
+      return new SourceFile(path, null,
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      file.close();
+    }
+  }
+  
   public SourceFile(String path, String source) {
-    mPath = path;
-    mSource = source;
+    this(path, source, null);
   }
   
   public String getPath() { return mPath; }
-  public String getSource() { return mSource; }
+  
+  /**
+   * Gets the text of the source. For a mapped file, this decodes the whole
+   * file, so prefer {@link #open} to parse it.
+   */
+  public String getSource() {
+    if (mSource != null) return mSource;
+    
+    return Charset.forName("UTF-8").decode(mBytes.duplicate()).toString();
+  }
+  
+  /**
+   * Gets the contents of a mapped file.
+   *
+   * @return A new view of the mapped bytes, or null if the source is a string.
+   */
+  public ByteBuffer getBytes() {
+    if (mBytes == null) return null;
+    
+    return mBytes.duplicate();
+  }
+  
+  /**
+   * Creates a new reader positioned at the beginning of the source.
+   */
+  public SourceReader open() {
+    if (mSource != null) return new StringReader(mPath, mSource);
+    
+    return new ByteBufferReader(mPath, mBytes.duplicate());
+  }
   
   @Override
   public String toString() {
     return mPath;
   }
   
+  private SourceFile(String path, String source, ByteBuffer bytes) {
+    mPath = path;
+    mSource = source;
+    mBytes = bytes;
+  }
+  
   private final String mPath;
+  
+  // Exactly one of these is non-null.
   private final String mSource;
+  private final ByteBuffer mBytes;
 }
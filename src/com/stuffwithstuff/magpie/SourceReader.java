@@ -7,6 +7,16 @@ package com.stuffwithstuff.magpie;
 public interface SourceReader {
   String getDescription();
   
-  char current();
-  void advance();
+  /**
+   * Copies the next characters into the buffer, like Reader.read(). A reader
+   * may return fewer than were asked for, such as the rest of the current line
+   * in the REPL, but only returns zero if length is zero.
+   * 
+   * @param   buffer  Where to copy the characters.
+   * @param   offset  The index in buffer to copy the first character to.
+   * @param   length  The most characters to copy.
+   * @return          The number of characters copied, or -1 at the end of the
+   *                  source.
+   */
+  int read(char[] buffer, int offset, int length);
 }
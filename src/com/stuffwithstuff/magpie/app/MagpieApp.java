@@ -1,11 +1,17 @@
 package com.stuffwithstuff.magpie.app;
 
+import java.io.File;
 import java.io.IOException;
 
 import com.stuffwithstuff.magpie.Magpie;
 import com.stuffwithstuff.magpie.Method;
 import com.stuffwithstuff.magpie.SourceFile;
+import com.stuffwithstuff.magpie.interpreter.AstCache;
+import com.stuffwithstuff.magpie.interpreter.ExecutionMode;
 import com.stuffwithstuff.magpie.interpreter.Profiler;
+import com.stuffwithstuff.magpie.interpreter.Sampler;
+import com.stuffwithstuff.magpie.interpreter.StartupTrace;
+import com.stuffwithstuff.magpie.interpreter.jit.JitCompiler;
 
 public class MagpieApp {
 
@@ -17,9 +23,38 @@ public class MagpieApp {
     
     // Process the arguments.
     boolean niceRepl = true;
+    ExecutionMode mode = ExecutionMode.EVALUATE;
+    String scheduler = "thread";
     for (int i = 0; i < args.length; i++) {
       if (args[i].equals("-p")) {
         Profiler.setEnabled(true);
+      } else if (args[i].startsWith("--flame=")) {
+        Profiler.setCollapsedStackFile(args[i].substring("--flame=".length()));
+      } else if (args[i].equals("--sample")) {
+        Sampler.start(DEFAULT_SAMPLE_RATE);
+      } else if (args[i].startsWith("--sample=")) {
+        Sampler.start(Integer.parseInt(
+            args[i].substring("--sample=".length())));
+      } else if (args[i].equals("--cache")) {
+        AstCache.setDirectory(new File(System.getProperty("user.home"),
+            DEFAULT_CACHE_DIR).getPath());
+      } else if (args[i].startsWith("--cache=")) {
+        AstCache.setDirectory(args[i].substring("--cache=".length()));
+      } else if (args[i].equals("--trace-startup")) {
+        StartupTrace.setEnabled(true);
+      } else if (args[i].equals("--compile")) {
+        mode = ExecutionMode.COMPILE;
+      } else if (args[i].equals("--vm")) {
+        mode = ExecutionMode.VM;
+      } else if (args[i].equals("--jit")) {
+        mode = ExecutionMode.JIT;
+      } else if (args[i].equals("--jit-debug")) {
+        mode = ExecutionMode.JIT;
+        JitCompiler.setDebug(true);
+      } else if (args[i].equals("--pool")) {
+        scheduler = "pool";
+      } else if (args[i].equals("--virtual")) {
+        scheduler = "virtual";
       } else if (args[i].equals("--dumbrepl")) {
         niceRepl = false;
       } else {
@@ -37,15 +72,28 @@ public class MagpieApp {
       ConsoleRepl repl = niceRepl ? new ColorRepl() : new ConsoleRepl();
       repl.run();
     } else {
-      runScript(path);
+      runScript(path, mode, scheduler);
     }
 
+    StartupTrace.display();
     Profiler.display();
+    Sampler.display();
   }
   
   public static void execute(String path) throws IOException {
-    String script = MagpieAppHost.readFile(path);
-    Magpie magpie = new Magpie(new MagpieAppHost());
+    execute(path, ExecutionMode.EVALUATE);
+  }
+  
+  public static void execute(String path, ExecutionMode mode)
+      throws IOException {
+    execute(path, mode, "thread");
+  }
+  
+  public static void execute(String path, ExecutionMode mode,
+      String scheduler) throws IOException {
+    SourceFile source = MagpieAppHost.loadFile(path);
+    Magpie magpie = new Magpie(new MagpieAppHost(), mode);
+    magpie.setScheduler(scheduler);
     
     magpie.defineMethod("printString(s is String)",
         "Prints the given string to stdout.", new Method() {
@@ -55,19 +103,39 @@ public class MagpieApp {
       }
     });
     
-    String result = magpie.run(new SourceFile(path, script));
+    String result = magpie.run(source);
     if (result != null) {
       System.out.println(result);
     }
+    
+    // Routines on a pool or virtual threads don't keep the VM running.
+    try {
+      for (String error : magpie.awaitRoutines()) {
+        System.out.println(error);
+      }
+    } catch (InterruptedException e) {
+      // Just exit.
+    }
   }
   
-  private static void runScript(String path) {
+  private static void runScript(String path, ExecutionMode mode,
+      String scheduler) {
     try {
-      execute(path);
+      execute(path, mode, scheduler);
     } catch (QuitException e) {
       // Do nothing.
     } catch (IOException ex) {
       System.out.println("Could not load " + path);
     }
   }
+  
+  /**
+   * How many times per second "--sample" looks at what's running.
+   */
+  private static final int DEFAULT_SAMPLE_RATE = 1000;
+  
+  /**
+   * Where "--cache" keeps parsed modules, relative to the user's home.
+   */
+  private static final String DEFAULT_CACHE_DIR = ".magpie/cache";
 }
@@ -6,7 +6,6 @@ import java.net.URL;
 
 import com.stuffwithstuff.magpie.MagpieHost;
 import com.stuffwithstuff.magpie.SourceFile;
-import com.stuffwithstuff.magpie.util.FileReader;
 
 public class MagpieAppHost implements MagpieHost {
   @Override
@@ -17,26 +16,26 @@ public class MagpieAppHost implements MagpieHost {
       // $CWD/foo/bar.mag
       File file = new File(modulePath + ".mag");
       if (file.exists()) {
-        return new SourceFile(file.getPath(), readFile(file.getPath()));
+        return SourceFile.map(file.getPath());
       }
       
       // $CWD/foo/bar/_init.mag
       file = new File(modulePath + "/_init.mag");
       if (file.exists()) {
-        return new SourceFile(file.getPath(), readFile(file.getPath()));
+        return SourceFile.map(file.getPath());
       }
       
       // $APPDIR/lib/foo/bar.mag
       File appDir = new File(getAppDirectory(), "lib");
       file = new File(appDir, modulePath + ".mag");
       if (file.exists()) {
-        return new SourceFile(file.getPath(), readFile(file.getPath()));
+        return SourceFile.map(file.getPath());
       }
       
       // $APPDIR/lib/foo/bar/_init.mag
       file = new File(appDir, modulePath + "/_init.mag");
       if (file.exists()) {
-        return new SourceFile(file.getPath(), readFile(file.getPath()));
+        return SourceFile.map(file.getPath());
       }
 
       throw new IOException("Couldn't find module " + name);
@@ -58,13 +57,13 @@ public class MagpieAppHost implements MagpieHost {
     return new File(location.getFile()).getParentFile();
   }
 
-  public static String readFile(String path) throws IOException {
+  public static SourceFile loadFile(String path) throws IOException {
     // If we're given a directory, look for _init.mag in it.
     File filePath = new File(path);
     if (filePath.isDirectory()) {
       path = new File(filePath, "_init.mag").getPath();
     }
     
-    return FileReader.read(path);
+    return SourceFile.map(path);
   }
 }
\ No newline at end of file
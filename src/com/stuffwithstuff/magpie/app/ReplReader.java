@@ -24,21 +24,16 @@ public class ReplReader implements SourceReader {
   }
 
   @Override
-  public char current() {
+  public int read(char[] buffer, int offset, int length) {
+    // Only prompt for another line once the lexer needs it.
     while (mPosition >= mLine.length()) {
       readLine();
     }
-
-    return mLine.charAt(mPosition);
-  }
-  
-  @Override
-  public void advance() {
-    if (mPosition < mLine.length()) {
-      mPosition++;
-    } else {
-      readLine();
-    }
+    
+    int count = Math.min(length, mLine.length() - mPosition);
+    mLine.getChars(mPosition, mPosition + count, buffer, offset);
+    mPosition += count;
+    return count;
   }
 
   protected void showPrompt(String prompt) {
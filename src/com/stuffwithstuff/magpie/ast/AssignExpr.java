@@ -12,6 +12,25 @@ public class AssignExpr extends Expr {
   
   public String getName() { return mName; }
   public Expr getValue() { return mValue; }
+
+  // The local variable being assigned, as found by the Resolver. See
+  // NameExpr.getDepth().
+  public int getDepth() { return mDepth; }
+  public int getSlot() { return mSlot; }
+  public int getVmSlot() { return mVmSlot; }
+  public int getRegister() { return mRegister; }
+  public boolean isResolved() { return mDepth != -1; }
+  
+  public void resolve(int depth, int slot) {
+    resolve(depth, slot, slot, -1);
+  }
+  
+  public void resolve(int depth, int slot, int vmSlot, int register) {
+    mDepth = depth;
+    mSlot = slot;
+    mVmSlot = vmSlot;
+    mRegister = register;
+  }
   
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
@@ -26,4 +45,8 @@ public class AssignExpr extends Expr {
 
   private final String mName;
   private final Expr mValue;
+  private int mDepth = -1;
+  private int mSlot = -1;
+  private int mVmSlot = -1;
+  private int mRegister = -1;
 }
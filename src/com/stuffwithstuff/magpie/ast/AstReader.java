@@ -0,0 +1,304 @@
+package com.stuffwithstuff.magpie.ast;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.stuffwithstuff.magpie.ast.pattern.MatchCase;
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.parser.Position;
+import com.stuffwithstuff.magpie.util.Pair;
+
+/**
+ * Recreates the expressions that AstWriter serialized. Maps are read back in
+ * the order they were written, which is the order the parser's maps iterated
+ * in.
+ */
+public class AstReader {
+  /**
+   * Reads the top-level expressions of a module.
+   *
+   * @throws IllegalArgumentException if the data is malformed.
+   */
+  public static List<Expr> read(byte[] data) {
+    AstReader reader = new AstReader(data);
+    List<Expr> exprs = reader.readExprs();
+
+    if (reader.mPosition != data.length) {
+      throw new IllegalArgumentException("Unexpected data after module.");
+    }
+
+    return exprs;
+  }
+
+  private AstReader(byte[] data) {
+    mData = data;
+  }
+
+  private Expr readExpr() {
+    int tag = readByte();
+    switch (tag) {
+    case AstWriter.NULL:
+      return null;
+
+    case AstWriter.ARRAY:
+      return new ArrayExpr(readPosition(), readExprs());
+
+    case AstWriter.ASSIGN: {
+      Position position = readPosition();
+      String name = readString();
+      return new AssignExpr(position, name, readExpr());
+    }
+
+    case AstWriter.BOOL:
+      return new BoolExpr(readPosition(), readBoolean());
+
+    case AstWriter.BREAK:
+      return new BreakExpr(readPosition());
+
+    case AstWriter.CALL: {
+      Position position = readPosition();
+      String name = readString();
+      return new CallExpr(position, name, readExpr());
+    }
+
+    case AstWriter.CLASS: {
+      Position position = readPosition();
+      String doc = readString();
+      String name = readString();
+
+      int numParents = readInt();
+      List<String> parents = new ArrayList<String>(numParents);
+      for (int i = 0; i < numParents; i++) {
+        parents.add(readString());
+      }
+
+      int numFields = readInt();
+      Map<String, Field> fields = new LinkedHashMap<String, Field>();
+      for (int i = 0; i < numFields; i++) {
+        String fieldName = readString();
+        boolean isMutable = readBoolean();
+        Expr initializer = readExpr();
+        fields.put(fieldName, new Field(isMutable, initializer, readPattern()));
+      }
+
+      return new ClassExpr(position, doc, name, parents, fields);
+    }
+
+    case AstWriter.FN: {
+      Position position = readPosition();
+      String doc = readString();
+      Pattern pattern = readPattern();
+      return new FnExpr(position, doc, pattern, readExpr());
+    }
+
+    case AstWriter.IMPORT: {
+      Position position = readPosition();
+      String scheme = readString();
+      String module = readString();
+      String prefix = readString();
+      boolean isOnly = readBoolean();
+
+      int numDeclarations = readInt();
+      List<ImportDeclaration> declarations =
+          new ArrayList<ImportDeclaration>(numDeclarations);
+      for (int i = 0; i < numDeclarations; i++) {
+        boolean isExported = readBoolean();
+        String name = readString();
+        declarations.add(new ImportDeclaration(isExported, name,
+            readString()));
+      }
+
+      return new ImportExpr(position, scheme, module, prefix, isOnly,
+          declarations);
+    }
+
+    case AstWriter.INT:
+      return new IntExpr(readPosition(), readInt());
+
+    case AstWriter.LOOP:
+      return new LoopExpr(readPosition(), readExpr());
+
+    case AstWriter.MATCH: {
+      Position position = readPosition();
+      Expr value = readExpr();
+      return new MatchExpr(position, value, readCases());
+    }
+
+    case AstWriter.METHOD: {
+      Position position = readPosition();
+      String doc = readString();
+      String name = readString();
+      Pattern pattern = readPattern();
+      return new MethodExpr(position, doc, name, pattern, readExpr());
+    }
+
+    case AstWriter.NAME:
+      return new NameExpr(readPosition(), readString());
+
+    case AstWriter.NOTHING:
+      return new NothingExpr(readPosition());
+
+    case AstWriter.QUOTE:
+      return new QuoteExpr(readPosition(), readExpr());
+
+    case AstWriter.RECORD: {
+      Position position = readPosition();
+      int numFields = readInt();
+      List<Pair<String, Expr>> fields =
+          new ArrayList<Pair<String, Expr>>(numFields);
+      for (int i = 0; i < numFields; i++) {
+        String name = readString();
+        fields.add(new Pair<String, Expr>(name, readExpr()));
+      }
+
+      return new RecordExpr(position, fields);
+    }
+
+    case AstWriter.RETURN:
+      return new ReturnExpr(readPosition(), readExpr());
+
+    case AstWriter.SCOPE: {
+      Expr body = readExpr();
+      return new ScopeExpr(body, readCases());
+    }
+
+    case AstWriter.SEQUENCE:
+      return new SequenceExpr(readExprs());
+
+    case AstWriter.STRING:
+      return new StringExpr(readPosition(), readString());
+
+    case AstWriter.THROW:
+      return new ThrowExpr(readPosition(), readExpr());
+
+    case AstWriter.UNQUOTE:
+      return new UnquoteExpr(readPosition(), readExpr());
+
+    case AstWriter.VAR: {
+      Position position = readPosition();
+      boolean isMutable = readBoolean();
+      Pattern pattern = readPattern();
+      return new VarExpr(position, isMutable, pattern, readExpr());
+    }
+
+    default:
+      throw new IllegalArgumentException("Unknown expression tag " + tag + ".");
+    }
+  }
+
+  private List<Expr> readExprs() {
+    int count = readInt();
+    List<Expr> exprs = new ArrayList<Expr>(count);
+    for (int i = 0; i < count; i++) {
+      exprs.add(readExpr());
+    }
+
+    return exprs;
+  }
+
+  private Pattern readPattern() {
+    int tag = readByte();
+    switch (tag) {
+    case AstWriter.NULL:
+      return null;
+
+    case AstWriter.RECORD_PATTERN: {
+      int numFields = readInt();
+      Map<String, Pattern> fields = new LinkedHashMap<String, Pattern>();
+      for (int i = 0; i < numFields; i++) {
+        String name = readString();
+        fields.put(name, readPattern());
+      }
+
+      return Pattern.record(fields);
+    }
+
+    case AstWriter.TYPE_PATTERN:
+      return Pattern.type(readExpr());
+
+    case AstWriter.VALUE_PATTERN:
+      return Pattern.value(readExpr());
+
+    case AstWriter.VARIABLE_PATTERN: {
+      String name = readString();
+      return Pattern.variable(name, readPattern());
+    }
+
+    case AstWriter.WILDCARD_PATTERN:
+      return Pattern.wildcard();
+
+    default:
+      throw new IllegalArgumentException("Unknown pattern tag " + tag + ".");
+    }
+  }
+
+  private List<MatchCase> readCases() {
+    int count = readInt();
+    List<MatchCase> cases = new ArrayList<MatchCase>(count);
+    for (int i = 0; i < count; i++) {
+      Pattern pattern = readPattern();
+      cases.add(new MatchCase(pattern, readExpr()));
+    }
+
+    return cases;
+  }
+
+  private Position readPosition() {
+    String sourceFile = readString();
+    int startLine = readInt();
+    int startCol = readInt();
+    int endLine = readInt();
+    int endCol = readInt();
+    return new Position(sourceFile, startLine, startCol, endLine, endCol);
+  }
+
+  private boolean readBoolean() {
+    return readByte() != 0;
+  }
+
+  private int readByte() {
+    if (mPosition >= mData.length) {
+      throw new IllegalArgumentException("Unexpected end of data.");
+    }
+
+    return mData[mPosition++] & 0xff;
+  }
+
+  private int readInt() {
+    int bits = 0;
+    int shift = 0;
+    while (true) {
+      int b = readByte();
+      bits |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) break;
+
+      shift += 7;
+      if (shift > 28) throw new IllegalArgumentException("Malformed int.");
+    }
+
+    // Undo the zig-zag encoding.
+    return (bits >>> 1) ^ -(bits & 1);
+  }
+
+  private String readString() {
+    int index = readInt();
+    if (index == 0) return null;
+    if (index > 1) return mStrings.get(index - 2);
+
+    int length = readInt();
+    if ((length < 0) || (length > mData.length - mPosition)) {
+      throw new IllegalArgumentException("Malformed string.");
+    }
+
+    String value = new String(mData, mPosition, length, AstWriter.UTF8);
+    mPosition += length;
+    mStrings.add(value);
+    return value;
+  }
+
+  private final byte[] mData;
+  private final List<String> mStrings = new ArrayList<String>();
+  private int mPosition = 0;
+}
@@ -0,0 +1,398 @@
+package com.stuffwithstuff.magpie.ast;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.stuffwithstuff.magpie.ast.pattern.MatchCase;
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.ast.pattern.PatternVisitor;
+import com.stuffwithstuff.magpie.ast.pattern.RecordPattern;
+import com.stuffwithstuff.magpie.ast.pattern.TypePattern;
+import com.stuffwithstuff.magpie.ast.pattern.ValuePattern;
+import com.stuffwithstuff.magpie.ast.pattern.VariablePattern;
+import com.stuffwithstuff.magpie.ast.pattern.WildcardPattern;
+import com.stuffwithstuff.magpie.parser.Position;
+import com.stuffwithstuff.magpie.util.Pair;
+
+/**
+ * Serializes parsed expressions to a compact binary form that AstReader can
+ * turn back into the same trees, without lexing or parsing.
+ *
+ * Each node is a tag byte followed by its fields. Ints are written as
+ * variable-length zig-zag numbers. Each distinct string is written once, and
+ * after that as an index, so names and source paths that repeat are cheap.
+ * Only what the parser produces is written. State added later, like resolved
+ * local slots and call site caches, is not.
+ */
+public class AstWriter implements ExprVisitor<Void, Void>,
+    PatternVisitor<Void, Void> {
+  /**
+   * Serializes the top-level expressions of a module.
+   */
+  public static byte[] write(List<Expr> exprs) {
+    AstWriter writer = new AstWriter();
+    writer.writeExprs(exprs);
+    return writer.mOut.toByteArray();
+  }
+
+  @Override
+  public Void visit(ArrayExpr expr, Void dummy) {
+    writeHeader(ARRAY, expr);
+    writeExprs(expr.getElements());
+    return null;
+  }
+
+  @Override
+  public Void visit(AssignExpr expr, Void dummy) {
+    writeHeader(ASSIGN, expr);
+    writeString(expr.getName());
+    writeExpr(expr.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(BoolExpr expr, Void dummy) {
+    writeHeader(BOOL, expr);
+    writeBoolean(expr.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(BreakExpr expr, Void dummy) {
+    writeHeader(BREAK, expr);
+    return null;
+  }
+
+  @Override
+  public Void visit(CallExpr expr, Void dummy) {
+    writeHeader(CALL, expr);
+    writeString(expr.getName());
+    writeExpr(expr.getArg());
+    return null;
+  }
+
+  @Override
+  public Void visit(ClassExpr expr, Void dummy) {
+    writeHeader(CLASS, expr);
+    writeString(expr.getDoc());
+    writeString(expr.getName());
+
+    writeInt(expr.getParents().size());
+    for (String parent : expr.getParents()) {
+      writeString(parent);
+    }
+
+    writeInt(expr.getFields().size());
+    for (Entry<String, Field> field : expr.getFields().entrySet()) {
+      writeString(field.getKey());
+      writeBoolean(field.getValue().isMutable());
+      writeExpr(field.getValue().getInitializer());
+      writePattern(field.getValue().getPattern());
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(FnExpr expr, Void dummy) {
+    writeHeader(FN, expr);
+    writeString(expr.getDoc());
+    writePattern(expr.getPattern());
+    writeExpr(expr.getBody());
+    return null;
+  }
+
+  @Override
+  public Void visit(ImportExpr expr, Void dummy) {
+    writeHeader(IMPORT, expr);
+    writeString(expr.getScheme());
+    writeString(expr.getModule());
+    writeString(expr.getPrefix());
+    writeBoolean(expr.isOnly());
+
+    writeInt(expr.getDeclarations().size());
+    for (ImportDeclaration declaration : expr.getDeclarations()) {
+      writeBoolean(declaration.isExported());
+      writeString(declaration.getName());
+      writeString(declaration.getRename());
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(IntExpr expr, Void dummy) {
+    writeHeader(INT, expr);
+    writeInt(expr.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(LoopExpr expr, Void dummy) {
+    writeHeader(LOOP, expr);
+    writeExpr(expr.getBody());
+    return null;
+  }
+
+  @Override
+  public Void visit(MatchExpr expr, Void dummy) {
+    writeHeader(MATCH, expr);
+    writeExpr(expr.getValue());
+    writeCases(expr.getCases());
+    return null;
+  }
+
+  @Override
+  public Void visit(MethodExpr expr, Void dummy) {
+    writeHeader(METHOD, expr);
+    writeString(expr.getDoc());
+    writeString(expr.getName());
+    writePattern(expr.getPattern());
+    writeExpr(expr.getBody());
+    return null;
+  }
+
+  @Override
+  public Void visit(NameExpr expr, Void dummy) {
+    writeHeader(NAME, expr);
+    writeString(expr.getName());
+    return null;
+  }
+
+  @Override
+  public Void visit(NothingExpr expr, Void dummy) {
+    writeHeader(NOTHING, expr);
+    return null;
+  }
+
+  @Override
+  public Void visit(QuoteExpr expr, Void dummy) {
+    writeHeader(QUOTE, expr);
+    writeExpr(expr.getBody());
+    return null;
+  }
+
+  @Override
+  public Void visit(RecordExpr expr, Void dummy) {
+    writeHeader(RECORD, expr);
+    writeInt(expr.getFields().size());
+    for (Pair<String, Expr> field : expr.getFields()) {
+      writeString(field.getKey());
+      writeExpr(field.getValue());
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(ReturnExpr expr, Void dummy) {
+    writeHeader(RETURN, expr);
+    writeExpr(expr.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(ScopeExpr expr, Void dummy) {
+    // The position comes from the body.
+    mOut.write(SCOPE);
+    writeExpr(expr.getBody());
+    writeCases(expr.getCatches());
+    return null;
+  }
+
+  @Override
+  public Void visit(SequenceExpr expr, Void dummy) {
+    // The position comes from the expressions.
+    mOut.write(SEQUENCE);
+    writeExprs(expr.getExpressions());
+    return null;
+  }
+
+  @Override
+  public Void visit(StringExpr expr, Void dummy) {
+    writeHeader(STRING, expr);
+    writeString(expr.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(ThrowExpr expr, Void dummy) {
+    writeHeader(THROW, expr);
+    writeExpr(expr.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(UnquoteExpr expr, Void dummy) {
+    writeHeader(UNQUOTE, expr);
+    writeExpr(expr.getBody());
+    return null;
+  }
+
+  @Override
+  public Void visit(VarExpr expr, Void dummy) {
+    writeHeader(VAR, expr);
+    writeBoolean(expr.isMutable());
+    writePattern(expr.getPattern());
+    writeExpr(expr.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(RecordPattern pattern, Void dummy) {
+    mOut.write(RECORD_PATTERN);
+    writeInt(pattern.getFields().size());
+    for (Entry<String, Pattern> field : pattern.getFields().entrySet()) {
+      writeString(field.getKey());
+      writePattern(field.getValue());
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(TypePattern pattern, Void dummy) {
+    mOut.write(TYPE_PATTERN);
+    writeExpr(pattern.getType());
+    return null;
+  }
+
+  @Override
+  public Void visit(ValuePattern pattern, Void dummy) {
+    mOut.write(VALUE_PATTERN);
+    writeExpr(pattern.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(VariablePattern pattern, Void dummy) {
+    mOut.write(VARIABLE_PATTERN);
+    writeString(pattern.getName());
+    writePattern(pattern.getPattern());
+    return null;
+  }
+
+  @Override
+  public Void visit(WildcardPattern pattern, Void dummy) {
+    mOut.write(WILDCARD_PATTERN);
+    return null;
+  }
+
+  private AstWriter() {
+  }
+
+  private void writeExpr(Expr expr) {
+    if (expr == null) {
+      mOut.write(NULL);
+    } else {
+      expr.accept(this, null);
+    }
+  }
+
+  private void writeExprs(List<Expr> exprs) {
+    writeInt(exprs.size());
+    for (Expr expr : exprs) {
+      writeExpr(expr);
+    }
+  }
+
+  private void writePattern(Pattern pattern) {
+    if (pattern == null) {
+      mOut.write(NULL);
+    } else {
+      pattern.accept(this, null);
+    }
+  }
+
+  private void writeCases(List<MatchCase> cases) {
+    writeInt(cases.size());
+    for (MatchCase matchCase : cases) {
+      writePattern(matchCase.getPattern());
+      writeExpr(matchCase.getBody());
+    }
+  }
+
+  private void writeHeader(int tag, Expr expr) {
+    mOut.write(tag);
+
+    Position position = expr.getPosition();
+    writeString(position.getSourceFile());
+    writeInt(position.getStartLine());
+    writeInt(position.getStartCol());
+    writeInt(position.getEndLine());
+    writeInt(position.getEndCol());
+  }
+
+  private void writeBoolean(boolean value) {
+    mOut.write(value ? 1 : 0);
+  }
+
+  private void writeInt(int value) {
+    // Zig-zag encode so that small negative numbers are small too.
+    int bits = (value << 1) ^ (value >> 31);
+    while ((bits & ~0x7f) != 0) {
+      mOut.write((bits & 0x7f) | 0x80);
+      bits >>>= 7;
+    }
+    mOut.write(bits);
+  }
+
+  /**
+   * Writes 0 for null, the index plus 2 for a string that's already been
+   * written, or 1 followed by the UTF-8 bytes of a new one.
+   */
+  private void writeString(String value) {
+    if (value == null) {
+      writeInt(0);
+      return;
+    }
+
+    Integer index = mStrings.get(value);
+    if (index != null) {
+      writeInt(index + 2);
+      return;
+    }
+
+    mStrings.put(value, mStrings.size());
+
+    byte[] bytes = value.getBytes(UTF8);
+    writeInt(1);
+    writeInt(bytes.length);
+    mOut.write(bytes, 0, bytes.length);
+  }
+
+  static final int NULL             = 0;
+  static final int ARRAY            = 1;
+  static final int ASSIGN           = 2;
+  static final int BOOL             = 3;
+  static final int BREAK            = 4;
+  static final int CALL             = 5;
+  static final int CLASS            = 6;
+  static final int FN               = 7;
+  static final int IMPORT           = 8;
+  static final int INT              = 9;
+  static final int LOOP             = 10;
+  static final int MATCH            = 11;
+  static final int METHOD           = 12;
+  static final int NAME             = 13;
+  static final int NOTHING          = 14;
+  static final int QUOTE            = 15;
+  static final int RECORD           = 16;
+  static final int RETURN           = 17;
+  static final int SCOPE            = 18;
+  static final int SEQUENCE         = 19;
+  static final int STRING           = 20;
+  static final int THROW            = 21;
+  static final int UNQUOTE          = 22;
+  static final int VAR              = 23;
+  static final int RECORD_PATTERN   = 24;
+  static final int TYPE_PATTERN     = 25;
+  static final int VALUE_PATTERN    = 26;
+  static final int VARIABLE_PATTERN = 27;
+  static final int WILDCARD_PATTERN = 28;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+  private final Map<String, Integer> mStrings = new HashMap<String, Integer>();
+}
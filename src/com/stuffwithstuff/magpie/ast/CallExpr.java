@@ -1,6 +1,11 @@
 package com.stuffwithstuff.magpie.ast;
 
+import java.util.List;
+
+import com.stuffwithstuff.magpie.interpreter.CallSite;
+import com.stuffwithstuff.magpie.interpreter.Name;
 import com.stuffwithstuff.magpie.parser.Position;
+import com.stuffwithstuff.magpie.util.Pair;
 
 /**
  * A call to a multimethod. Includes method calls, getters, and setters.
@@ -11,10 +16,45 @@ public class CallExpr extends Expr {
 
     mName = name;
     mArg = arg;
+    mSite = new CallSite();
+    
+    // Most calls pass a receiver and an argument as a two-field record. Pick
+    // those out so that they can be passed without creating the record.
+    Expr left = null;
+    Expr right = null;
+    if (arg instanceof RecordExpr) {
+      List<Pair<String, Expr>> fields = ((RecordExpr) arg).getFields();
+      if ((fields.size() == 2) &&
+          fields.get(0).getKey().equals(Name.getTupleField(0)) &&
+          fields.get(1).getKey().equals(Name.getTupleField(1))) {
+        left = fields.get(0).getValue();
+        right = fields.get(1).getValue();
+      }
+    }
+    
+    mLeft = left;
+    mRight = right;
   }
 
-  public String getName()      { return mName; }
-  public Expr   getArg()       { return mArg; }
+  public String   getName()      { return mName; }
+  public Expr     getArg()       { return mArg; }
+  
+  /**
+   * Gets the inline cache for the methods selected by this call.
+   */
+  public CallSite getSite()      { return mSite; }
+  
+  /**
+   * If the argument is a record of two positional fields, gets the first of
+   * them. Otherwise returns null.
+   */
+  public Expr     getLeft()      { return mLeft; }
+  
+  /**
+   * If the argument is a record of two positional fields, gets the second of
+   * them. Otherwise returns null.
+   */
+  public Expr     getRight()     { return mRight; }
   
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
@@ -34,4 +74,7 @@ public class CallExpr extends Expr {
 
   private final String mName;
   private final Expr mArg;
+  private final CallSite mSite;
+  private final Expr mLeft;
+  private final Expr mRight;
 }
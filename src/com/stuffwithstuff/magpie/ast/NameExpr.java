@@ -13,6 +13,45 @@ public class NameExpr extends Expr {
   }
 
   public String getName()      { return mName; }
+
+  /**
+   * Gets the number of local scopes to walk up to reach the variable, as
+   * determined by the Resolver. Returns -1 if the name has not been resolved
+   * to a local variable and must be looked up by name.
+   */
+  public int getDepth() { return mDepth; }
+  
+  /**
+   * Gets the index of the variable within its local scope, as determined by
+   * the Resolver.
+   */
+  public int getSlot() { return mSlot; }
+  
+  public boolean isResolved() { return mDepth != -1; }
+  
+  /**
+   * Gets the index of the variable within its local scope when it's run by
+   * the VM, which doesn't count the variables in that scope that it keeps in
+   * registers instead.
+   */
+  public int getVmSlot() { return mVmSlot; }
+  
+  /**
+   * Gets the register the VM keeps the variable in, or -1 if it lives in a
+   * Scope.
+   */
+  public int getRegister() { return mRegister; }
+  
+  public void resolve(int depth, int slot) {
+    resolve(depth, slot, slot, -1);
+  }
+  
+  public void resolve(int depth, int slot, int vmSlot, int register) {
+    mDepth = depth;
+    mSlot = slot;
+    mVmSlot = vmSlot;
+    mRegister = register;
+  }
   
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
@@ -25,4 +64,8 @@ public class NameExpr extends Expr {
   }
 
   private final String mName;
+  private int mDepth = -1;
+  private int mSlot = -1;
+  private int mVmSlot = -1;
+  private int mRegister = -1;
 }
@@ -18,6 +18,16 @@ public class VarExpr extends Expr {
   public Pattern getPattern() { return mPattern; }
   public Expr getValue() { return mValue; }
   
+  /**
+   * Gets the register the VM keeps the declared variable in, as determined by
+   * the Resolver, or -1 if it's defined in a Scope.
+   */
+  public int getRegister() { return mRegister; }
+  
+  public void resolveRegister(int register) {
+    mRegister = register;
+  }
+  
   @Override
   public <R, C> R accept(ExprVisitor<R, C> visitor, C context) {
     return visitor.visit(this, context);
@@ -38,4 +48,5 @@ public class VarExpr extends Expr {
   private final boolean mIsMutable;
   private final Pattern mPattern;
   private final Expr mValue;
+  private int mRegister = -1;
 }
@@ -4,14 +4,41 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.interpreter.FieldSlot;
+import com.stuffwithstuff.magpie.interpreter.Name;
 
 public class RecordPattern extends Pattern {
   RecordPattern(Map<String, Pattern> fields) {
     mFields = fields;
+    
+    mSlots = new FieldSlot[fields.size()];
+    mPatterns = new Pattern[fields.size()];
+    int i = 0;
+    for (Entry<String, Pattern> field : fields.entrySet()) {
+      mSlots[i] = new FieldSlot(field.getKey());
+      mPatterns[i] = field.getValue();
+      i++;
+    }
+    
+    mPositions = findPositions(mSlots);
   }
   
   public Map<String, Pattern> getFields() { return mFields; }
   
+  /**
+   * Gets accessors for the fields the pattern matches, in the same order as
+   * {@link #getFieldPatterns}.
+   */
+  public FieldSlot[] getFieldSlots() { return mSlots; }
+  public Pattern[] getFieldPatterns() { return mPatterns; }
+  
+  /**
+   * If the pattern's fields are exactly "0", "1", ... "n", gets the position
+   * of each field, in the same order as {@link #getFieldPatterns}. Otherwise
+   * returns null.
+   */
+  public int[] getFieldPositions() { return mPositions; }
+  
   @Override
   public <R, C> R accept(PatternVisitor<R, C> visitor, C context) {
     return visitor.visit(this, context);
@@ -34,5 +61,22 @@ public class RecordPattern extends Pattern {
     return builder.toString();
   }
   
+  private static int[] findPositions(FieldSlot[] slots) {
+    int[] positions = new int[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      positions[i] = -1;
+      for (int j = 0; j < slots.length; j++) {
+        if (slots[i].getName().equals(Name.getTupleField(j))) positions[i] = j;
+      }
+      
+      if (positions[i] == -1) return null;
+    }
+    
+    return positions;
+  }
+  
   private final Map<String, Pattern> mFields;
+  private final FieldSlot[] mSlots;
+  private final Pattern[] mPatterns;
+  private final int[] mPositions;
 }
\ No newline at end of file
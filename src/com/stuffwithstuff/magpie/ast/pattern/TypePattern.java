@@ -2,14 +2,21 @@ package com.stuffwithstuff.magpie.ast.pattern;
 
 import com.stuffwithstuff.magpie.ast.Expr;
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.interpreter.ClassReference;
 
 public class TypePattern extends Pattern {
   TypePattern(Expr type) {
     mType = type;
+    mReference = new ClassReference();
   }
   
   public Expr   getType() { return mType; }
   
+  /**
+   * Gets the cached class that the expression was last found to refer to.
+   */
+  public ClassReference getReference() { return mReference; }
+  
   @Override
   public <R, C> R accept(PatternVisitor<R, C> visitor, C context) {
     return visitor.visit(this, context);
@@ -21,4 +28,5 @@ public class TypePattern extends Pattern {
   }
 
   private final Expr   mType;
+  private final ClassReference mReference;
 }
\ No newline at end of file
@@ -2,14 +2,21 @@ package com.stuffwithstuff.magpie.ast.pattern;
 
 import com.stuffwithstuff.magpie.ast.Expr;
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.interpreter.ClassReference;
 
 public class ValuePattern extends Pattern {
   ValuePattern(Expr value) {
     mValue = value;
+    mReference = new ClassReference();
   }
   
   public Expr getValue() { return mValue; }
   
+  /**
+   * Gets the cached class that the expression was last found to refer to.
+   */
+  public ClassReference getReference() { return mReference; }
+  
   @Override
   public <R, C> R accept(PatternVisitor<R, C> visitor, C context) {
     return visitor.visit(this, context);
@@ -25,4 +32,5 @@ public class ValuePattern extends Pattern {
   }
 
   private final Expr mValue;
+  private final ClassReference mReference;
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.stuffwithstuff.magpie.ast.NameExpr;
+import com.stuffwithstuff.magpie.ast.pattern.*;
+
+/**
+ * Describes which parts of an argument a multimethod's patterns look at. Each
+ * part is a path of field names from the argument down to a value. The
+ * "shape" of an argument is then the class of the value at each of those
+ * paths, or null if the path doesn't lead anywhere.
+ *
+ * If two arguments have the same shape, every one of the multimethod's
+ * patterns will match both or neither of them, so the same method will be
+ * selected for both. That lets a call site remember which method it selected
+ * for a shape and skip testing the patterns the next time it sees it.
+ *
+ * This only holds if the patterns depend on nothing but the classes of the
+ * values in the argument. Multimethods with value patterns, or with type
+ * patterns that aren't just the name of a class defined at the top level of a
+ * module, don't get a shape.
+ */
+public class ArgumentShape implements PatternVisitor<Boolean, String[]> {
+  /**
+   * Gets the shape for the given methods, or null if selecting between them
+   * depends on more than the classes of the argument's values.
+   */
+  public static ArgumentShape create(List<Callable> methods) {
+    ArgumentShape shape = new ArgumentShape();
+
+    for (Callable method : methods) {
+      // Type names in a local scope could be shadowed without us noticing.
+      Scope closure = method.getClosure();
+      shape.mAllowTypes = (closure == null) || (closure.getParent() == null);
+
+      if (!method.getPattern().accept(shape, new String[0])) return null;
+    }
+
+    shape.mPaths = shape.mPathList.toArray(new String[shape.mPathList.size()][]);
+    shape.mPathList = null;
+    
+    // See if every path starts at one of the fields of a (left, right)
+    // record.
+    shape.mRoots = new int[shape.mPaths.length];
+    for (int i = 0; i < shape.mPaths.length; i++) {
+      String[] path = shape.mPaths[i];
+      if ((path.length > 0) && path[0].equals(Name.getTupleField(0))) {
+        shape.mRoots[i] = 0;
+      } else if ((path.length > 0) && path[0].equals(Name.getTupleField(1))) {
+        shape.mRoots[i] = 1;
+      } else {
+        shape.mRoots = null;
+        break;
+      }
+    }
+    
+    return shape;
+  }
+
+  /**
+   * Gets the number of paths in the shape, which is the length of the keys
+   * returned by {@link #keyOf}.
+   */
+  public int size() {
+    return mPaths.length;
+  }
+
+  /**
+   * Gets the class of the value at each path in the given argument.
+   */
+  public ClassObj[] keyOf(Obj arg) {
+    ClassObj[] key = new ClassObj[mPaths.length];
+    for (int i = 0; i < mPaths.length; i++) {
+      key[i] = classAt(arg, i);
+    }
+
+    return key;
+  }
+
+  /**
+   * Gets the class of the value at the given path in the argument, or null if
+   * there is no value there.
+   */
+  public ClassObj classAt(Obj arg, int path) {
+    Obj value = follow(arg, mPaths[path], 0);
+    return (value == null) ? null : value.getClassObj();
+  }
+  
+  /**
+   * Gets whether the shape of a (left, right) record can be found from the
+   * two values without creating the record.
+   */
+  public boolean isBinary() {
+    return mRoots != null;
+  }
+  
+  /**
+   * Like {@link #classAt(Obj, int)} for the record (left, right). Only valid
+   * if the shape is binary.
+   */
+  public ClassObj classAt(Obj left, Obj right, int path) {
+    Obj root = (mRoots[path] == 0) ? left : right;
+    Obj value = follow(root, mPaths[path], 1);
+    return (value == null) ? null : value.getClassObj();
+  }
+  
+  /**
+   * Like {@link #keyOf(Obj)} for the record (left, right). Only valid if the
+   * shape is binary.
+   */
+  public ClassObj[] keyOf(Obj left, Obj right) {
+    ClassObj[] key = new ClassObj[mPaths.length];
+    for (int i = 0; i < mPaths.length; i++) {
+      key[i] = classAt(left, right, i);
+    }
+
+    return key;
+  }
+  
+  /**
+   * Like {@link #matches(Obj, ClassObj[])} for the record (left, right). Only
+   * valid if the shape is binary.
+   */
+  public boolean matches(Obj left, Obj right, ClassObj[] key) {
+    for (int i = 0; i < mPaths.length; i++) {
+      if (classAt(left, right, i) != key[i]) return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Gets whether the given argument has the shape described by the key. This
+   * is the same as comparing the key to {@code keyOf(arg)}, but doesn't
+   * allocate.
+   */
+  public boolean matches(Obj arg, ClassObj[] key) {
+    for (int i = 0; i < mPaths.length; i++) {
+      if (classAt(arg, i) != key[i]) return false;
+    }
+
+    return true;
+  }
+
+  @Override
+  public Boolean visit(RecordPattern pattern, String[] path) {
+    // Whether or not each field exists is part of the shape.
+    for (Entry<String, Pattern> field : pattern.getFields().entrySet()) {
+      String[] fieldPath = Arrays.copyOf(path, path.length + 1);
+      fieldPath[path.length] = field.getKey();
+
+      addPath(fieldPath);
+      if (!field.getValue().accept(this, fieldPath)) return false;
+    }
+
+    return true;
+  }
+
+  @Override
+  public Boolean visit(TypePattern pattern, String[] path) {
+    if (!mAllowTypes) return false;
+    if (!(pattern.getType() instanceof NameExpr)) return false;
+
+    addPath(path);
+    return true;
+  }
+
+  @Override
+  public Boolean visit(ValuePattern pattern, String[] path) {
+    // Depends on the value itself, not just its class.
+    return false;
+  }
+
+  @Override
+  public Boolean visit(VariablePattern pattern, String[] path) {
+    return pattern.getPattern().accept(this, path);
+  }
+
+  @Override
+  public Boolean visit(WildcardPattern pattern, String[] path) {
+    return true;
+  }
+
+  private static Obj follow(Obj value, String[] path, int start) {
+    for (int i = start; i < path.length; i++) {
+      value = value.getField(path[i]);
+      if (value == null) return null;
+    }
+
+    return value;
+  }
+
+  private ArgumentShape() {
+  }
+
+  private void addPath(String[] path) {
+    for (String[] existing : mPathList) {
+      if (Arrays.equals(existing, path)) return;
+    }
+
+    mPathList.add(path);
+  }
+
+  private List<String[]> mPathList = new ArrayList<String[]>();
+  private String[][] mPaths;
+  
+  // For each path, which field of a (left, right) record it starts at: 0 or
+  // 1. Null if some path doesn't start at either.
+  private int[] mRoots;
+  private boolean mAllowTypes;
+}
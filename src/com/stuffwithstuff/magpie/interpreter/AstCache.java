@@ -0,0 +1,268 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.stuffwithstuff.magpie.SourceFile;
+import com.stuffwithstuff.magpie.ast.AstReader;
+import com.stuffwithstuff.magpie.ast.AstWriter;
+import com.stuffwithstuff.magpie.ast.Expr;
+
+/**
+ * Keeps expressions that take a while to work out in a directory, so that the
+ * next run can read them instead. There are two kinds of entries:
+ *
+ * - The parsed expressions of a source file, so that a module that hasn't
+ *   changed since the last run doesn't need to be lexed and parsed again.
+ * - The intrinsic methods defined by a Java class, as method definitions
+ *   whose body is the name of the class that implements them, so that its
+ *   annotations don't need to be read and their signatures parsed. These are
+ *   only kept for classes loaded from a jar.
+ *
+ * Each entry gets one file, named after a checksum of its key: the source's
+ * path, or the jar's path and the class's name. The file starts with the key
+ * and a stamp of what it was made from, and is only used if they both match.
+ * A source's stamp is its length and the CRC-32 of its contents. (A CRC is
+ * plenty to notice an edit, and unlike MessageDigest it doesn't load the
+ * security providers, which costs more at startup than parsing does.) A
+ * jar's stamp is its size and modification time, like a CDS archive's.
+ * Anything that goes wrong reading or writing the cache just means the work
+ * gets done again.
+ *
+ * Like the Profiler, it's configured once before any Interpreter is created.
+ */
+public class AstCache {
+  /**
+   * Sets the directory to keep parsed modules in, or null to not cache them.
+   */
+  public static void setDirectory(String path) {
+    sDirectory = (path == null) ? null : new File(path);
+  }
+
+  /**
+   * Gets the previously parsed expressions for the source file.
+   *
+   * @return The expressions, or null if there's no valid cache entry.
+   */
+  public static List<Expr> load(SourceFile source) {
+    if (sDirectory == null) return null;
+
+    ByteBuffer bytes = source.getBytes();
+    if (bytes == null) return null;
+
+    Entry entry = read(source.getPath());
+    if (entry == null) return null;
+
+    // Only compute the checksum if the lengths match.
+    if (bytes.remaining() != entry.length) return null;
+    if (checksum(bytes) != entry.check) return null;
+
+    return entry.getExprs();
+  }
+
+  /**
+   * Saves the parsed expressions for the source file.
+   */
+  public static void store(SourceFile source, List<Expr> exprs) {
+    if (sDirectory == null) return;
+
+    ByteBuffer bytes = source.getBytes();
+    if (bytes == null) return;
+
+    write(source.getPath(), bytes.remaining(), checksum(bytes), exprs);
+  }
+
+  /**
+   * Gets the intrinsic methods previously found in a Java class.
+   *
+   * @return A list of MethodExprs whose bodies are StringExprs naming the
+   *         class that implements each method, or null if there's no valid
+   *         cache entry.
+   */
+  public static List<Expr> loadIntrinsics(Class<?> javaClass) {
+    if (sDirectory == null) return null;
+
+    File jar = getJar(javaClass);
+    if (jar == null) return null;
+
+    Entry entry = read(getKey(jar, javaClass));
+    if (entry == null) return null;
+
+    if (jar.length() != entry.length) return null;
+    if (jar.lastModified() != entry.check) return null;
+
+    return entry.getExprs();
+  }
+
+  /**
+   * Saves the intrinsic methods found in a Java class.
+   */
+  public static void storeIntrinsics(Class<?> javaClass, List<Expr> methods) {
+    if (sDirectory == null) return;
+
+    File jar = getJar(javaClass);
+    if (jar == null) return;
+
+    write(getKey(jar, javaClass), jar.length(), jar.lastModified(), methods);
+  }
+
+  /**
+   * Reads the entry with the given key.
+   *
+   * @return The entry, or null if there isn't one.
+   */
+  private static Entry read(String key) {
+    File file = getFile(key);
+    if (!file.isFile()) return null;
+
+    try {
+      DataInputStream input = new DataInputStream(new FileInputStream(file));
+      try {
+        if (input.readInt() != MAGIC) return null;
+        if (input.readInt() != FORMAT_VERSION) return null;
+        if (!input.readUTF().equals(key)) return null;
+
+        Entry entry = new Entry();
+        entry.length = input.readLong();
+        entry.check = input.readLong();
+        entry.data = new byte[input.readInt()];
+        input.readFully(entry.data);
+        return entry;
+      } finally {
+        input.close();
+      }
+    } catch (IOException ex) {
+      return null;
+    } catch (RuntimeException ex) {
+      // A corrupt entry. It will be overwritten.
+      return null;
+    }
+  }
+
+  /**
+   * Writes an entry by writing a temporary file next to it and moving that
+   * into place, so that another process never reads a partial entry.
+   */
+  private static void write(String key, long length, long check,
+      List<Expr> exprs) {
+    byte[] data = AstWriter.write(exprs);
+
+    File file = getFile(key);
+    File temp = null;
+    try {
+      sDirectory.mkdirs();
+      temp = File.createTempFile(file.getName(), ".tmp", sDirectory);
+
+      DataOutputStream output = new DataOutputStream(
+          new FileOutputStream(temp));
+      try {
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeUTF(key);
+        output.writeLong(length);
+        output.writeLong(check);
+        output.writeInt(data.length);
+        output.write(data);
+      } finally {
+        output.close();
+      }
+
+      if (!temp.renameTo(file)) {
+        // Windows won't rename over an existing file.
+        file.delete();
+        if (temp.renameTo(file)) temp = null;
+      } else {
+        temp = null;
+      }
+    } catch (IOException ex) {
+      // Not caching is fine.
+    } finally {
+      if (temp != null) temp.delete();
+    }
+  }
+
+  private static File getFile(String key) {
+    // Two keys with the same checksum just take turns using the file.
+    CRC32 crc = new CRC32();
+    crc.update(key.getBytes());
+
+    String name = Long.toHexString(crc.getValue()) + ".ast";
+    return new File(sDirectory, name);
+  }
+
+  private static String getKey(File jar, Class<?> javaClass) {
+    return jar.getPath() + "!/" + javaClass.getName();
+  }
+
+  /**
+   * Gets the jar the class was loaded from, or null if it wasn't loaded from
+   * one. An intrinsic's signature is in the annotations of its own inner
+   * class, so a class file in a directory can't vouch for it.
+   */
+  private static File getJar(Class<?> javaClass) {
+    try {
+      File jar = new File(javaClass.getProtectionDomain()
+          .getCodeSource().getLocation().toURI());
+      if (!jar.isFile()) return null;
+
+      return jar;
+    } catch (Exception ex) {
+      // No code source, or not a file.
+      return null;
+    }
+  }
+
+  /**
+   * Gets the CRC-32 of the bytes, consuming them.
+   */
+  private static long checksum(ByteBuffer bytes) {
+    CRC32 crc = new CRC32();
+    byte[] chunk = new byte[8192];
+    while (bytes.hasRemaining()) {
+      int length = Math.min(chunk.length, bytes.remaining());
+      bytes.get(chunk, 0, length);
+      crc.update(chunk, 0, length);
+    }
+
+    return crc.getValue();
+  }
+
+  private static class Entry {
+    /**
+     * @return The expressions, or null if the entry is corrupt.
+     */
+    public List<Expr> getExprs() {
+      try {
+        return AstReader.read(data);
+      } catch (RuntimeException ex) {
+        return null;
+      }
+    }
+
+    // The length of what the entry was made from, and its checksum or
+    // modification time.
+    public long length;
+    public long check;
+    public byte[] data;
+  }
+
+  private AstCache() {
+  }
+
+  private static final int MAGIC = 0x4d414753; // "MAGS"
+
+  /**
+   * Increment this whenever the AST classes, the AstWriter format or the
+   * layout of an entry change, so that old entries are ignored.
+   */
+  private static final int FORMAT_VERSION = 3;
+
+  private static File sDirectory;
+}
@@ -7,4 +7,20 @@ package com.stuffwithstuff.magpie.interpreter;
  */
 @SuppressWarnings("serial")
 public class BreakException extends RuntimeException {
+  /**
+   * Breaks don't carry any state, so they can all share one instance.
+   */
+  public static final BreakException INSTANCE = new BreakException();
+  
+  /**
+   * This is used for control flow, not to report bugs, so there's no need to
+   * pay for capturing the Java stack.
+   */
+  @Override
+  public Throwable fillInStackTrace() {
+    return this;
+  }
+  
+  private BreakException() {
+  }
 }
\ No newline at end of file
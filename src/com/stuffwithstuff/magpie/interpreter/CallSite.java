@@ -0,0 +1,204 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.Arrays;
+
+import com.stuffwithstuff.magpie.intrinsic.IntIntrinsic;
+import com.stuffwithstuff.magpie.intrinsic.IntrinsicCallable;
+
+/**
+ * An inline cache for a single call expression. Most call sites only ever see
+ * arguments of one or two shapes, so after selecting a method for an argument
+ * the site remembers it, keyed on the argument's {@link ArgumentShape}. The
+ * next call with an argument of that shape goes straight to the method
+ * without testing any patterns.
+ *
+ * The cache starts out monomorphic and grows to hold up to MAX_ENTRIES
+ * shapes. Once it's full, new shapes are just selected the slow way. The
+ * whole cache is discarded when the call site sees a different multimethod,
+ * when a method is added to the multimethod, or when a top-level class name
+ * may have been rebound.
+ *
+ * The cache is immutable and replaced in one step, so a call site can be
+ * shared by several threads. The version and class binding epoch it records
+ * are read before selecting, so a method added concurrently can only make the
+ * cache look stale, never make a stale cache look valid.
+ *
+ * If the site selects an {@link IntIntrinsic} for two Ints, every later call
+ * with two Ints would select it too, so the cache also remembers it on its
+ * own. Those calls just check that both operands are IntObjs and call it with
+ * their values.
+ */
+public class CallSite {
+  public Obj invoke(Multimethod multimethod, String name, Context context,
+      Obj arg) {
+    return select(multimethod, name, context, arg).invoke(context, arg);
+  }
+
+  public Callable select(Multimethod multimethod, String name,
+      Context context, Obj arg) {
+    Cache cache = mCache;
+    if (cache != null && cache.isValid(multimethod)) {
+      Callable method = cache.find(arg);
+      if (method != null) return method;
+    } else {
+      cache = null;
+    }
+
+    // Cache miss, so select it the slow way.
+    int version = multimethod.getVersion();
+    int epoch = Scope.getClassBindingEpoch();
+    Callable method = multimethod.select(name, context, arg);
+
+    ArgumentShape shape = multimethod.getShape();
+    if (shape == null) return method;
+
+    if (cache == null) {
+      mCache = new Cache(multimethod, version, epoch, shape, shape.keyOf(arg),
+          method);
+    } else if (cache.size() < MAX_ENTRIES) {
+      mCache = cache.add(shape.keyOf(arg), method);
+    }
+
+    return method;
+  }
+
+  /**
+   * Invokes the multimethod with the record (left, right), without creating
+   * it if the selected method doesn't need it.
+   */
+  public Obj invoke(Multimethod multimethod, String name, Context context,
+      Obj left, Obj right) {
+    Cache cache = mCache;
+    if ((cache != null) && (cache.mIntKernel != null) &&
+        (left instanceof IntObj) && (right instanceof IntObj) &&
+        cache.isValid(multimethod)) {
+      return cache.mIntKernel.invoke(context, left.asInt(), right.asInt());
+    }
+
+    return select(multimethod, name, context, left, right).invoke(
+        context, left, right);
+  }
+
+  public Callable select(Multimethod multimethod, String name,
+      Context context, Obj left, Obj right) {
+    Cache cache = mCache;
+    if (cache != null && cache.isValid(multimethod)) {
+      Callable method = cache.find(left, right);
+      if (method != null) return method;
+    } else {
+      cache = null;
+    }
+
+    // Cache miss, so select it the slow way.
+    int version = multimethod.getVersion();
+    int epoch = Scope.getClassBindingEpoch();
+    Callable method = multimethod.select(name, context, left, right);
+
+    ArgumentShape shape = multimethod.getShape();
+    if ((shape == null) || !shape.isBinary()) return method;
+
+    if (cache == null) {
+      cache = new Cache(multimethod, version, epoch, shape,
+          shape.keyOf(left, right), method);
+    } else if (cache.size() < MAX_ENTRIES) {
+      cache = cache.add(shape.keyOf(left, right), method);
+    } else {
+      return method;
+    }
+
+    // Ints have no fields, so any two of them have the same shape.
+    if ((left instanceof IntObj) && (right instanceof IntObj) &&
+        (method instanceof IntrinsicCallable) &&
+        (((IntrinsicCallable) method).getIntrinsic() instanceof IntIntrinsic)) {
+      cache = cache.withIntKernel(
+          (IntIntrinsic) ((IntrinsicCallable) method).getIntrinsic());
+    }
+
+    mCache = cache;
+
+    return method;
+  }
+
+  /**
+   * The cached methods. This is immutable so that it can be replaced in one
+   * step.
+   */
+  private static class Cache {
+    public Cache(Multimethod multimethod, int version, int classBindingEpoch,
+        ArgumentShape shape, ClassObj[] key, Callable method) {
+      this(multimethod, version, classBindingEpoch, shape,
+          new ClassObj[][] { key }, new Callable[] { method }, null);
+    }
+
+    public boolean isValid(Multimethod multimethod) {
+      return (multimethod == mMultimethod) &&
+             (multimethod.getVersion() == mVersion) &&
+             (Scope.getClassBindingEpoch() == mClassBindingEpoch);
+    }
+
+    public Callable find(Obj arg) {
+      for (int i = 0; i < mKeys.length; i++) {
+        if (mShape.matches(arg, mKeys[i])) return mMethods[i];
+      }
+
+      return null;
+    }
+
+    public Callable find(Obj left, Obj right) {
+      // Only binary shapes are cached by binary calls, but the cache may have
+      // been filled by a call with a whole argument.
+      if (!mShape.isBinary()) return null;
+
+      for (int i = 0; i < mKeys.length; i++) {
+        if (mShape.matches(left, right, mKeys[i])) return mMethods[i];
+      }
+
+      return null;
+    }
+
+    public int size() {
+      return mKeys.length;
+    }
+
+    public Cache add(ClassObj[] key, Callable method) {
+      ClassObj[][] keys = Arrays.copyOf(mKeys, mKeys.length + 1);
+      Callable[] methods = Arrays.copyOf(mMethods, mMethods.length + 1);
+      keys[mKeys.length] = key;
+      methods[mMethods.length] = method;
+
+      return new Cache(mMultimethod, mVersion, mClassBindingEpoch, mShape,
+          keys, methods, mIntKernel);
+    }
+
+    public Cache withIntKernel(IntIntrinsic kernel) {
+      return new Cache(mMultimethod, mVersion, mClassBindingEpoch, mShape,
+          mKeys, mMethods, kernel);
+    }
+
+    private Cache(Multimethod multimethod, int version, int classBindingEpoch,
+        ArgumentShape shape, ClassObj[][] keys, Callable[] methods,
+        IntIntrinsic intKernel) {
+      mMultimethod = multimethod;
+      mVersion = version;
+      mClassBindingEpoch = classBindingEpoch;
+      mShape = shape;
+      mKeys = keys;
+      mMethods = methods;
+      mIntKernel = intKernel;
+    }
+
+    private final Multimethod mMultimethod;
+    private final int mVersion;
+    private final int mClassBindingEpoch;
+    private final ArgumentShape mShape;
+    private final ClassObj[][] mKeys;
+    private final Callable[] mMethods;
+
+    // The method selected for two Ints, if it has an int-typed kernel.
+    private final IntIntrinsic mIntKernel;
+  }
+
+  private static final int MAX_ENTRIES = 4;
+
+  private Cache mCache;
+}
@@ -8,6 +8,13 @@ import com.stuffwithstuff.magpie.ast.pattern.Pattern;
  */
 public interface Callable {
   Obj invoke(Context context, Obj arg);
+  
+  /**
+   * Invokes the callable with the record (left, right) as its argument. Most
+   * calls pass a receiver and an argument, so this lets callables that only
+   * look at the two separately avoid creating the record.
+   */
+  Obj invoke(Context context, Obj left, Obj right);
   Pattern getPattern();
   Scope getClosure();
   String getDoc();
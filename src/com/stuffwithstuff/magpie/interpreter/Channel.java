@@ -1,23 +1,284 @@
 package com.stuffwithstuff.magpie.interpreter;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+import com.stuffwithstuff.magpie.util.Pair;
+
+/**
+ * Passes values from one routine to another. A channel with a capacity
+ * buffers values in a RingBuffer, so sending and receiving don't lock or
+ * allocate. Without one, it buffers them in an unbounded lock-free queue.
+ *
+ * Threads that have to wait add themselves to the channel's list of waiting
+ * senders or receivers and park. Whenever a value is added or removed, the
+ * other side's waiters are unparked and try again. A thread waiting in
+ * select() adds itself to every channel it's selecting from.
+ *
+ * Once a channel is closed, nothing more can be sent to it. Receivers still
+ * get the values that were already buffered, and after that they get null.
+ *
+ * Closing has to be atomic with respect to sending, or a value could be
+ * added after a receiver has seen the channel closed and empty, and never be
+ * received. So the closed flag and the number of sends in progress are kept
+ * in one atomic state. A send only starts if the channel is open, and a
+ * closed channel only counts as finished once every send that started before
+ * it was closed has added its value.
+ */
 public class Channel {
   public Channel() {
-    mQueue = new LinkedBlockingQueue<Obj>();
+    mRing = null;
+    mQueue = new ConcurrentLinkedQueue<Obj>();
   }
-  
+
   public Channel(int capacity) {
-    mQueue = new LinkedBlockingQueue<Obj>(capacity);
+    mRing = new RingBuffer(capacity);
+    mQueue = null;
+  }
+
+  public boolean isOpen() {
+    return (mState.get() & CLOSED) == 0;
+  }
+
+  /**
+   * Closes the channel and wakes up everyone waiting on it.
+   */
+  public void close() {
+    while (true) {
+      int state = mState.get();
+      if ((state & CLOSED) != 0) break;
+      if (mState.compareAndSet(state, state | CLOSED)) break;
+    }
+
+    wake(mReceivers);
+    wake(mSenders);
+  }
+
+  /**
+   * Sends the value if there's room in the buffer, without waiting.
+   *
+   * @return true if sent, false if the buffer was full or the channel is
+   *         closed.
+   */
+  public boolean trySend(Obj value) {
+    // Count this send, unless the channel is closed.
+    while (true) {
+      int state = mState.get();
+      if ((state & CLOSED) != 0) return false;
+      if (mState.compareAndSet(state, state + SENDER)) break;
+    }
+
+    boolean sent;
+    try {
+      sent = offer(value);
+    } finally {
+      mState.addAndGet(-SENDER);
+    }
+
+    // Wake receivers even if it wasn't sent, since this may have been the
+    // last send a closed channel was waiting for.
+    wake(mReceivers);
+    return sent;
+  }
+
+  /**
+   * Sends the value, waiting for room in the buffer if needed.
+   *
+   * @return true if sent, false if the channel is closed.
+   */
+  public boolean send(Obj value) throws InterruptedException {
+    Thread thread = Thread.currentThread();
+    while (true) {
+      if (trySend(value)) return true;
+      if (!isOpen()) return false;
+
+      mSenders.add(thread);
+      try {
+        // Try again in case a receiver made room before we were added.
+        if (trySend(value)) return true;
+        if (!isOpen()) return false;
+
+        park(0);
+      } finally {
+        mSenders.remove(thread);
+      }
+    }
   }
-  
-  public void send(Obj obj) throws InterruptedException {
-    mQueue.put(obj);
+
+  /**
+   * Receives a value if one is buffered, without waiting.
+   *
+   * @return The value, or null if there isn't one.
+   */
+  public Obj tryReceive() {
+    Obj value = poll();
+    if (value != null) wake(mSenders);
+    return value;
   }
-  
+
+  /**
+   * Receives a value, waiting until one is sent.
+   *
+   * @return The value, or null if the channel is closed and drained.
+   */
   public Obj receive() throws InterruptedException {
-    return mQueue.take();
+    return receive(-1);
+  }
+
+  /**
+   * Receives a value, waiting up to the given number of milliseconds for one
+   * to be sent. A negative timeout waits forever.
+   *
+   * @return The value, or null if the timeout expired or the channel is
+   *         closed and drained.
+   */
+  public Obj receive(long timeout) throws InterruptedException {
+    long deadline = deadline(timeout);
+    Thread thread = Thread.currentThread();
+    while (true) {
+      Obj value = tryReceive();
+      if (value != null) return value;
+
+      // A value may have been sent just before it was closed.
+      if (isFinished()) return tryReceive();
+      if (isExpired(deadline)) return null;
+
+      mReceivers.add(thread);
+      try {
+        // Try again in case a sender added a value before we were added.
+        value = tryReceive();
+        if (value != null) return value;
+
+        if (!isFinished()) park(deadline);
+      } finally {
+        mReceivers.remove(thread);
+      }
+    }
+  }
+
+  /**
+   * Receives a value from whichever of the channels has one first, waiting
+   * up to the given number of milliseconds. A negative timeout waits forever.
+   *
+   * @return The channel and the value received from it, or null if the
+   *         timeout expired or every channel is closed and drained.
+   */
+  public static Pair<Channel, Obj> select(List<Channel> channels,
+      long timeout) throws InterruptedException {
+    long deadline = deadline(timeout);
+    Thread thread = Thread.currentThread();
+    while (true) {
+      boolean allClosed = true;
+      for (Channel channel : channels) {
+        Obj value = channel.tryReceive();
+        if (value != null) return new Pair<Channel, Obj>(channel, value);
+        if (!channel.isFinished()) allClosed = false;
+      }
+
+      if (allClosed || isExpired(deadline)) return null;
+
+      for (Channel channel : channels) {
+        channel.mReceivers.add(thread);
+      }
+
+      try {
+        // Don't wait if something changed before we were added.
+        boolean ready = false;
+        for (Channel channel : channels) {
+          if (!channel.isEmpty() || channel.isFinished()) ready = true;
+        }
+
+        if (!ready) park(deadline);
+      } finally {
+        for (Channel channel : channels) {
+          channel.mReceivers.remove(thread);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets whether the channel is closed and every value sent to it has been
+   * added to the buffer.
+   */
+  private boolean isFinished() {
+    return mState.get() == CLOSED;
+  }
+
+  private boolean offer(Obj value) {
+    return (mRing != null) ? mRing.offer(value) : mQueue.offer(value);
+  }
+
+  private Obj poll() {
+    return (mRing != null) ? mRing.poll() : mQueue.poll();
+  }
+
+  private boolean isEmpty() {
+    return (mRing != null) ? mRing.isEmpty() : mQueue.isEmpty();
+  }
+
+  private static long deadline(long timeout) {
+    if (timeout < 0) return 0;
+
+    // Zero means there's no deadline, so don't return it by accident.
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    return (deadline == 0) ? 1 : deadline;
   }
-  
-  private final LinkedBlockingQueue<Obj> mQueue;
+
+  private static boolean isExpired(long deadline) {
+    return (deadline != 0) && (System.nanoTime() - deadline >= 0);
+  }
+
+  private static void wake(Queue<Thread> waiters) {
+    if (waiters.isEmpty()) return;
+
+    for (Thread thread : waiters) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * Parks the current thread until it's unparked or the deadline passes.
+   * If it's running on a ForkJoinPool, lets the pool add a thread while this
+   * one is parked.
+   */
+  private static void park(final long deadline) throws InterruptedException {
+    ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+      public boolean block() {
+        if (deadline == 0) {
+          LockSupport.park();
+        } else {
+          LockSupport.parkNanos(deadline - System.nanoTime());
+        }
+        return true;
+      }
+
+      public boolean isReleasable() {
+        return false;
+      }
+    });
+
+    if (Thread.interrupted()) throw new InterruptedException();
+  }
+
+  // Exactly one of these is non-null, depending on whether the channel has a
+  // capacity.
+  private final RingBuffer mRing;
+  private final Queue<Obj> mQueue;
+
+  private final Queue<Thread> mSenders = new ConcurrentLinkedQueue<Thread>();
+  private final Queue<Thread> mReceivers =
+      new ConcurrentLinkedQueue<Thread>();
+
+  // The low bit is set once the channel is closed. The rest count the sends
+  // in progress.
+  private final AtomicInteger mState = new AtomicInteger();
+
+  private static final int CLOSED = 1;
+  private static final int SENDER = 2;
 }
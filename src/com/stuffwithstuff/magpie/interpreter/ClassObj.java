@@ -1,9 +1,16 @@
 package com.stuffwithstuff.magpie.interpreter;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A runtime object representing a class.
+ *
+ * A class's parents can't change once it's created, so it works out its
+ * ancestors (itself and every class it inherits from) up front. Each class
+ * gets a unique id, and the ids of its ancestors are kept in a small sorted
+ * array, so checking for a subclass is a binary search instead of a walk up
+ * the inheritance tree, and costs memory for the ancestors only.
  */
 public class ClassObj extends Obj {
   /**
@@ -25,6 +32,18 @@ public class ClassObj extends Obj {
     
     mFields = fields;
     mDoc = doc;
+
+    mId = sNextId.getAndIncrement();
+    
+    Set<ClassObj> ancestors = new LinkedHashSet<ClassObj>();
+    mCollision = findAncestors(this, ancestors);
+    
+    mAncestorIds = new int[ancestors.size()];
+    int i = 0;
+    for (ClassObj ancestor : ancestors) {
+      mAncestorIds[i++] = ancestor.mId;
+    }
+    Arrays.sort(mAncestorIds);
   }
   
   public String getName() { return mName; }
@@ -33,31 +52,35 @@ public class ClassObj extends Obj {
   public String getDoc() { return mDoc; }
   public Multimethod getInitMethod() { return mInit; }
   
+  /**
+   * Gets the shape that instances of this class start out with. It has a slot
+   * for each field declared by this class and its parents.
+   */
+  public Shape getInstanceShape() {
+    if (mInstanceShape == null) {
+      mInstanceShape = addFields(Shape.EMPTY);
+    }
+    
+    return mInstanceShape;
+  }
+  
   /**
    * Gets whether or not this class is a subclass (or same class) as the given
    * parent.
    */
   public boolean isSubclassOf(ClassObj parent) {
-    if (this == parent) return true;
-    
-    for (ClassObj myParent : mParents) {
-      if (myParent.isSubclassOf(parent)) return true;
-    }
-    
-    return false;
+    if (parent == this) return true;
+    return Arrays.binarySearch(mAncestorIds, parent.mId) >= 0;
   }
   
   /**
-   * Walks the inheritance tree to see if any class can be reached through more
+   * Sees if any class in the inheritance tree can be reached through more
    * than one path.
    * 
    * @return The colliding class, if any, null otherwise.
    */
   public ClassObj checkForCollisions() {
-    Set<ClassObj> reachedClasses = new HashSet<ClassObj>();
-    reachedClasses.add(this);
-    
-    return checkForCollisions(reachedClasses, this);
+    return mCollision;
   }
   
   /**
@@ -76,24 +99,52 @@ public class ClassObj extends Obj {
     return mName;
   }
   
-  private ClassObj checkForCollisions(Set<ClassObj> reachedClasses,
-      ClassObj classObj) {
-    for (ClassObj parent : classObj.getParents()) {
-      if (reachedClasses.contains(parent)) return parent;
+  private Shape addFields(Shape shape) {
+    for (String field : mFields.keySet()) {
+      if (shape.indexOf(field) == -1) shape = shape.with(field);
+    }
+    
+    for (ClassObj parent : mParents) {
+      shape = parent.addFields(shape);
+    }
+    
+    return shape;
+  }
+  
+  /**
+   * Adds classObj and the classes it inherits from to the ancestor set.
+   * 
+   * @return The first class reached through more than one path, if any,
+   *         null otherwise.
+   */
+  private static ClassObj findAncestors(ClassObj classObj,
+      Set<ClassObj> ancestors) {
+    ancestors.add(classObj);
+    
+    ClassObj collision = null;
+    for (ClassObj parent : classObj.mParents) {
+      if (ancestors.contains(parent)) {
+        if (collision == null) collision = parent;
+        continue;
+      }
       
-      reachedClasses.add(parent);
-      ClassObj recursed = checkForCollisions(reachedClasses, parent);
-      if (recursed != null) return recursed;
+      ClassObj recursed = findAncestors(parent, ancestors);
+      if (collision == null) collision = recursed;
     }
     
-    // If we got here, we didn't find a collision.
-    return null;
+    return collision;
   }
   
+  private static final AtomicInteger sNextId = new AtomicInteger();
+  
   private final String mName;
+  private final int mId;
   
   private final List<ClassObj> mParents;
   private final Map<String, FieldObj> mFields;
   private final String mDoc;
+  private final int[] mAncestorIds;
+  private final ClassObj mCollision;
   private Multimethod mInit;
+  private Shape mInstanceShape;
 }
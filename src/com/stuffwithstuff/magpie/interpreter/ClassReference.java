@@ -0,0 +1,51 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import com.stuffwithstuff.magpie.ast.Expr;
+import com.stuffwithstuff.magpie.ast.NameExpr;
+
+/**
+ * Caches what the expression in a type or value pattern evaluates to when
+ * it's the name of a class. Patterns like "is Int" are tested on nearly every
+ * dispatch, and looking the name up each time is a large part of the cost.
+ *
+ * The cached class is only reused when the pattern is tested in the same
+ * top-level scope and no top-level variable has been bound to or away from a
+ * class since it was looked up. Names in local scopes are always looked up.
+ */
+public class ClassReference {
+  public Obj evaluate(Context context, Expr expr, Scope scope) {
+    Entry entry = mEntry;
+    if ((entry != null) && (entry.mScope == scope) &&
+        (entry.mClassBindingEpoch == Scope.getClassBindingEpoch())) {
+      return entry.mClass;
+    }
+
+    int epoch = Scope.getClassBindingEpoch();
+    Obj value = context.evaluate(expr, scope);
+
+    if ((value instanceof ClassObj) && (expr instanceof NameExpr) &&
+        (scope.getParent() == null)) {
+      mEntry = new Entry(scope, (ClassObj) value, epoch);
+    }
+
+    return value;
+  }
+
+  /**
+   * A single cached lookup. This is immutable so that it can be replaced in
+   * one step.
+   */
+  private static class Entry {
+    public Entry(Scope scope, ClassObj classObj, int classBindingEpoch) {
+      mScope = scope;
+      mClass = classObj;
+      mClassBindingEpoch = classBindingEpoch;
+    }
+
+    private final Scope mScope;
+    private final ClassObj mClass;
+    private final int mClassBindingEpoch;
+  }
+
+  private Entry mEntry;
+}
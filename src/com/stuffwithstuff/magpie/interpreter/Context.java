@@ -26,6 +26,7 @@ public interface Context {
   public Obj toObj(String value);
   public Obj toObj(Obj... fields);
   public Obj toObj(List<String> keys, Map<String, Obj> fields);
+  public Obj toObj(String[] keys, Obj[] values);
   public Obj toArray(List<Obj> elements);
   public Obj toList(List<Obj> elements);
   public Obj toFunction(FnExpr expr, Scope closure);
@@ -0,0 +1,115 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Maps the classes in an argument straight to the method selected for them.
+ * There is one level of tables for each path in the multimethod's
+ * {@link ArgumentShape}, so for the common case of a receiver and an argument
+ * with type patterns, selecting a method is two table lookups.
+ *
+ * Classes can be defined at any time, so the table can't be filled in ahead
+ * of time. Instead, each time MethodGraph selects a method the slow way, it
+ * adds it here.
+ *
+ * Several threads may select methods from the same table at once. Lookups
+ * take no lock: the tables are never modified once they're visible. Adding
+ * a method copies the tables along its path and swaps in a new root.
+ *
+ * Since each add copies, a table holds at most MAX_ENTRIES keys. Once it's
+ * full, other arguments are just selected the slow way, like a full CallSite
+ * cache.
+ */
+class DispatchTable {
+  public DispatchTable(ArgumentShape shape) {
+    mShape = shape;
+    mClassBindingEpoch = Scope.getClassBindingEpoch();
+  }
+
+  /**
+   * Gets whether the class names used by the patterns still refer to the
+   * classes they did when this table was created.
+   */
+  public boolean isValid() {
+    return Scope.getClassBindingEpoch() == mClassBindingEpoch;
+  }
+
+  /**
+   * Gets the method previously selected for an argument of the same shape, or
+   * null if there isn't one.
+   */
+  public Callable get(Obj arg) {
+    Object entry = mRoot;
+    for (int i = 0; i < mShape.size(); i++) {
+      if (entry == null) return null;
+      entry = ((Map<?, ?>) entry).get(mShape.classAt(arg, i));
+    }
+
+    return (Callable) entry;
+  }
+
+  /**
+   * Like {@link #get(Obj)} for the record (left, right). The shape must be
+   * binary.
+   */
+  public Callable get(Obj left, Obj right) {
+    Object entry = mRoot;
+    for (int i = 0; i < mShape.size(); i++) {
+      if (entry == null) return null;
+      entry = ((Map<?, ?>) entry).get(mShape.classAt(left, right, i));
+    }
+
+    return (Callable) entry;
+  }
+
+  /**
+   * Stores the method selected for arguments with the given key, as returned
+   * by ArgumentShape.keyOf().
+   */
+  public synchronized void put(ClassObj[] key, Callable method) {
+    if (mSize == MAX_ENTRIES) return;
+
+    // Another thread may have selected the same method first.
+    Object entry = mRoot;
+    for (int i = 0; (entry != null) && (i < key.length); i++) {
+      entry = ((Map<?, ?>) entry).get(key[i]);
+    }
+    if (entry != null) return;
+
+    mRoot = with(mRoot, key, 0, method);
+    mSize++;
+  }
+
+  /**
+   * Gets a copy of the given table (or a new one, if it's null) with the
+   * method added at the rest of the key, starting at index.
+   */
+  @SuppressWarnings("unchecked")
+  private Object with(Object entry, ClassObj[] key, int index,
+      Callable method) {
+    if (index == key.length) return method;
+
+    Map<ClassObj, Object> table;
+    if (entry == null) {
+      table = new IdentityHashMap<ClassObj, Object>();
+    } else {
+      table = new IdentityHashMap<ClassObj, Object>(
+          (Map<ClassObj, Object>) entry);
+    }
+
+    table.put(key[index], with(table.get(key[index]), key, index + 1, method));
+    return table;
+  }
+
+  private static final int MAX_ENTRIES = 64;
+
+  private final ArgumentShape mShape;
+  private final int mClassBindingEpoch;
+
+  // Either the method, if the shape has no paths, or the first level table.
+  private volatile Object mRoot;
+
+  // Only used while holding the lock.
+  private int mSize = 0;
+}
@@ -12,5 +12,14 @@ public class ErrorException extends RuntimeException {
   
   public Obj getError() { return mError; }
   
+  /**
+   * Magpie errors are caught and handled by Magpie code, and the Java stack
+   * says nothing useful about where they came from, so don't capture it.
+   */
+  @Override
+  public Throwable fillInStackTrace() {
+    return this;
+  }
+  
   private final Obj mError;
 }
\ No newline at end of file
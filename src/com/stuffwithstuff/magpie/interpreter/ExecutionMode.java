@@ -0,0 +1,33 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+/**
+ * The different ways the interpreter can execute Magpie code.
+ */
+public enum ExecutionMode {
+  /**
+   * Walk the AST directly using ExprEvaluator.
+   */
+  EVALUATE,
+  
+  /**
+   * Compile each module and function body to a tree of Nodes once and then
+   * execute those.
+   */
+  COMPILE,
+  
+  /**
+   * Compile each module and function body to register-based bytecode and run
+   * it on the VM. This is slower than EVALUATE, and much slower than COMPILE,
+   * on every benchmark so far, mostly on call-heavy code. HotSpot compiles the
+   * VM's dispatch loop as one method with the call path inlined into it, so
+   * it takes a long time to warm up and starts over whenever the program
+   * uses an instruction or a kind of call it hadn't seen yet.
+   */
+  VM,
+  
+  /**
+   * Like COMPILE, but functions that are called often enough are compiled
+   * again to JVM bytecode so that HotSpot can optimize them.
+   */
+  JIT
+}
@@ -49,7 +49,13 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
     Obj value = evaluate(expr.getValue(), scope);
 
     // Try to assign to a local variable.
-    if (scope.assign(expr.getName(), value)) return value;
+    if (expr.isResolved()) {
+      if (scope.assign(expr.getName(), expr.getDepth(), expr.getSlot(), value)) {
+        return value;
+      }
+    } else if (scope.assign(expr.getName(), value)) {
+      return value;
+    }
     
     // TODO(bob): Detect this statically.
     throw mContext.error("NoVariableError",
@@ -65,7 +71,7 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
   public Obj visit(BreakExpr expr, Scope scope) {
     // Outside of a loop, "break" does nothing.
     if (mLoopDepth > 0) {
-      throw new BreakException();
+      throw BreakException.INSTANCE;
     }
     return mContext.nothing();
   }
@@ -79,8 +85,15 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
           expr.getPosition() + ")");
     }
 
+    if (expr.getLeft() != null) {
+      Obj left = evaluate(expr.getLeft(), scope);
+      Obj right = evaluate(expr.getRight(), scope);
+      return expr.getSite().invoke(multimethod, expr.getName(), mContext,
+          left, right);
+    }
+    
     Obj arg = evaluate(expr.getArg(), scope);
-    return multimethod.invoke(expr.getName(), mContext, arg);
+    return expr.getSite().invoke(multimethod, expr.getName(), mContext, arg);
   }
   
   @Override
@@ -227,7 +240,12 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
 
   @Override
   public Obj visit(NameExpr expr, Scope scope) {
-    Obj variable = scope.lookUp(expr.getName());
+    Obj variable;
+    if (expr.isResolved()) {
+      variable = scope.lookUp(expr.getName(), expr.getDepth(), expr.getSlot());
+    } else {
+      variable = scope.lookUp(expr.getName());
+    }
     if (variable != null) return variable;
     
     // TODO(bob): Detect this statically.
@@ -248,20 +266,17 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
 
   @Override
   public Obj visit(RecordExpr expr, Scope scope) {
-    
-    // TODO(bob): Hack, keep track of order keys appear for better pretty-
-    // printing.
-    List<String> keys = new ArrayList<String>();
+    List<Pair<String, Expr>> fields = expr.getFields();
     
     // Evaluate the fields.
-    Map<String, Obj> fields = new HashMap<String, Obj>();
-    for (Pair<String, Expr> entry : expr.getFields()) {
-      keys.add(entry.getKey());
-      Obj value = evaluate(entry.getValue(), scope);
-      fields.put(entry.getKey(), value);
+    String[] keys = new String[fields.size()];
+    Obj[] values = new Obj[fields.size()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = fields.get(i).getKey();
+      values[i] = evaluate(fields.get(i).getValue(), scope);
     }
 
-    return mContext.toObj(keys, fields);
+    return mContext.toObj(keys, values);
   }
 
   @Override
@@ -290,6 +305,7 @@ public class ExprEvaluator implements ExprVisitor<Obj, Scope> {
     // Evaluate all of the expressions and return the last.
     Obj result = null;
     for (Expr thisExpr : expr.getExpressions()) {
+      Sampler.line(mContext, thisExpr.getPosition());
       result = evaluate(thisExpr, scope);
     }
 
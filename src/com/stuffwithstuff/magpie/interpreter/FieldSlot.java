@@ -0,0 +1,64 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+/**
+ * Accesses a field with a given name, remembering which slot it was in for
+ * the last shape of object it saw. Code that reads the same field from many
+ * objects of the same class (or records with the same keys) only has to look
+ * the name up once.
+ */
+public class FieldSlot {
+  public FieldSlot(String name) {
+    mName = name;
+    mLast = new Entry(Shape.EMPTY, -1);
+  }
+  
+  public String getName() { return mName; }
+  
+  /**
+   * Gets the value of the field in the given object, or null if it doesn't
+   * have it.
+   */
+  public Obj get(Obj obj) {
+    int slot = slotFor(obj.getShape());
+    if (slot == -1) return null;
+    return obj.getSlot(slot);
+  }
+  
+  /**
+   * Sets the field in the given object, adding it if it doesn't have it yet.
+   */
+  public void set(Obj obj, Obj value) {
+    int slot = slotFor(obj.getShape());
+    if (slot == -1) {
+      obj.setField(mName, value);
+    } else {
+      obj.setSlot(slot, value);
+    }
+  }
+  
+  private int slotFor(Shape shape) {
+    Entry last = mLast;
+    if (last.mShape == shape) return last.mSlot;
+    
+    int slot = shape.indexOf(mName);
+    mLast = new Entry(shape, slot);
+    return slot;
+  }
+  
+  /**
+   * The last shape seen and the field's slot in it. This is immutable so that
+   * both are always replaced together.
+   */
+  private static class Entry {
+    public Entry(Shape shape, int slot) {
+      mShape = shape;
+      mSlot = slot;
+    }
+    
+    private final Shape mShape;
+    private final int mSlot;
+  }
+  
+  private final String mName;
+  private Entry mLast;
+}
@@ -2,6 +2,9 @@ package com.stuffwithstuff.magpie.interpreter;
 
 import com.stuffwithstuff.magpie.ast.FnExpr;
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.interpreter.jit.CompiledFunction;
+import com.stuffwithstuff.magpie.interpreter.jit.JitCompiler;
+import com.stuffwithstuff.magpie.interpreter.node.Node;
 
 /**
  * Wraps a raw FnExpr in the data and logic needed to execute a user-defined
@@ -9,12 +12,40 @@ import com.stuffwithstuff.magpie.ast.pattern.Pattern;
  */
 public class Function implements Callable {
   public Function(FnExpr function, Scope scope) {
+    this(function, scope, null);
+  }
+  
+  /**
+   * Creates a function whose body has already been compiled to a Node. If
+   * body is null, the function's expression will be evaluated instead.
+   */
+  public Function(FnExpr function, Scope scope, Node body) {
     mFunction = function;
     mScope = scope;
+    mBody = body;
   }
 
   @Override
   public Obj invoke(Context context, Obj arg) {
+    return invoke(context, arg, null, null);
+  }
+  
+  @Override
+  public Obj invoke(Context context, Obj left, Obj right) {
+    return invoke(context, null, left, right);
+  }
+  
+  /**
+   * Invokes the function with either a whole argument, or, if arg is null,
+   * the two fields of one.
+   */
+  private Obj invoke(Context context, Obj arg, Obj left, Obj right) {
+    // Count calls until the function is hot enough to compile.
+    if ((mInvocations >= 0) && (++mInvocations == JIT_THRESHOLD)) {
+      tierUp(context);
+    }
+    
+    Sampler.ShadowStack stack = Sampler.enter(context, mFunction);
     try {
       Profiler.push(mFunction.getPosition());
       
@@ -23,9 +54,23 @@ public class Function implements Callable {
       
       // Bind the arguments to the pattern.
       Pattern pattern = mFunction.getPattern();
-      PatternBinder.bind(context, false, pattern, arg, scope);
+      if (arg != null) {
+        PatternBinder.bind(context, false, pattern, arg, scope);
+      } else {
+        PatternBinder.bind(context, false, pattern, left, right, scope);
+      }
       
       try {
+        CompiledFunction compiled = mCompiled;
+        if (compiled != null) {
+          if (compiled.isValid()) {
+            return compiled.getBody().execute(context, scope);
+          }
+          
+          deoptimize();
+        }
+        
+        if (mBody != null) return mBody.execute(context, scope);
         return context.evaluate(mFunction.getBody(), scope);
       } catch (ReturnException ex) {
         // There was an early return in the function, so return the value of that.
@@ -33,6 +78,37 @@ public class Function implements Callable {
       }
     } finally {
       Profiler.pop();
+      Sampler.exit(stack);
+    }
+  }
+  
+  /**
+   * Compiles the function to JVM bytecode, if the interpreter is using the
+   * JIT. Otherwise, stops counting calls.
+   */
+  private void tierUp(Context context) {
+    if (context.getInterpreter().getExecutionMode() != ExecutionMode.JIT) {
+      mInvocations = -1;
+      return;
+    }
+    
+    mCompiled = JitCompiler.compile(mFunction, mScope);
+    
+    // If it can't be compiled, don't try again.
+    if (mCompiled == null) mInvocations = -1;
+  }
+  
+  /**
+   * Discards the compiled code because something it assumed has changed. If
+   * the function stays hot, it will be compiled again, up to a point.
+   */
+  private void deoptimize() {
+    mCompiled = null;
+    
+    if (++mDeoptimizations < MAX_DEOPTIMIZATIONS) {
+      mInvocations = 0;
+    } else {
+      mInvocations = -1;
     }
   }
   
@@ -47,4 +123,27 @@ public class Function implements Callable {
   
   private final FnExpr mFunction;
   private final Scope mScope;
+  private final Node mBody;
+  
+  /**
+   * How many calls a function gets before the JIT compiles it.
+   */
+  private static final int JIT_THRESHOLD = 1000;
+  
+  /**
+   * How many times a function can be deoptimized before it's left in the
+   * interpreter for good.
+   */
+  private static final int MAX_DEOPTIMIZATIONS = 4;
+  
+  // The number of times this has been called, or -1 if not counting. These
+  // counters are best-effort: routines on other threads may call the function
+  // at the same time and lose each other's updates. That only means it's
+  // compiled or given up on a little later, or, rarely, never compiled.
+  private int mInvocations = 0;
+  private int mDeoptimizations = 0;
+  
+  // Volatile so that a thread calling the function sees the whole compiled
+  // function another thread published, not just the reference.
+  private volatile CompiledFunction mCompiled;
 }
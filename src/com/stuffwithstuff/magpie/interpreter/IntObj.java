@@ -0,0 +1,41 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+/**
+ * Object type for an integer. Stores the value unboxed, and since ints never
+ * have fields, never allocates a field map.
+ */
+public class IntObj extends Obj {
+  /**
+   * Creates a new IntObj.
+   * 
+   * @param classObj  The class of the object: Int.
+   * @param value     The integer value.
+   */
+  public IntObj(ClassObj classObj, int value) {
+    super(classObj);
+    
+    mInt = value;
+  }
+  
+  @Override
+  public Object getValue() {
+    return mInt;
+  }
+  
+  @Override
+  public void setValue(Object value) {
+    throw new UnsupportedOperationException("Ints are immutable.");
+  }
+  
+  @Override
+  public int asInt() {
+    return mInt;
+  }
+  
+  @Override
+  public String toString() {
+    return Integer.toString(mInt);
+  }
+  
+  private final int mInt;
+}
@@ -2,6 +2,9 @@ package com.stuffwithstuff.magpie.interpreter;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.stuffwithstuff.magpie.MagpieHost;
 import com.stuffwithstuff.magpie.SourceFile;
@@ -9,12 +12,45 @@ import com.stuffwithstuff.magpie.ast.*;
 import com.stuffwithstuff.magpie.intrinsic.ClassInit;
 import com.stuffwithstuff.magpie.intrinsic.FieldGetter;
 import com.stuffwithstuff.magpie.intrinsic.FieldSetter;
+import com.stuffwithstuff.magpie.interpreter.node.NodeCompiler;
+import com.stuffwithstuff.magpie.interpreter.vm.BytecodeCompiler;
+import com.stuffwithstuff.magpie.interpreter.vm.Chunk;
 import com.stuffwithstuff.magpie.parser.MagpieParser;
 import com.stuffwithstuff.magpie.parser.ParseException;
 
+/**
+ * The top-level object for running Magpie code.
+ *
+ * Routines run Magpie code on several threads at once, all sharing one
+ * interpreter. The thread-safety model is:
+ *
+ * - State that only makes sense for the code running on one thread (the
+ *   object being constructed, the module being loaded, whether we're in the
+ *   middle of "==") is kept per-thread in a ThreadState.
+ * - Modules are only loaded once. The first thread to import a module
+ *   evaluates it, and other threads importing it wait until it's done, so
+ *   they see it fully evaluated. The lock is only held to find or add the
+ *   module, so a module's top-level code can wait on a routine that imports
+ *   other modules.
+ * - Top-level scopes and the global multimethod table are concurrent maps, so
+ *   defining and looking up names from several threads doesn't corrupt them.
+ * - A Multimethod re-sorts its methods under a lock and publishes the result
+ *   in one step. Caches used by dispatch (call sites, dispatch tables, class
+ *   references, field slots) are immutable snapshots that are replaced
+ *   wholesale, so a thread sees either the old one or the new one.
+ * - Objects themselves are not synchronized. Values shared between routines
+ *   should either not be mutated or be passed through channels.
+ */
 public class Interpreter {
   public Interpreter(MagpieHost host) {
+    this(host, ExecutionMode.EVALUATE);
+  }
+  
+  public Interpreter(MagpieHost host, ExecutionMode mode) {
     mHost = host;
+    mMode = mode;
+    
+    StartupTrace.Entry trace = StartupTrace.begin("(bootstrap)");
 
     // Bootstrap the base module with the core definitions.
     mBaseModule = new Module("magpie.core", mHost.loadModule("magpie.core"), this);
@@ -37,10 +73,17 @@ public class Interpreter {
     mFalse = mBaseModule.instantiate(mBoolClass, false);
     mNothing = mBaseModule.instantiate(mNothingClass, null);
     
+    mSmallInts = new Obj[MAX_SMALL_INT - MIN_SMALL_INT + 1];
+    for (int i = 0; i < mSmallInts.length; i++) {
+      mSmallInts[i] = new IntObj(mIntClass, MIN_SMALL_INT + i);
+    }
+    
     evaluateModule(mBaseModule);
     
-    // Now load the syntax module so that quotations and metaprogramming work.
-    mSyntaxModule = importModule("magpie.syntax");
+    // The syntax module, which quotations and metaprogramming need, isn't
+    // loaded until they're used. See getSyntaxModule().
+    
+    StartupTrace.end(trace);
   }
   
   public void interpret(SourceFile info) {
@@ -48,7 +91,7 @@ public class Interpreter {
   }
 
   public Obj interpret(Expr expression) {
-    return evaluate(expression, mBaseModule, mBaseModule.getScope());
+    return execute(expression, mBaseModule, mBaseModule.getScope());
   }
   
   public Obj evaluate(Expr expr, Module module, Scope scope) {
@@ -80,16 +123,21 @@ public class Interpreter {
     
     // Recursion base case. If we're in the middle of dispatching a call to
     // "==", don't call it again, just default to identity.
-    if (mInObjectsEqual) return a == b;
+    ThreadState state = mThreadState.get();
+    if (state.mInObjectsEqual) return a == b;
 
     Multimethod equals = mBaseModule.getScope().lookUpMultimethod(Name.EQEQ);   
     
     // Bootstrap short-cut. If we haven't defined "==" yet, default to identity.
     if (equals == null) return a == b;
     
-    mInObjectsEqual = true;
-    Obj result = equals.invoke(Name.EQEQ, mBaseModule, a, b);
-    mInObjectsEqual = false;
+    state.mInObjectsEqual = true;
+    Obj result;
+    try {
+      result = equals.invoke(Name.EQEQ, mBaseModule, a, b);
+    } finally {
+      state.mInObjectsEqual = false;
+    }
     
     return result.asBool();
   }
@@ -97,23 +145,50 @@ public class Interpreter {
   public Module importModule(String name) {
     // TODO(bob): Check for circular references.
     
-    // If it's a relative name, fully expand it.
+    // If it's a relative name, fully expand it. A routine's thread starts out
+    // with no module loading, so its names are relative to the root.
     if (name.startsWith(".")) {
-      name = mLoadingModules.peek().getName() + name;
+      Stack<Module> loading = mThreadState.get().mLoadingModules;
+      if (!loading.isEmpty()) name = loading.peek().getName() + name;
     }
     
-    Module module = mModules.get(name);
-    
-    // Only load it once.
-    if (module == null) {
-      SourceFile info = mHost.loadModule(name);
-      module = new Module(name, info, this);
-      mModules.put(name, module);
+    // Not a monitor, since a routine running on a virtual thread may block
+    // here while another thread adds a module.
+    ModuleLoad load;
+    boolean isLoader = false;
+    mModuleLock.lock();
+    try {
+      load = mModules.get(name);
       
-      evaluateModule(module);
+      // Only load it once.
+      if (load == null) {
+        SourceFile info = mHost.loadModule(name);
+        load = new ModuleLoad(new Module(name, info, this));
+        mModules.put(name, load);
+        isLoader = true;
+      }
+    } finally {
+      mModuleLock.unlock();
     }
     
-    return module;
+    if (isLoader) {
+      try {
+        evaluateModule(load.module);
+      } finally {
+        load.loaded.countDown();
+      }
+    } else if (load.loader != Thread.currentThread()) {
+      // Another thread is still evaluating it. If it's this one, the module
+      // imports itself, and gets what it has defined so far.
+      try {
+        Scheduler.await(load.loaded);
+      } catch (InterruptedException e) {
+        throw error(Name.INTERRUPTED_ERROR,
+            "Interrupted while waiting for module \"" + name + "\" to load.");
+      }
+    }
+    
+    return load.module;
   }
   
   public ErrorException error(String errorClassName, String message) {
@@ -149,12 +224,39 @@ public class Interpreter {
   public ClassObj getStringClass() { return mStringClass; }
   
   public Module getBaseModule() { return mBaseModule; }
-  public Module getSyntaxModule() { return mSyntaxModule; }
+  
+  /**
+   * Gets the module that defines the classes code is converted to when it's
+   * quoted. Most programs never quote anything, so it's loaded the first time
+   * this is called instead of when the interpreter starts.
+   */
+  public Module getSyntaxModule() {
+    Module module = mSyntaxModule;
+    if (module == null) {
+      // importModule() only loads it once, even if two threads get here.
+      module = importModule("magpie.syntax");
+      mSyntaxModule = module;
+    }
+    
+    return module;
+  }
   
   public Obj getBool(boolean value) {
     return value ? mTrue : mFalse;
   }
   
+  /**
+   * Gets an Int object for the given value. Small values, which are most of
+   * the ones loops and arithmetic produce, are shared instead of allocated.
+   */
+  public Obj getInt(int value) {
+    if (value >= MIN_SMALL_INT && value <= MAX_SMALL_INT) {
+      return mSmallInts[value - MIN_SMALL_INT];
+    }
+    
+    return new IntObj(mIntClass, value);
+  }
+  
   public ClassObj createClass(String name, List<ClassObj> parents,
       Map<String, Field> fields, Scope scope, String doc) {
     
@@ -202,25 +304,45 @@ public class Interpreter {
     return classObj;
   }
     
+  public ExecutionMode getExecutionMode() {
+    return mMode;
+  }
+  
   public MagpieHost getHost() {
     return mHost;
   }
   
+  /**
+   * Gets the scheduler that runs routines started by run().
+   */
+  public Scheduler getScheduler() {
+    return mScheduler;
+  }
+  
+  public void setScheduler(Scheduler scheduler) {
+    mScheduler = scheduler;
+  }
+  
   public Map<String, Multimethod> getMultimethods() {
     return mMultimethods;
   }
   
-  public Obj getConstructingObject() { return mConstructing.peek(); }
+  public Obj getConstructingObject() {
+    return mThreadState.get().mConstructing.peek();
+  }
   
   public Obj constructNewObject(Context context, ClassObj classObj, Obj initArg) {
     Obj newObj = context.instantiate(classObj, null);
     
-    mConstructing.push(newObj);
+    Stack<Obj> constructing = mThreadState.get().mConstructing;
+    constructing.push(newObj);
 
     // Call the init() multimethod.
-    initializeNewObject(context, classObj, initArg);
-
-    mConstructing.pop();
+    try {
+      initializeNewObject(context, classObj, initArg);
+    } finally {
+      constructing.pop();
+    }
     
     return newObj;
   }
@@ -228,7 +350,8 @@ public class Interpreter {
   public void initializeNewObject(Context context, ClassObj classObj, Obj arg) {
     // Keep track of how many times we reach the canonical initializer so that
     // we can generate an error if an init() call fails to bottom out to it.
-    int expected = mInitializingCount++;
+    ThreadState state = mThreadState.get();
+    int expected = state.mInitializingCount++;
     
     Multimethod init = classObj.getInitMethod();
     
@@ -238,9 +361,9 @@ public class Interpreter {
     init.invoke(Name.INIT, context, classObj, arg);
 
     // Make sure the canonical initializer was called.
-    if (mInitializingCount > expected) {
+    if (state.mInitializingCount > expected) {
       // Just decrement it so the error doesn't cascade.
-      mInitializingCount--;
+      state.mInitializingCount--;
 
       error(Name.INITIALIZATION_ERROR,
           "Instance of class " + classObj.getName() + " was not initialized.");
@@ -248,13 +371,35 @@ public class Interpreter {
   }
   
   public void finishInitialization() {
-    mInitializingCount--;
+    mThreadState.get().mInitializingCount--;
+  }
+  
+  /**
+   * Gets the Sampler's shadow stack for the current thread.
+   */
+  Sampler.ShadowStack getShadowStack() {
+    ThreadState state = mThreadState.get();
+    if (state.mShadowStack == null) state.mShadowStack = Sampler.createStack();
+    return state.mShadowStack;
+  }
+  
+  /**
+   * Discards the state of the Magpie code that ran on the current thread.
+   * Called when a routine finishes, since its thread will either end or be
+   * reused for another routine.
+   */
+  void finishThread() {
+    Sampler.releaseStack(mThreadState.get().mShadowStack);
+    mThreadState.remove();
   }
   
   private void evaluateModule(Module module) {
-    MagpieParser parser = new MagpieParser(module.readSource());
+    String label = module.getName();
+    if (label.length() == 0) label = module.getSourceFile().getPath();
+    StartupTrace.Entry trace = StartupTrace.begin(label);
     
-    mLoadingModules.push(module);
+    Stack<Module> loading = mThreadState.get().mLoadingModules;
+    loading.push(module);
     try {
       // Copy the base stuff in first.
       if (module != mBaseModule) {
@@ -266,9 +411,9 @@ public class Interpreter {
       
       // Evaluate the module.
       try {
-        List<Expr> exprs = parser.parseModule();
+        List<Expr> exprs = parseModule(module);
         for (Expr expr : exprs) {
-          evaluate(expr, module, module.getScope());
+          execute(expr, module, module.getScope());
         }
       } catch (ParseException e) {
         String message = String.format("Syntax error at %s: %s",
@@ -276,14 +421,89 @@ public class Interpreter {
         mHost.showSyntaxError(message);
       }
     } finally {
-      mLoadingModules.pop();
+      loading.pop();
+      StartupTrace.end(trace);
+    }
+  }
+  
+  /**
+   * Parses the module's source, or reuses the expressions parsed from it by a
+   * previous run if it hasn't changed.
+   */
+  private List<Expr> parseModule(Module module) {
+    long start = System.nanoTime();
+    SourceFile source = module.getSourceFile();
+    List<Expr> exprs = AstCache.load(source);
+    if (exprs != null) {
+      StartupTrace.parsed("cache", start);
+    } else {
+      MagpieParser parser = new MagpieParser(module.readSource());
+      exprs = parser.parseModule();
+      AstCache.store(source, exprs);
+      StartupTrace.parsed("parser", start);
     }
+    
+    return exprs;
   }
   
+  /**
+   * Resolves and executes a top-level expression using the interpreter's
+   * execution mode.
+   */
+  private Obj execute(Expr expr, Module module, Scope scope) {
+    Resolver.resolve(expr);
+    
+    switch (mMode) {
+    case COMPILE:
+    case JIT:
+      return NodeCompiler.compileTopLevel(expr).execute(module, scope);
+    case VM:
+      Chunk chunk = BytecodeCompiler.compileTopLevel(expr);
+      
+      // Fall back to the evaluator if it's too big to compile.
+      if (chunk == null) return evaluate(expr, module, scope);
+      return chunk.execute(module, scope);
+    default:
+      return evaluate(expr, module, scope);
+    }
+  }
+  
+  /**
+   * A module that has been imported, and whether it has finished evaluating.
+   */
+  private static class ModuleLoad {
+    public ModuleLoad(Module module) {
+      this.module = module;
+    }
+    
+    public final Module module;
+    public final Thread loader = Thread.currentThread();
+    public final CountDownLatch loaded = new CountDownLatch(1);
+  }
+  
+  /**
+   * The state of the Magpie code running on one thread.
+   */
+  private static class ThreadState {
+    public final Stack<Module> mLoadingModules = new Stack<Module>();
+    public final Stack<Obj> mConstructing = new Stack<Obj>();
+    public int mInitializingCount = 0;
+    public boolean mInObjectsEqual = false;
+    public Sampler.ShadowStack mShadowStack;
+  }
+  
+  private static final int MIN_SMALL_INT = -128;
+  private static final int MAX_SMALL_INT = 1023;
+  
   private final MagpieHost mHost;
+  private final ExecutionMode mMode;
+  private volatile Scheduler mScheduler = new Scheduler();
   
-  private final Map<String, Module> mModules = new HashMap<String, Module>();
-  private final Map<String, Multimethod> mMultimethods = new HashMap<String, Multimethod>();
+  private final Map<String, ModuleLoad> mModules =
+      new HashMap<String, ModuleLoad>();
+  private final ReentrantLock mModuleLock = new ReentrantLock();
+  private final Map<String, Multimethod> mMultimethods =
+      new ConcurrentHashMap<String, Multimethod>();
   
   private final ClassObj mClass;
   private final ClassObj mArrayClass;
@@ -298,13 +518,16 @@ public class Interpreter {
   private final Obj mNothing;
   private final Obj mTrue;
   private final Obj mFalse;
+  private final Obj[] mSmallInts;
   
-  private final Stack<Module> mLoadingModules = new Stack<Module>();
   private final Module mBaseModule;
-  private final Module mSyntaxModule;
+  private volatile Module mSyntaxModule;
   
-  private final Stack<Obj> mConstructing = new Stack<Obj>();
-  private int mInitializingCount = 0;
-
-  private boolean mInObjectsEqual = false;
+  private final ThreadLocal<ThreadState> mThreadState =
+      new ThreadLocal<ThreadState>() {
+    @Override
+    protected ThreadState initialValue() {
+      return new ThreadState();
+    }
+  };
 }
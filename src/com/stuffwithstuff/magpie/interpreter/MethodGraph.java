@@ -5,6 +5,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+
 /**
  * Maintains a collection of methods for a single multimethod and handles
  * sorting and selecting from them efficiently. The goal of this class is,
@@ -58,47 +60,29 @@ import java.util.Map;
  * 
  * If we get all the way through the entire method array with no match, we just
  * return null to indicate that.
+ * 
+ * Dispatch table:
+ * 
+ * Most multimethods only have type patterns (and records of them), so the
+ * method selected only depends on the classes of the values in the argument.
+ * For those, each selection is also stored in a DispatchTable keyed on those
+ * classes, and later arguments with the same classes skip the walk above.
+ * Multimethods whose patterns look at values always do the walk.
+ *
+ * A graph is immutable once it's created, except for its dispatch table,
+ * which is safe to use from several threads. When methods are added, the
+ * multimethod creates a new graph, which reuses the pattern comparisons
+ * of the previous one.
  */
 public class MethodGraph {
-  public MethodGraph() {
-    mCache = new HashMap<MethodPair, PatternComparer.Result>();
-  }
-  
-  public Callable select(String name, Context context, Obj arg) {
-    Callable selected = null;
-
-    Callable[] methods = mMethods; 
-    for (int i = 0; i < methods.length;) {
-      Callable method = methods[i];
-      // See if this method matches the argument.
-      // If the callable has a lexical context, evaluate its pattern in that
-      // context. That way pattern names can refer to local variables.
-      if (PatternTester.test(context, method.getPattern(),
-          arg, method.getClosure())) {
-        // Found a match.
-        if (selected != null) {
-          // Multiple (uncovered) matches, so it's ambiguous.
-          throw context.error(Name.AMBIGUOUS_METHOD_ERROR, 
-              "Cannot choose a method between " + name + selected.getPattern() +
-              " and " + name + method.getPattern());
-        }
-
-        selected = method;
-        
-        // This method has matched, so only search the remaining methods that
-        // it doesn't cover.
-        methods = mRemaining[i];
-        i = 0;
-      } else {
-        i++;
-      }
+  public MethodGraph(Context context, List<Callable> methods,
+      MethodGraph previous) {
+    if (previous != null) {
+      mCache = previous.mCache;
+    } else {
+      mCache = new HashMap<MethodPair, PatternComparer.Result>();
     }
     
-    // Note: returns null if no method matched.
-    return selected;
-  }
-
-  public void refreshGraph(Context context, List<Callable> methods) {
     // Topologically sort the methods so that every method comes before all of
     // the methods it covers.
     List<Callable> sorted = new ArrayList<Callable>();
@@ -153,8 +137,122 @@ public class MethodGraph {
         mRemaining[i][j] = remaining.get(j);
       }
     }
+    
+    // If selection only depends on the classes in the argument, we can also
+    // remember the results in a table.
+    mShape = ArgumentShape.create(methods);
+    mTable = (mShape == null) ? null : new DispatchTable(mShape);
+  }
+  
+  /**
+   * Gets the shape of the arguments that determines which method is selected,
+   * or null if selection depends on more than the classes in the argument.
+   */
+  public ArgumentShape getShape() {
+    return mShape;
+  }
+  
+  public Callable select(String name, Context context, Obj arg) {
+    // If the patterns only look at classes, see if we've already selected a
+    // method for these ones.
+    DispatchTable table = getTable();
+    if (table != null) {
+      Callable method = table.get(arg);
+      if (method != null) return method;
+    }
+    
+    Callable method = selectByPatterns(name, context, arg, null, null);
+    if ((table != null) && (method != null)) {
+      table.put(mShape.keyOf(arg), method);
+    }
+    
+    return method;
+  }
+  
+  /**
+   * Selects the best method for the record (left, right), without creating
+   * the record unless some method's pattern needs it.
+   */
+  public Callable select(String name, Context context, Obj left, Obj right) {
+    DispatchTable table = getTable();
+    if ((table != null) && !mShape.isBinary()) table = null;
+    
+    if (table != null) {
+      Callable method = table.get(left, right);
+      if (method != null) return method;
+    }
+    
+    Callable method = selectByPatterns(name, context, null, left, right);
+    if ((table != null) && (method != null)) {
+      table.put(mShape.keyOf(left, right), method);
+    }
+    
+    return method;
+  }
+  
+  private DispatchTable getTable() {
+    DispatchTable table = mTable;
+    if ((table != null) && !table.isValid()) {
+      table = new DispatchTable(mShape);
+      mTable = table;
+    }
+    
+    return table;
   }
   
+  /**
+   * Walks the sorted methods to find the best one for the argument. If arg is
+   * null, the argument is the record (left, right), which is only created if
+   * a method's pattern can't be tested against left and right separately.
+   */
+  private Callable selectByPatterns(String name, Context context, Obj arg,
+      Obj left, Obj right) {
+    Callable selected = null;
+
+    Callable[] methods = mMethods; 
+    for (int i = 0; i < methods.length;) {
+      Callable method = methods[i];
+      // See if this method matches the argument.
+      // If the callable has a lexical context, evaluate its pattern in that
+      // context. That way pattern names can refer to local variables.
+      Pattern pattern = method.getPattern();
+      if ((arg == null) && (PatternTester.getBinaryPositions(pattern) == null)) {
+        arg = context.toObj(left, right);
+      }
+      
+      boolean matches;
+      if (arg != null) {
+        matches = PatternTester.test(context, pattern, arg,
+            method.getClosure());
+      } else {
+        matches = PatternTester.test(context, pattern, left, right,
+            method.getClosure());
+      }
+      
+      if (matches) {
+        // Found a match.
+        if (selected != null) {
+          // Multiple (uncovered) matches, so it's ambiguous.
+          throw context.error(Name.AMBIGUOUS_METHOD_ERROR, 
+              "Cannot choose a method between " + name + selected.getPattern() +
+              " and " + name + method.getPattern());
+        }
+
+        selected = method;
+        
+        // This method has matched, so only search the remaining methods that
+        // it doesn't cover.
+        methods = mRemaining[i];
+        i = 0;
+      } else {
+        i++;
+      }
+    }
+    
+    // Note: returns null if no method matched.
+    return selected;
+  }
+
   private PatternComparer.Result compare(Context context, Callable from, Callable to) {
     MethodPair pair = new MethodPair(from, to);
     PatternComparer.Result result = mCache.get(pair);
@@ -191,7 +289,10 @@ public class MethodGraph {
     }
   }
 
+  // Only used while the graph is being created, under the multimethod's lock.
   private final Map<MethodPair, PatternComparer.Result> mCache;
-  private Callable[] mMethods;
-  private Callable[][] mRemaining;
+  private final Callable[] mMethods;
+  private final Callable[][] mRemaining;
+  private final ArgumentShape mShape;
+  private volatile DispatchTable mTable;
 }
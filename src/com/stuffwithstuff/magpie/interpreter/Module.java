@@ -1,5 +1,7 @@
 package com.stuffwithstuff.magpie.interpreter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -10,7 +12,6 @@ import com.stuffwithstuff.magpie.SourceReader;
 import com.stuffwithstuff.magpie.SourceFile;
 import com.stuffwithstuff.magpie.ast.Expr;
 import com.stuffwithstuff.magpie.ast.FnExpr;
-import com.stuffwithstuff.magpie.parser.StringReader;
 
 public class Module implements Context {
   public Module(String name, SourceFile info, Interpreter interpreter) {
@@ -24,9 +25,10 @@ public class Module implements Context {
   public Interpreter getInterpreter() { return mInterpreter; }
   public Scope getScope() { return mScope; }
   public Set<String> getExportedNames() { return mExportedNames; }
+  public SourceFile getSourceFile() { return mInfo; }
    
   public SourceReader readSource() {
-    return new StringReader(mInfo.getPath(), mInfo.getSource());
+    return mInfo.open();
   }
   
   public void export(String name) {
@@ -68,7 +70,8 @@ public class Module implements Context {
   }
   
   public Obj instantiate(ClassObj classObj, Object primitiveValue) {
-    Obj object = new Obj(classObj, primitiveValue);
+    Obj object = new Obj(classObj, primitiveValue,
+        classObj.getInstanceShape());
     
     // Initialize its fields.
     for (Entry<String, FieldObj> field : classObj.getFieldDefinitions().entrySet()) {
@@ -91,7 +94,7 @@ public class Module implements Context {
   }
   
   public Obj toObj(int value) {
-    return instantiate(mInterpreter.getIntClass(), value);
+    return mInterpreter.getInt(value);
   }
   
   public Obj toObj(String value) {
@@ -99,11 +102,12 @@ public class Module implements Context {
   }
 
   public Obj toObj(Obj... fields) {
-    Obj record = instantiate(mInterpreter.getRecordClass(), null);
+    // Positional records all share a shape, so fill in the slots directly.
+    Obj record = new Obj(mInterpreter.getRecordClass(), null,
+        Shape.tuple(fields.length));
     
-    int index = 0;
-    for (Obj field : fields) {
-      record.setField(Name.getTupleField(index++), field);
+    for (int i = 0; i < fields.length; i++) {
+      record.setSlot(i, fields[i]);
     }
     
     return record;
@@ -112,8 +116,33 @@ public class Module implements Context {
   public Obj toObj(List<String> keys, Map<String, Obj> fields) {
     Obj record = instantiate(mInterpreter.getRecordClass(), keys);
     
-    for (Entry<String, Obj> field : fields.entrySet()) {
-      record.setField(field.getKey(), field.getValue());
+    // Add the fields in key order so that records with the same keys end up
+    // with the same shape.
+    for (String key : keys) {
+      Obj value = fields.get(key);
+      if (value != null) record.setField(key, value);
+    }
+    
+    if (fields.size() != keys.size()) {
+      for (Entry<String, Obj> field : fields.entrySet()) {
+        record.setField(field.getKey(), field.getValue());
+      }
+    }
+    
+    return record;
+  }
+  
+  /**
+   * Creates a record from a record expression's keys and the values of its
+   * fields, in the order they appear.
+   */
+  public Obj toObj(String[] keys, Obj[] values) {
+    // The record remembers the order of its keys for pretty-printing.
+    Obj record = instantiate(mInterpreter.getRecordClass(),
+        new ArrayList<String>(Arrays.asList(keys)));
+    
+    for (int i = 0; i < keys.length; i++) {
+      record.setField(keys[i], values[i]);
     }
     
     return record;
@@ -1,13 +1,32 @@
 package com.stuffwithstuff.magpie.interpreter;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A named collection of methods, one of which is selected each time it's
+ * invoked.
+ *
+ * Methods can be added from any thread while others are invoking it. Adding
+ * a method marks the sorted MethodGraph as stale. The next invocation builds a
+ * new one under the multimethod's lock and then publishes it, so concurrent
+ * invocations use either the old graph or the new one, never a half-sorted
+ * one.
+ */
 public class Multimethod {
   public Multimethod(String doc) {
     mDoc = doc;
+    sEpoch.incrementAndGet();
   }
   
+  /**
+   * Gets a counter that is incremented every time a multimethod is created.
+   * Code that caches the result of looking up a multimethod by name can check
+   * it to tell when a new definition might shadow the one it found.
+   */
+  public static int getEpoch() { return sEpoch.get(); }
+  
   /**
    * Gets the documentation for the multimethod. This should describe the
    * multimethod in general, while each method's doc describes its behavior
@@ -17,37 +36,90 @@ public class Multimethod {
   
   public List<Callable> getMethods() { return mMethods; }
   
-  public void addMethod(Callable method) {
+  public synchronized void addMethod(Callable method) {
     if (mMethods.contains(method)) return;
     
     mMethods.add(method);
     mSorted = false;
+    mVersion++;
+  }
+  
+  /**
+   * Gets a counter that is incremented every time a method is added. Call
+   * sites that cache which method was selected check it to tell when they
+   * need to select again.
+   */
+  public int getVersion() { return mVersion; }
+  
+  /**
+   * Gets the shape of the arguments that determines which method is selected,
+   * or null if there isn't one. Only valid after {@link #select}.
+   */
+  public ArgumentShape getShape() {
+    MethodGraph graph = mGraph;
+    return (graph == null) ? null : graph.getShape();
   }
   
   public Obj invoke(String name, Context context, Obj left, Obj right) {
-    return invoke(name, context, context.toObj(left, right));
+    return select(name, context, left, right).invoke(context, left, right);
   }
   
   public Obj invoke(String name, Context context, Obj arg) {
-    if (!mSorted) {
-      mGraph.refreshGraph(context, mMethods);
-      mSorted = true;
-    }
+    return select(name, context, arg).invoke(context, arg);
+  }
+  
+  /**
+   * Selects the best method for the given argument.
+   */
+  public Callable select(String name, Context context, Obj arg) {
+    MethodGraph graph = refresh(context);
     
     // Select the best method.
-    Callable method = mGraph.select(name, context, arg);
+    Callable method = graph.select(name, context, arg);
+    if (method == null) throw noMethod(name, context, arg);
+
+    return method;
+  }
+  
+  /**
+   * Selects the best method for the record (left, right), without creating it
+   * if possible.
+   */
+  public Callable select(String name, Context context, Obj left, Obj right) {
+    MethodGraph graph = refresh(context);
     
+    Callable method = graph.select(name, context, left, right);
     if (method == null) {
-      context.error(Name.NO_METHOD_ERROR, 
-          "Could not find a method \"" + name + "\" that matches argument " +
-          arg + ".");
+      throw noMethod(name, context, context.toObj(left, right));
     }
 
-    return method.invoke(context, arg);
+    return method;
+  }
+  
+  private MethodGraph refresh(Context context) {
+    if (!mSorted) {
+      synchronized (this) {
+        if (!mSorted) {
+          mGraph = new MethodGraph(context, mMethods, mGraph);
+          mSorted = true;
+        }
+      }
+    }
+    
+    return mGraph;
   }
   
+  private ErrorException noMethod(String name, Context context, Obj arg) {
+    return context.error(Name.NO_METHOD_ERROR, 
+        "Could not find a method \"" + name + "\" that matches argument " +
+        arg + ".");
+  }
+  
+  private static final AtomicInteger sEpoch = new AtomicInteger();
+  
   private final String mDoc;
-  private boolean mSorted = false;
-  private final MethodGraph mGraph = new MethodGraph();
-  private List<Callable> mMethods = new ArrayList<Callable>();
+  private volatile boolean mSorted = false;
+  private volatile int mVersion = 0;
+  private volatile MethodGraph mGraph;
+  private final List<Callable> mMethods = new CopyOnWriteArrayList<Callable>();
 }
@@ -19,6 +19,7 @@ public final class Name {
   public static final String IT = "it";
   public static final String ITERATE = "iterate";
   public static final String INITIALIZATION_ERROR = "InitializationError";
+  public static final String INTERRUPTED_ERROR = "InterruptedError";
   public static final String NEW = "new";
   public static final String NEXT = "next";
   public static final String NO_MATCH_ERROR = "NoMatchError";
@@ -44,9 +45,20 @@ public final class Name {
   }
   
   public static String getTupleField(int index) {
+    // Share the strings for the common ones, so that looking up a field by
+    // name can usually just compare references.
+    if (index < sTupleFields.length) return sTupleFields[index];
     return Integer.toString(index);
   }
   
+  private static final String[] sTupleFields = new String[16];
+  
+  static {
+    for (int i = 0; i < sTupleFields.length; i++) {
+      sTupleFields[i] = Integer.toString(i).intern();
+    }
+  }
+  
   private Name() {
   }
 }
@@ -1,7 +1,8 @@
 package com.stuffwithstuff.magpie.interpreter;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -9,6 +10,14 @@ import com.stuffwithstuff.magpie.util.Expect;
 
 public class Obj {  
   public Obj(ClassObj classObj, Object value) {
+    this(classObj, value, Shape.EMPTY);
+  }
+  
+  /**
+   * Creates a new object whose fields will be laid out starting with the given
+   * shape. The fields in the shape start out unset.
+   */
+  public Obj(ClassObj classObj, Object value, Shape shape) {
     if (classObj == null) {
       // If we are a class, we're our own class.
       mClass = (this instanceof ClassObj) ? (ClassObj)this : null;
@@ -17,6 +26,8 @@ public class Obj {
     }
     
     mValue = value;
+    mShape = shape;
+    mSlots = (shape.size() == 0) ? NO_SLOTS : new Obj[shape.size()];
   }
   
   public Obj(ClassObj classObj) {
@@ -37,15 +48,26 @@ public class Obj {
    * @return The value or null if there is no field with that name.
    */
   public Obj getField(String name) {
-    return mFields.get(name);
+    int slot = mShape.indexOf(name);
+    if (slot == -1) return null;
+    return mSlots[slot];
   }
   
   public Obj getField(int index) {
     return getField(Name.getTupleField(index));
   }
 
+  /**
+   * Gets a copy of the fields that have been set, in the order they were
+   * added.
+   */
   public Map<String, Obj> getFields() {
-    return mFields;
+    Map<String, Obj> fields = new LinkedHashMap<String, Obj>();
+    for (int i = 0; i < mSlots.length; i++) {
+      if (mSlots[i] != null) fields.put(mShape.getName(i), mSlots[i]);
+    }
+    
+    return fields;
   }
   
   /**
@@ -54,7 +76,37 @@ public class Obj {
    * @param member The fields's value.
    */
   public void setField(String name, Obj field) {
-    mFields.put(name, field);
+    int slot = mShape.indexOf(name);
+    if (slot == -1) {
+      // Adding a new field, so move to a new shape.
+      slot = mShape.size();
+      mShape = mShape.with(name);
+      if (slot == mSlots.length) {
+        mSlots = Arrays.copyOf(mSlots, Math.max(slot * 2, 2));
+      }
+    }
+    
+    mSlots[slot] = field;
+  }
+  
+  /**
+   * Gets the layout of this object's fields.
+   */
+  public Shape getShape() { return mShape; }
+  
+  /**
+   * Gets the value of the field in the given slot of this object's shape, or
+   * null if it hasn't been set.
+   */
+  public Obj getSlot(int slot) {
+    return mSlots[slot];
+  }
+  
+  /**
+   * Sets the field in the given slot of this object's shape.
+   */
+  public void setSlot(int slot, Obj field) {
+    mSlots[slot] = field;
   }
   
   public Object getValue() {
@@ -140,7 +192,7 @@ public class Obj {
       } else {
         // TODO(bob): Hack.
         keys = new ArrayList<String>();
-        for (String key : mFields.keySet()) {
+        for (String key : getFields().keySet()) {
           keys.add(key);
         }
       }
@@ -152,7 +204,7 @@ public class Obj {
         if (!key.equals(Integer.toString(i))) {
           builder.append(key).append(": ");
         }
-        builder.append(mFields.get(key));
+        builder.append(getField(key));
       }
             
       return builder.toString();
@@ -166,7 +218,10 @@ public class Obj {
     return "Instance of " + mClass.getName();
   }
   
+  private static final Obj[] NO_SLOTS = new Obj[0];
+  
   private ClassObj mClass;
   private Object mValue;
-  private final Map<String, Obj> mFields = new HashMap<String, Obj>();
+  private Shape mShape;
+  private Obj[] mSlots;
 }
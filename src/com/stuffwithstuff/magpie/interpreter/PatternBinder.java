@@ -1,7 +1,5 @@
 package com.stuffwithstuff.magpie.interpreter;
 
-import java.util.Map.Entry;
-
 import com.stuffwithstuff.magpie.ast.pattern.*;
 
 /**
@@ -15,12 +13,32 @@ public class PatternBinder implements PatternVisitor<Void, Obj>  {
     pattern.accept(binder, value);
   }
 
+  /**
+   * Binds the pattern to the record (left, right) without creating the record
+   * unless the pattern needs the whole thing.
+   */
+  public static void bind(Context context, boolean isMutable, Pattern pattern,
+      Obj left, Obj right, Scope scope) {
+    int[] positions = PatternTester.getBinaryPositions(pattern);
+    if (positions == null) {
+      bind(context, isMutable, pattern, context.toObj(left, right), scope);
+      return;
+    }
+    
+    PatternBinder binder = new PatternBinder(isMutable, context, scope);
+    Pattern[] patterns = ((RecordPattern) pattern).getFieldPatterns();
+    for (int i = 0; i < patterns.length; i++) {
+      patterns[i].accept(binder, (positions[i] == 0) ? left : right);
+    }
+  }
+
   @Override
   public Void visit(RecordPattern pattern, Obj value) {
     // Destructure each field.
-    for (Entry<String, Pattern> field : pattern.getFields().entrySet()) {
-      Obj fieldValue = value.getField(field.getKey());
-      field.getValue().accept(this, fieldValue);
+    FieldSlot[] slots = pattern.getFieldSlots();
+    Pattern[] patterns = pattern.getFieldPatterns();
+    for (int i = 0; i < slots.length; i++) {
+      patterns[i].accept(this, slots[i].get(value));
     }
     
     return null;
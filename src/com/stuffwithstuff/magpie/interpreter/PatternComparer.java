@@ -190,8 +190,12 @@ public class PatternComparer {
   
   private Result compareTypes(Pattern pattern1, Scope scope1,
       Pattern pattern2, Scope scope2) {
-    Obj type1 = mContext.evaluate(((TypePattern)pattern1).getType(), scope1);
-    Obj type2 = mContext.evaluate(((TypePattern)pattern2).getType(), scope2);
+    TypePattern typePattern1 = (TypePattern)pattern1;
+    TypePattern typePattern2 = (TypePattern)pattern2;
+    Obj type1 = typePattern1.getReference().evaluate(mContext,
+        typePattern1.getType(), scope1);
+    Obj type2 = typePattern2.getReference().evaluate(mContext,
+        typePattern2.getType(), scope2);
     
     // TODO(bob): WIP getting rid of types.
     if (type1 instanceof ClassObj && type2 instanceof ClassObj) {
@@ -201,6 +205,7 @@ public class PatternComparer {
       // Same class.
       if (class1 == class2) return Result.SAME;
       
+      // These are both binary searches of the classes' ancestor ids.
       if (class1.isSubclassOf(class2)) {
         // Class1 is a subclass, so it's more specific.
         return Result.GREATER;
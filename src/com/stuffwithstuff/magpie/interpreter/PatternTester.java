@@ -1,7 +1,5 @@
 package com.stuffwithstuff.magpie.interpreter;
 
-import java.util.Map.Entry;
-
 import com.stuffwithstuff.magpie.ast.pattern.*;
 
 /**
@@ -15,13 +13,49 @@ public class PatternTester implements PatternVisitor<Boolean, Obj> {
     return pattern.accept(binder, value);
   }
   
+  /**
+   * Tests the pattern against the record (left, right) without creating the
+   * record unless the pattern needs the whole thing.
+   */
+  public static boolean test(Context context, Pattern pattern,
+      Obj left, Obj right, Scope scope) {
+    int[] positions = getBinaryPositions(pattern);
+    if (positions == null) {
+      return test(context, pattern, context.toObj(left, right), scope);
+    }
+    
+    PatternTester tester = new PatternTester(context, scope);
+    Pattern[] patterns = ((RecordPattern) pattern).getFieldPatterns();
+    for (int i = 0; i < patterns.length; i++) {
+      Obj value = (positions[i] == 0) ? left : right;
+      if (!patterns[i].accept(tester, value)) return false;
+    }
+    
+    return true;
+  }
+  
+  /**
+   * If the pattern can be matched against the fields of a (left, right)
+   * record separately, gets the position of each of its fields. Otherwise
+   * returns null.
+   */
+  static int[] getBinaryPositions(Pattern pattern) {
+    if (!(pattern instanceof RecordPattern)) return null;
+    
+    int[] positions = ((RecordPattern) pattern).getFieldPositions();
+    if ((positions == null) || (positions.length > 2)) return null;
+    return positions;
+  }
+  
   @Override
   public Boolean visit(RecordPattern pattern, Obj value) {
     // Test each field.
-    for (Entry<String, Pattern> field : pattern.getFields().entrySet()) {
-      Obj fieldValue = value.getField(field.getKey());
+    FieldSlot[] slots = pattern.getFieldSlots();
+    Pattern[] patterns = pattern.getFieldPatterns();
+    for (int i = 0; i < slots.length; i++) {
+      Obj fieldValue = slots[i].get(value);
       if (fieldValue == null) return false;
-      if (!field.getValue().accept(this, fieldValue)) return false;
+      if (!patterns[i].accept(this, fieldValue)) return false;
     }
     
     // If we got here, the fields all passed.
@@ -30,13 +64,15 @@ public class PatternTester implements PatternVisitor<Boolean, Obj> {
   
   @Override
   public Boolean visit(TypePattern pattern, Obj value) {
-    Obj expected = mContext.evaluate(pattern.getType(), mScope);
+    Obj expected = pattern.getReference().evaluate(mContext,
+        pattern.getType(), mScope);
     return value.getClassObj().isSubclassOf((ClassObj)expected);
   }
   
   @Override
   public Boolean visit(ValuePattern pattern, Obj value) {
-    Obj expected = mContext.evaluate(pattern.getValue(), mScope);
+    Obj expected = pattern.getReference().evaluate(mContext,
+        pattern.getValue(), mScope);
     return mContext.objectsEqual(expected, value);
   }
 
@@ -1,101 +1,282 @@
 package com.stuffwithstuff.magpie.interpreter;
 
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 import com.stuffwithstuff.magpie.parser.Position;
 
+/**
+ * A profiler for Magpie functions. Each thread records a tree of the call
+ * paths it has taken: one node for each distinct path from the root to a
+ * function, with the number of calls and the total time spent in it. Nodes
+ * are keyed on the Position of the function, so building the tree doesn't
+ * allocate once a path has been seen. Labels are only made when the results
+ * are displayed.
+ *
+ * When the program is done, the trees from every thread are merged. The
+ * results are shown as a table of the functions with the most exclusive time,
+ * and can also be written as collapsed stacks ("a;b;c 123" per line) for
+ * flame graph tools.
+ *
+ * When profiling is off, push() and pop() return after checking one static
+ * field, which is only written before the program starts.
+ */
 public class Profiler {
   public static void setEnabled(boolean enable) {
     sEnabled = enable;
   }
-  
+
+  /**
+   * Sets the path of a file to write collapsed stacks to when the results
+   * are displayed. Also enables profiling.
+   */
+  public static void setCollapsedStackFile(String path) {
+    sCollapsedStackFile = path;
+    sEnabled = true;
+  }
+
   public static void display() {
     if (!sEnabled) return;
-    
-    List<Profile> profiles = new ArrayList<Profile>(sTimes.values());
+
+    Node root = merge();
+
+    List<Profile> profiles = new ArrayList<Profile>(
+        summarize(root).values());
     Collections.sort(profiles, new Comparator<Profile>() {
       public int compare(Profile e1, Profile e2) {
-        long excluded1 = e1.elapsed - e1.excluded;
-        long excluded2 = e2.elapsed - e2.excluded;
-        return (int)(excluded1 - excluded2);
+        // Least to most, so the slowest are closest to the prompt.
+        if (e1.exclusive < e2.exclusive) return -1;
+        if (e1.exclusive > e2.exclusive) return 1;
+        return 0;
       }
     });
 
-    String format = "%-40s %6s %10s %10s %10s\n";
+    String format = "%-40s %8s %12s %12s %10s\n";
     System.out.format(format, "Location", "Calls", "Elapsed ms", "Exclus. ms",
-        "Average μs");
+        "Average us");
     System.out.format(format, "--------", "-----", "----------", "----------",
         "----------");
     for (Profile profile : profiles) {
-      long exclusive = profile.elapsed - profile.excluded;
-      double average = 1000.0 * exclusive / profile.calls;
-      System.out.format(format, profile.label, profile.calls, profile.elapsed,
-          exclusive, String.format("%.2f", average));
+      double average = profile.exclusive / 1000.0 / profile.calls;
+      System.out.format(format, profile.label, profile.calls,
+          String.format("%.3f", profile.inclusive / 1000000.0),
+          String.format("%.3f", profile.exclusive / 1000000.0),
+          String.format("%.2f", average));
+    }
+
+    if (sCollapsedStackFile != null) {
+      try {
+        writeCollapsedStacks(root, sCollapsedStackFile);
+      } catch (IOException ex) {
+        System.out.println("Could not write " + sCollapsedStackFile);
+      }
     }
   }
-  
+
   public static void push(Position position) {
     if (!sEnabled) return;
-    
-    FunctionCall call = new FunctionCall();
-    call.label = position.getSourceFile() + ":" + position.getStartLine();
-    call.start = System.currentTimeMillis();
-    sOngoing.push(call);
-    
-    if (sOngoing.size() > 100) {
-      System.out.println();
-    }
+
+    sThreads.get().push(position);
   }
-  
+
   public static void pop() {
     if (!sEnabled) return;
-    
-    FunctionCall call = sOngoing.pop();
-    long elapsed = System.currentTimeMillis() - call.start;
-    
-    // Update the profile for this function.
-    Profile profile = sTimes.get(call.label);
-    if (profile == null) {
-      profile = new Profile();
-      profile.label = call.label;
-      sTimes.put(call.label, profile);
-    }
-
-    profile.elapsed += elapsed;
-    profile.excluded += call.excluded;
-    profile.calls++;
-    
-    // Exclude its time from the caller.
-    if (sOngoing.size() > 0) {
-      sOngoing.peek().excluded += elapsed;
+
+    sThreads.get().pop();
+  }
+
+  /**
+   * Merges the call trees of every thread into one.
+   */
+  private static Node merge() {
+    Node root = new Node(null, null);
+    synchronized (sProfiles) {
+      for (ThreadProfile profile : sProfiles) {
+        merge(root, profile.root);
+      }
     }
+
+    return root;
   }
-  
-  private static class FunctionCall {
-    public String label;
-    public long   start;
-    public long   excluded;
-    
-    @Override
-    public String toString() {
-      return label;
+
+  private static void merge(Node into, Node from) {
+    into.calls += from.calls;
+    into.elapsed += from.elapsed;
+
+    if (from.children == null) return;
+    for (Node child : from.children.values()) {
+      merge(into.getChild(child.position), child);
+    }
+  }
+
+  /**
+   * Adds up the time spent in each function, across all of the paths it was
+   * called from.
+   */
+  private static Map<Position, Profile> summarize(Node root) {
+    Map<Position, Profile> profiles = new IdentityHashMap<Position, Profile>();
+    summarize(root, profiles, new IdentityHashMap<Position, Boolean>());
+    return profiles;
+  }
+
+  private static void summarize(Node node, Map<Position, Profile> profiles,
+      Map<Position, Boolean> active) {
+    boolean isRecursive = false;
+    if (node.position != null) {
+      Profile profile = profiles.get(node.position);
+      if (profile == null) {
+        profile = new Profile();
+        profile.label = node.getLabel();
+        profiles.put(node.position, profile);
+      }
+
+      profile.calls += node.calls;
+      profile.exclusive += node.getExclusive();
+
+      // Don't count time in a recursive call twice.
+      isRecursive = active.containsKey(node.position);
+      if (!isRecursive) {
+        profile.inclusive += node.elapsed;
+        active.put(node.position, true);
+      }
+    }
+
+    if (node.children != null) {
+      for (Node child : node.children.values()) {
+        summarize(child, profiles, active);
+      }
+    }
+
+    if ((node.position != null) && !isRecursive) active.remove(node.position);
+  }
+
+  private static void writeCollapsedStacks(Node root, String path)
+      throws IOException {
+    PrintWriter writer = new PrintWriter(new FileWriter(path));
+    try {
+      writeCollapsedStacks(writer, root, "");
+    } finally {
+      writer.close();
     }
   }
-  
+
+  private static void writeCollapsedStacks(PrintWriter writer, Node node,
+      String stack) {
+    if (node.position != null) {
+      // Flame graph tools split frames on ";".
+      String label = node.getLabel().replace(';', ',');
+      stack = (stack.length() == 0) ? label : stack + ";" + label;
+
+      long microseconds = node.getExclusive() / 1000;
+      if (microseconds > 0) writer.println(stack + " " + microseconds);
+    }
+
+    if (node.children != null) {
+      for (Node child : node.children.values()) {
+        writeCollapsedStacks(writer, child, stack);
+      }
+    }
+  }
+
+  /**
+   * One call path. The root node has no position and isn't timed.
+   */
+  private static class Node {
+    public Node(Node parent, Position position) {
+      this.parent = parent;
+      this.position = position;
+    }
+
+    public Node getChild(Position position) {
+      if (children == null) {
+        children = new IdentityHashMap<Position, Node>();
+      }
+
+      Node child = children.get(position);
+      if (child == null) {
+        child = new Node(this, position);
+        children.put(position, child);
+      }
+
+      return child;
+    }
+
+    public long getExclusive() {
+      long exclusive = elapsed;
+      if (children != null) {
+        for (Node child : children.values()) {
+          exclusive -= child.elapsed;
+        }
+      }
+
+      return exclusive;
+    }
+
+    public String getLabel() {
+      return position.getSourceFile() + ":" + position.getStartLine();
+    }
+
+    public final Node parent;
+    public final Position position;
+    public Map<Position, Node> children;
+    public int calls;
+    public long elapsed;
+    public long start;
+  }
+
+  /**
+   * The call tree for one thread, and where it currently is in it.
+   */
+  private static class ThreadProfile {
+    public void push(Position position) {
+      Node node = current.getChild(position);
+      node.calls++;
+      node.start = System.nanoTime();
+      current = node;
+    }
+
+    public void pop() {
+      // Ignore calls that started before profiling was enabled.
+      if (current == root) return;
+
+      current.elapsed += System.nanoTime() - current.start;
+      current = current.parent;
+    }
+
+    public final Node root = new Node(null, null);
+    public Node current = root;
+  }
+
   private static class Profile {
     public String label;
-    public long   elapsed;
-    public long   excluded;
     public int    calls;
+    public long   inclusive;
+    public long   exclusive;
   }
-  
+
+  // Not volatile, so that checking it costs nothing when profiling is off. It
+  // is only set before the program starts running.
   private static boolean sEnabled = false;
-  private static final Stack<FunctionCall> sOngoing = new Stack<FunctionCall>();
-  private static final Map<String, Profile> sTimes = new HashMap<String, Profile>();
+  private static String sCollapsedStackFile;
+
+  private static final List<ThreadProfile> sProfiles =
+      new ArrayList<ThreadProfile>();
+  private static final ThreadLocal<ThreadProfile> sThreads =
+      new ThreadLocal<ThreadProfile>() {
+    @Override
+    protected ThreadProfile initialValue() {
+      ThreadProfile profile = new ThreadProfile();
+      synchronized (sProfiles) {
+        sProfiles.add(profile);
+      }
+      return profile;
+    }
+  };
 }
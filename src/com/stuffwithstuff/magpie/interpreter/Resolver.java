@@ -0,0 +1,561 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+
+import com.stuffwithstuff.magpie.ast.*;
+import com.stuffwithstuff.magpie.ast.pattern.*;
+import com.stuffwithstuff.magpie.util.Pair;
+
+/**
+ * Static pass that runs between the parser and the evaluator. It walks an
+ * expression and figures out which local scope and slot each NameExpr and
+ * AssignExpr refers to, so that the evaluator can find local variables by
+ * index instead of looking them up by name in each scope.
+ *
+ * The resolver mirrors exactly where ExprEvaluator pushes new scopes and in
+ * what order variables get defined in them. Names that aren't declared in any
+ * enclosing local scope (module-level variables, imports, etc.) are left
+ * unresolved and are looked up by name as before.
+ *
+ * Resolution is only a hint. Variables can be referenced before they are
+ * defined in a scope, or defined by code the resolver never saw, so Scope
+ * validates a resolved slot at runtime and falls back to the name if it
+ * doesn't match.
+ *
+ * The resolver also picks the variables that the bytecode VM can keep in
+ * registers instead of Scopes. That's only safe for a variable that nothing
+ * but the compiled code of its own function body will ever see, so it must
+ * be declared once by a plain "var" or "val", and never be captured by a
+ * closure, used in a pattern, visible to code the VM hands to the evaluator
+ * (classes, imports and quotations), or used before it's defined.
+ */
+public class Resolver implements ExprVisitor<Void, Resolver.LocalScope> {
+  /**
+   * Resolves the local variables in an expression that will be evaluated
+   * directly in a module's top-level scope.
+   */
+  public static void resolve(Expr expr) {
+    Resolver resolver = new Resolver();
+    resolver.resolve(expr, null);
+    resolver.resolveNames();
+  }
+
+  @Override
+  public Void visit(ArrayExpr expr, LocalScope scope) {
+    for (Expr element : expr.getElements()) {
+      resolve(element, scope);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(AssignExpr expr, LocalScope scope) {
+    resolve(expr.getValue(), scope);
+    addReference(new Reference(expr, expr.getName(), scope));
+    return null;
+  }
+
+  @Override
+  public Void visit(BoolExpr expr, LocalScope scope) {
+    return null;
+  }
+
+  @Override
+  public Void visit(BreakExpr expr, LocalScope scope) {
+    return null;
+  }
+
+  @Override
+  public Void visit(CallExpr expr, LocalScope scope) {
+    resolve(expr.getArg(), scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(ClassExpr expr, LocalScope scope) {
+    // Field initializers are wrapped in functions whose closure is the scope
+    // where the class is defined.
+    for (Field field : expr.getFields().values()) {
+      if (field.getInitializer() != null) {
+        resolve(field.getInitializer(), pushBody(scope));
+      }
+    }
+
+    // The class itself is created by the evaluator, which looks up its
+    // parents and field types by name.
+    makeDynamic(scope);
+    declare(scope, expr.getName());
+    return null;
+  }
+
+  @Override
+  public Void visit(FnExpr expr, LocalScope scope) {
+    resolveFunction(expr.getPattern(), expr.getBody(), scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(ImportExpr expr, LocalScope scope) {
+    // Imports define names dynamically, so they can't be resolved.
+    makeDynamic(scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(IntExpr expr, LocalScope scope) {
+    return null;
+  }
+
+  @Override
+  public Void visit(LoopExpr expr, LocalScope scope) {
+    // Each iteration of the body gets its own scope.
+    resolve(expr.getBody(), push(scope));
+    return null;
+  }
+
+  @Override
+  public Void visit(MatchExpr expr, LocalScope scope) {
+    // The value is evaluated in its own scope.
+    scope = push(scope);
+    resolve(expr.getValue(), scope);
+    resolveCases(expr.getCases(), scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(MethodExpr expr, LocalScope scope) {
+    if (expr.getBody() != null) {
+      resolveFunction(expr.getPattern(), expr.getBody(), scope);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(NameExpr expr, LocalScope scope) {
+    addReference(new Reference(expr, expr.getName(), scope));
+    return null;
+  }
+
+  @Override
+  public Void visit(NothingExpr expr, LocalScope scope) {
+    return null;
+  }
+
+  @Override
+  public Void visit(QuoteExpr expr, LocalScope scope) {
+    // The body isn't evaluated, and unquoted expressions inside it are
+    // evaluated after being converted, so leave them unresolved.
+    makeDynamic(scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(RecordExpr expr, LocalScope scope) {
+    for (Pair<String, Expr> field : expr.getFields()) {
+      resolve(field.getValue(), scope);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(ReturnExpr expr, LocalScope scope) {
+    resolve(expr.getValue(), scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(ScopeExpr expr, LocalScope scope) {
+    // Note that the catch clauses are evaluated in the body's scope.
+    scope = push(scope);
+    if (expr.getCatches() != null && !expr.getCatches().isEmpty()) {
+      // A catch clause can run before the body has defined its variables.
+      scope.mHasCatches = true;
+    }
+    resolve(expr.getBody(), scope);
+    resolveCases(expr.getCatches(), scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(SequenceExpr expr, LocalScope scope) {
+    for (Expr element : expr.getExpressions()) {
+      resolve(element, scope);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(StringExpr expr, LocalScope scope) {
+    return null;
+  }
+
+  @Override
+  public Void visit(ThrowExpr expr, LocalScope scope) {
+    resolve(expr.getValue(), scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(UnquoteExpr expr, LocalScope scope) {
+    makeDynamic(scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(VarExpr expr, LocalScope scope) {
+    resolve(expr.getValue(), scope);
+    expr.resolveRegister(-1);
+
+    // Only a plain "var name = value" can go in a register.
+    if (expr.getPattern() instanceof VariablePattern) {
+      VariablePattern pattern = (VariablePattern) expr.getPattern();
+      if (!pattern.getName().equals("_") &&
+          (pattern.getPattern() instanceof WildcardPattern)) {
+        declare(scope, pattern.getName(), expr);
+        return null;
+      }
+    }
+
+    resolvePattern(expr.getPattern(), scope, scope);
+    return null;
+  }
+
+  /**
+   * A local scope at resolution time. Tracks the names that will be defined
+   * in it, in the order they will be defined. A null LocalScope means a
+   * module's top-level scope, which isn't resolved.
+   */
+  static class LocalScope {
+    public LocalScope(LocalScope parent, Body body) {
+      mParent = parent;
+      mBody = body;
+    }
+
+    public final LocalScope mParent;
+    public final Body mBody;
+    public final List<String> mNames = new ArrayList<String>();
+
+    // When each name was first declared, in the order the resolver visits
+    // references.
+    public final Map<String, Integer> mDeclared =
+        new HashMap<String, Integer>();
+
+    // The plain "var" that declared each name, if that's all that did.
+    public final Map<String, VarExpr> mVariables =
+        new LinkedHashMap<String, VarExpr>();
+
+    public final Map<String, Integer> mRegisters =
+        new HashMap<String, Integer>();
+
+    // Whether code the resolver can't see may look up names in this scope.
+    public boolean mIsDynamic = false;
+    public boolean mHasCatches = false;
+  }
+
+  /**
+   * The body of a function or a top-level expression, which the VM compiles
+   * to one chunk with its own registers.
+   */
+  private static class Body {
+    // Names that can't go in this body's registers.
+    public final Set<String> mInScope = new HashSet<String>();
+    public int mNumRegisters = 0;
+  }
+
+  /**
+   * A NameExpr or AssignExpr and the scope it appears in.
+   */
+  private static class Reference {
+    public Reference(Expr expr, String name, LocalScope scope) {
+      this.expr = expr;
+      this.name = name;
+      this.scope = scope;
+    }
+
+    public final Expr expr;
+    public final String name;
+    public final LocalScope scope;
+    public int order;
+    public boolean inPattern;
+  }
+
+  private Resolver() {
+  }
+
+  /**
+   * Creates a new local scope in the same function body as the given one.
+   */
+  private LocalScope push(LocalScope scope) {
+    LocalScope local = new LocalScope(scope,
+        (scope == null) ? mTopLevel : scope.mBody);
+    mScopes.add(local);
+    return local;
+  }
+
+  /**
+   * Creates the local scope for a new function body inside the given scope.
+   */
+  private LocalScope pushBody(LocalScope scope) {
+    LocalScope local = new LocalScope(scope, new Body());
+    mScopes.add(local);
+    return local;
+  }
+
+  private void resolve(Expr expr, LocalScope scope) {
+    if (expr == null) return;
+    expr.accept(this, scope);
+  }
+
+  private void resolveFunction(Pattern pattern, Expr body, LocalScope scope) {
+    // The parameter pattern is tested in the closure's scope, but binds its
+    // variables in the function's own scope.
+    LocalScope fnScope = pushBody(scope);
+    resolvePattern(pattern, scope, fnScope);
+    resolve(body, fnScope);
+  }
+
+  private void resolveCases(List<MatchCase> cases, LocalScope scope) {
+    if (cases == null) return;
+
+    for (MatchCase matchCase : cases) {
+      LocalScope caseScope = push(scope);
+      resolvePattern(matchCase.getPattern(), scope, caseScope);
+      resolve(matchCase.getBody(), caseScope);
+    }
+  }
+
+  /**
+   * Resolves the expressions inside a pattern and declares the variables it
+   * binds.
+   *
+   * @param pattern    The pattern.
+   * @param testScope  The scope where the pattern's expressions are evaluated.
+   * @param bindScope  The scope where its variables will be bound.
+   */
+  private void resolvePattern(Pattern pattern, LocalScope testScope,
+      LocalScope bindScope) {
+    if (pattern == null) return;
+
+    if (pattern instanceof RecordPattern) {
+      // Note: this must visit the fields in the same order as PatternBinder.
+      for (Entry<String, Pattern> field :
+          ((RecordPattern) pattern).getFields().entrySet()) {
+        resolvePattern(field.getValue(), testScope, bindScope);
+      }
+    } else if (pattern instanceof TypePattern) {
+      resolveInPattern(((TypePattern) pattern).getType(), testScope);
+    } else if (pattern instanceof ValuePattern) {
+      resolveInPattern(((ValuePattern) pattern).getValue(), testScope);
+    } else if (pattern instanceof VariablePattern) {
+      VariablePattern variable = (VariablePattern) pattern;
+      if (!variable.getName().equals("_")) {
+        declare(bindScope, variable.getName());
+      }
+      resolvePattern(variable.getPattern(), testScope, bindScope);
+    }
+  }
+
+  /**
+   * Resolves an expression that a pattern contains. PatternTester evaluates
+   * it, so the variables it uses must be in Scopes.
+   */
+  private void resolveInPattern(Expr expr, LocalScope scope) {
+    int first = mReferences.size();
+    resolve(expr, scope);
+
+    for (int i = first; i < mReferences.size(); i++) {
+      mReferences.get(i).inPattern = true;
+    }
+  }
+
+  private void declare(LocalScope scope, String name) {
+    declare(scope, name, null);
+  }
+
+  /**
+   * Declares a name in the scope. If it's declared by a plain "var", that's
+   * the VarExpr.
+   */
+  private void declare(LocalScope scope, String name, VarExpr expr) {
+    if (scope == null) return;
+
+    if (scope.mNames.contains(name)) {
+      // Redefining it is an error at runtime, which a register would hide.
+      scope.mBody.mInScope.add(name);
+      return;
+    }
+
+    scope.mNames.add(name);
+    scope.mDeclared.put(name, mOrder++);
+
+    if (expr != null && mVariables.put(expr, scope) == null) {
+      scope.mVariables.put(name, expr);
+    } else {
+      scope.mBody.mInScope.add(name);
+      if (expr != null) mVariables.get(expr).mBody.mInScope.add(name);
+    }
+  }
+
+  private void addReference(Reference reference) {
+    reference.order = mOrder++;
+    mReferences.add(reference);
+  }
+
+  /**
+   * Notes that the evaluator may look up any name in the scope and the ones
+   * enclosing it, so they can't be kept in registers.
+   */
+  private void makeDynamic(LocalScope scope) {
+    while (scope != null) {
+      scope.mIsDynamic = true;
+      scope = scope.mParent;
+    }
+  }
+
+  /**
+   * Once every scope has been filled in, resolves each name against the
+   * scopes that enclose it. This is done at the end so that a name can refer
+   * to a variable declared later in an outer scope, like a function that uses
+   * a variable defined after it.
+   */
+  private void resolveNames() {
+    // If the parser reused a node in more than one place, it may live in
+    // different scopes, so leave it unresolved to be safe.
+    Map<Expr, Boolean> shared = new IdentityHashMap<Expr, Boolean>();
+    Map<Expr, Boolean> seen = new IdentityHashMap<Expr, Boolean>();
+    for (Reference reference : mReferences) {
+      if (seen.put(reference.expr, true) != null) {
+        shared.put(reference.expr, true);
+      }
+    }
+
+    // Rule out registers for the variables that something other than their
+    // own function body's code may see.
+    for (Reference reference : mReferences) {
+      if (shared.containsKey(reference.expr)) {
+        // It will be looked up by name, which must find it in a Scope.
+        LocalScope scope = reference.scope;
+        while (scope != null) {
+          scope.mBody.mInScope.add(reference.name);
+          scope = scope.mParent;
+        }
+        continue;
+      }
+
+      LocalScope scope = find(reference.name, reference.scope);
+      if (scope == null) continue;
+
+      if ((scope.mBody != reference.scope.mBody) ||
+          reference.inPattern ||
+          (reference.order < scope.mDeclared.get(reference.name)) ||
+          isImmutableAssign(reference, scope)) {
+        scope.mBody.mInScope.add(reference.name);
+      }
+    }
+
+    for (LocalScope scope : mScopes) {
+      if (scope.mIsDynamic || scope.mHasCatches) {
+        scope.mBody.mInScope.addAll(scope.mNames);
+      }
+    }
+
+    // Allocate the registers.
+    for (LocalScope scope : mScopes) {
+      for (Entry<String, VarExpr> variable : scope.mVariables.entrySet()) {
+        String name = variable.getKey();
+        Body body = scope.mBody;
+        if (body.mInScope.contains(name)) continue;
+        if (body.mNumRegisters == MAX_REGISTERS) continue;
+
+        int register = body.mNumRegisters++;
+        scope.mRegisters.put(name, register);
+        variable.getValue().resolveRegister(register);
+      }
+    }
+
+    for (Reference reference : mReferences) {
+      if (shared.containsKey(reference.expr)) {
+        resolve(reference.expr, -1, -1, -1, -1);
+        continue;
+      }
+
+      int depth = 0;
+      LocalScope scope = reference.scope;
+      while (scope != null) {
+        int slot = scope.mNames.indexOf(reference.name);
+        if (slot != -1) {
+          // The VM's scopes don't have the variables kept in registers.
+          int vmSlot = slot;
+          for (int i = 0; i < slot; i++) {
+            if (scope.mRegisters.containsKey(scope.mNames.get(i))) vmSlot--;
+          }
+
+          Integer register = scope.mRegisters.get(reference.name);
+          resolve(reference.expr, depth, slot, vmSlot,
+              (register == null) ? -1 : register);
+          break;
+        }
+
+        depth++;
+        scope = scope.mParent;
+      }
+    }
+  }
+
+  /**
+   * Returns true if the reference assigns to a "val" declared in the scope.
+   * Assigning does nothing then, which a register wouldn't know.
+   */
+  private boolean isImmutableAssign(Reference reference, LocalScope scope) {
+    if (!(reference.expr instanceof AssignExpr)) return false;
+
+    VarExpr variable = scope.mVariables.get(reference.name);
+    return (variable != null) && !variable.isMutable();
+  }
+
+  private void resolve(Expr expr, int depth, int slot, int vmSlot,
+      int register) {
+    if (expr instanceof NameExpr) {
+      ((NameExpr) expr).resolve(depth, slot, vmSlot, register);
+    } else {
+      ((AssignExpr) expr).resolve(depth, slot, vmSlot, register);
+    }
+  }
+
+  /**
+   * Finds the local scope that declares the name, or returns null if it isn't
+   * a local variable.
+   */
+  private LocalScope find(String name, LocalScope scope) {
+    while (scope != null) {
+      if (scope.mNames.contains(name)) return scope;
+      scope = scope.mParent;
+    }
+
+    return null;
+  }
+
+  /**
+   * A chunk uses one byte to refer to a register.
+   */
+  private static final int MAX_REGISTERS = 256;
+
+  private final Body mTopLevel = new Body();
+  private final List<LocalScope> mScopes = new ArrayList<LocalScope>();
+  private final List<Reference> mReferences = new ArrayList<Reference>();
+
+  // Which scope each plain "var" declares its name in.
+  private final Map<VarExpr, LocalScope> mVariables =
+      new IdentityHashMap<VarExpr, LocalScope>();
+
+  // Counts declarations and references, in the order they're evaluated.
+  private int mOrder = 0;
+}
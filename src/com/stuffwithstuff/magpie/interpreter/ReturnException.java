@@ -2,6 +2,11 @@ package com.stuffwithstuff.magpie.interpreter;
 
 import com.stuffwithstuff.magpie.util.Expect;
 
+/**
+ * This "exception" is used internally by the evaluator to implement "return".
+ * A return expression throws this, which is caught by the function being
+ * returned from.
+ */
 @SuppressWarnings("serial")
 public class ReturnException extends RuntimeException {
   public ReturnException(Obj value) {
@@ -12,5 +17,14 @@ public class ReturnException extends RuntimeException {
   
   public Obj getValue() { return mValue; }
   
+  /**
+   * This is used for control flow, not to report bugs, so there's no need to
+   * pay for capturing the Java stack.
+   */
+  @Override
+  public Throwable fillInStackTrace() {
+    return this;
+  }
+  
   private final Obj mValue;
 }
\ No newline at end of file
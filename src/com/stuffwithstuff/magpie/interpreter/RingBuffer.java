@@ -0,0 +1,107 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue that any number of threads can add to and remove from
+ * without locking or allocating. This is the buffer behind a Channel with a
+ * fixed capacity.
+ *
+ * Each slot has a sequence number that says whose turn it is. A slot at
+ * position p is free for the sender claiming p when its sequence is 2p, and
+ * holds a value for the receiver claiming p when its sequence is 2p + 1. The
+ * receiver then sets it to 2(p + capacity), which is when the slot will next
+ * be free. (Doubling keeps the two states apart even when the capacity is 1.)
+ * Senders and receivers claim positions by advancing mTail and mHead with a
+ * compare-and-set.
+ *
+ * It only has the operations a Channel needs. It isn't a Queue, since most of
+ * what that interface offers, like iterating or knowing the size, has no
+ * useful meaning while other threads are changing it.
+ */
+class RingBuffer {
+  public RingBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1.");
+    }
+
+    mItems = new Obj[capacity];
+    mSequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      mSequences.set(i, 2L * i);
+    }
+  }
+
+  /**
+   * Adds the item to the end of the queue if there's room.
+   *
+   * @return true if added, false if the queue is full.
+   */
+  public boolean offer(Obj item) {
+    long position = mTail.get();
+    while (true) {
+      int index = (int) (position % mItems.length);
+      long difference = mSequences.get(index) - 2 * position;
+
+      if (difference == 0) {
+        // The slot is free, so try to claim it.
+        if (mTail.compareAndSet(position, position + 1)) {
+          mItems[index] = item;
+          mSequences.set(index, 2 * position + 1);
+          return true;
+        }
+      } else if (difference < 0) {
+        // The slot still holds the value from a lap ago, so it's full.
+        return false;
+      }
+
+      // Another sender got here first.
+      position = mTail.get();
+    }
+  }
+
+  /**
+   * Removes the item at the front of the queue.
+   *
+   * @return The item, or null if the queue is empty.
+   */
+  public Obj poll() {
+    long position = mHead.get();
+    while (true) {
+      int index = (int) (position % mItems.length);
+      long difference = mSequences.get(index) - (2 * position + 1);
+
+      if (difference == 0) {
+        // The slot has a value, so try to claim it.
+        if (mHead.compareAndSet(position, position + 1)) {
+          Obj item = mItems[index];
+          mItems[index] = null;
+          mSequences.set(index, 2 * (position + mItems.length));
+          return item;
+        }
+      } else if (difference < 0) {
+        // Nothing has been sent to the slot yet, so it's empty.
+        return null;
+      }
+
+      // Another receiver got here first.
+      position = mHead.get();
+    }
+  }
+
+  /**
+   * Gets whether there is no item at the front of the queue. Since other
+   * threads may be adding and removing items, this is only a snapshot.
+   */
+  public boolean isEmpty() {
+    long position = mHead.get();
+    int index = (int) (position % mItems.length);
+    return mSequences.get(index) != 2 * position + 1;
+  }
+
+  private final Obj[] mItems;
+  private final AtomicLongArray mSequences;
+  private final AtomicLong mHead = new AtomicLong();
+  private final AtomicLong mTail = new AtomicLong();
+}
@@ -1,22 +1,69 @@
 package com.stuffwithstuff.magpie.interpreter;
 
-// TODO(bob): Pretty ghetto. Should at least use a thread pool.
-public class Routine extends Thread {
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A function running concurrently with the code that started it. The
+ * Scheduler decides which thread it runs on. The Routine itself is the handle
+ * returned to Magpie, which can wait for it to finish and get its result.
+ *
+ * If the function throws an error, it's kept here and thrown again by
+ * {@link #join} instead of being printed. If nothing ever joins the routine,
+ * the Scheduler reports the error when the program is done.
+ */
+public class Routine implements Runnable {
   public Routine(Context context, FnObj function) {
     mContext = context;
     mFunction = function;
   }
-  
+
   public void run() {
     try {
-    mFunction.invoke(mContext, mContext.nothing());
+      mResult = mFunction.invoke(mContext, mContext.nothing());
     } catch (ErrorException ex) {
-      // TODO(bob): How should this be handled?
-      System.out.println(String.format("Uncaught %s: %s",
-          ex.getError().getClassObj().getName(), ex.getError().getValue()));
+      mError = ex;
+    } finally {
+      mContext.getInterpreter().finishThread();
+      mDone.countDown();
     }
   }
-  
+
+  /**
+   * Gets whether the routine has finished running.
+   */
+  public boolean isDone() {
+    return mDone.getCount() == 0;
+  }
+
+  /**
+   * Waits for the routine to finish and returns the value its function
+   * returned. If the function threw an error, throws it again here.
+   */
+  public Obj join() throws InterruptedException {
+    mIsJoined = true;
+    Scheduler.await(mDone);
+
+    if (mError != null) throw mError;
+    return mResult;
+  }
+
+  /**
+   * Gets the error the function threw, if it has finished and threw one that
+   * nothing has joined the routine to see.
+   */
+  ErrorException getUnjoinedError() {
+    if (mIsJoined || !isDone()) return null;
+    return mError;
+  }
+
   private final Context mContext;
   private final FnObj mFunction;
+  private final CountDownLatch mDone = new CountDownLatch(1);
+
+  // Written before mDone is counted down, so visible to threads that waited
+  // on it.
+  private Obj mResult;
+  private ErrorException mError;
+
+  private volatile boolean mIsJoined = false;
 }
@@ -0,0 +1,308 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.stuffwithstuff.magpie.ast.FnExpr;
+import com.stuffwithstuff.magpie.parser.Position;
+
+/**
+ * A sampling profiler for Magpie code. Unlike the Profiler, it doesn't time
+ * each call, so small functions cost about the same whether it's running or
+ * not.
+ *
+ * While it's enabled, each thread keeps a shadow stack of the functions it's
+ * in and the position of the expression each of them is currently
+ * evaluating. The Interpreter keeps each thread's stack with the rest of its
+ * per-thread state, so none of this costs anything but a flag check when
+ * sampling is off. A daemon thread wakes up at a fixed rate and looks at the top of every
+ * thread's stack. The function on top gets a "self" sample, each
+ * function below it gets a "total" sample, and the position on top gets a
+ * line sample. When it's stopped, the functions and lines with the most
+ * samples are shown.
+ *
+ * The stacks are only written by their own thread and read by the sampler
+ * without any synchronization. A sample may be a little out of date, but it
+ * never blocks the thread being sampled. A routine's stack is dropped when
+ * it finishes.
+ */
+public class Sampler {
+  /**
+   * Starts sampling every running thread the given number of times per
+   * second.
+   */
+  public static void start(int rate) {
+    if (sThread != null) return;
+
+    sEnabled = true;
+    sThread = new SamplerThread(1000000000L / Math.max(rate, 1));
+    sThread.start();
+  }
+
+  /**
+   * Stops sampling and shows the results.
+   */
+  public static void display() {
+    if (sThread == null) return;
+
+    sEnabled = false;
+    sThread.interrupt();
+    try {
+      sThread.join();
+    } catch (InterruptedException ex) {
+      // Show what we have.
+    }
+
+    sThread.display();
+    sThread = null;
+  }
+
+  /**
+   * Pushes a call to the function onto the current thread's shadow stack.
+   *
+   * @return The stack to pass to {@link #exit}, or null if not sampling.
+   */
+  public static ShadowStack enter(Context context, FnExpr function) {
+    if (!sEnabled) return null;
+
+    ShadowStack stack = context.getInterpreter().getShadowStack();
+    stack.push(function);
+    return stack;
+  }
+
+  /**
+   * Pops the call pushed by the {@link #enter} that returned the stack.
+   */
+  public static void exit(ShadowStack stack) {
+    if (stack != null) stack.pop();
+  }
+
+  /**
+   * Notes that the function the current thread is in is about to evaluate
+   * the expression at the given position.
+   */
+  public static void line(Context context, Position position) {
+    if (!sEnabled) return;
+
+    context.getInterpreter().getShadowStack().line(position);
+  }
+
+  /**
+   * Creates a shadow stack for the current thread and starts sampling it.
+   */
+  static ShadowStack createStack() {
+    ShadowStack stack = new ShadowStack();
+    sAllStacks.add(stack);
+    return stack;
+  }
+
+  /**
+   * Stops sampling a stack whose thread is done running Magpie code.
+   */
+  static void releaseStack(ShadowStack stack) {
+    if (stack != null) sAllStacks.remove(stack);
+  }
+
+  /**
+   * The functions one thread is in, and where it is in each of them.
+   */
+  static class ShadowStack {
+    public void push(FnExpr function) {
+      int depth = mDepth;
+      if (depth == mFunctions.length) {
+        FnExpr[] functions = new FnExpr[depth * 2];
+        Position[] lines = new Position[depth * 2];
+        System.arraycopy(mFunctions, 0, functions, 0, depth);
+        System.arraycopy(mLines, 0, lines, 0, depth);
+        mFunctions = functions;
+        mLines = lines;
+      }
+
+      mFunctions[depth] = function;
+      mLines[depth] = function.getPosition();
+      mDepth = depth + 1;
+    }
+
+    public void pop() {
+      // Ignore calls that started before sampling was enabled.
+      if (mDepth > 0) mDepth--;
+    }
+
+    public void line(Position position) {
+      int depth = mDepth;
+      if (depth > 0) mLines[depth - 1] = position;
+    }
+
+    private FnExpr[] mFunctions = new FnExpr[64];
+    private Position[] mLines = new Position[64];
+    private int mDepth = 0;
+  }
+
+  private static class SamplerThread extends Thread {
+    public SamplerThread(long interval) {
+      super("Magpie sampler");
+      setDaemon(true);
+      mInterval = interval;
+    }
+
+    @Override
+    public void run() {
+      long next = System.nanoTime();
+      while (!isInterrupted()) {
+        for (ShadowStack stack : sAllStacks) {
+          sample(stack);
+        }
+
+        next += mInterval;
+        long wait = next - System.nanoTime();
+        if (wait > 0) {
+          try {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          } catch (InterruptedException ex) {
+            return;
+          }
+        } else {
+          // Fell behind, so don't try to catch up.
+          next = System.nanoTime();
+        }
+      }
+    }
+
+    public void display() {
+      System.out.println("Samples: " + mSamples);
+      if (mSamples == 0) return;
+
+      System.out.println();
+      String format = "%-40s %8s %8s %8s\n";
+      System.out.format(format, "Function", "Self", "Self %", "Total %");
+      System.out.format(format, "--------", "----", "------", "-------");
+      for (Count count : summarize(mFunctionCounts, TOP_FUNCTIONS)) {
+        System.out.format(format, count.label, count.self,
+            percent(count.self), percent(count.total));
+      }
+
+      System.out.println();
+      format = "%-40s %8s %8s\n";
+      System.out.format(format, "Line", "Samples", "%");
+      System.out.format(format, "----", "-------", "-");
+      for (Count count : summarize(mLineCounts, TOP_LINES)) {
+        System.out.format(format, count.label, count.self,
+            percent(count.self));
+      }
+    }
+
+    private void sample(ShadowStack stack) {
+      // The arrays may be replaced by larger ones while we're reading, so
+      // don't trust the depth to fit in both.
+      FnExpr[] functions = stack.mFunctions;
+      Position[] lines = stack.mLines;
+      int depth = Math.min(stack.mDepth,
+          Math.min(functions.length, lines.length));
+      if (depth == 0) return;
+
+      mSamples++;
+
+      FnExpr top = functions[depth - 1];
+      Position line = lines[depth - 1];
+      if (top == null || line == null) return;
+
+      count(mFunctionCounts, top.getPosition()).self++;
+      count(mLineCounts, line).self++;
+
+      // Only count each function once, even if it's recursive.
+      mSeen.clear();
+      for (int i = 0; i < depth; i++) {
+        FnExpr function = functions[i];
+        if (function == null) continue;
+
+        Position position = function.getPosition();
+        if (mSeen.put(position, Boolean.TRUE) == null) {
+          count(mFunctionCounts, position).total++;
+        }
+      }
+    }
+
+    private Count count(Map<Position, Count> counts, Position position) {
+      Count count = counts.get(position);
+      if (count == null) {
+        count = new Count();
+        counts.put(position, count);
+      }
+
+      return count;
+    }
+
+    /**
+     * Merges the counts for positions with the same label, and returns the
+     * ones with the most self samples, most first.
+     */
+    private List<Count> summarize(Map<Position, Count> counts, int limit) {
+      Map<String, Count> merged = new HashMap<String, Count>();
+      for (Map.Entry<Position, Count> entry : counts.entrySet()) {
+        Position position = entry.getKey();
+        String label = position.getSourceFile() + ":" +
+            position.getStartLine();
+
+        Count count = merged.get(label);
+        if (count == null) {
+          count = new Count();
+          count.label = label;
+          merged.put(label, count);
+        }
+
+        count.self += entry.getValue().self;
+        count.total += entry.getValue().total;
+      }
+
+      List<Count> sorted = new ArrayList<Count>(merged.values());
+      Collections.sort(sorted, new Comparator<Count>() {
+        public int compare(Count a, Count b) {
+          if (a.self != b.self) return (a.self > b.self) ? -1 : 1;
+          if (a.total != b.total) return (a.total > b.total) ? -1 : 1;
+          return a.label.compareTo(b.label);
+        }
+      });
+
+      if (sorted.size() > limit) sorted = sorted.subList(0, limit);
+      return sorted;
+    }
+
+    private String percent(int samples) {
+      return String.format("%.1f", samples * 100.0 / mSamples);
+    }
+
+    private final long mInterval;
+    private final Map<Position, Count> mFunctionCounts =
+        new IdentityHashMap<Position, Count>();
+    private final Map<Position, Count> mLineCounts =
+        new IdentityHashMap<Position, Count>();
+    private final Map<Position, Boolean> mSeen =
+        new IdentityHashMap<Position, Boolean>();
+    private int mSamples = 0;
+  }
+
+  private static class Count {
+    public String label;
+    public int    self;
+    public int    total;
+  }
+
+  private static final int TOP_FUNCTIONS = 20;
+  private static final int TOP_LINES = 20;
+
+  // Not volatile, so that checking it costs nothing when not sampling. It is
+  // only set before the program starts running.
+  private static boolean sEnabled = false;
+  private static SamplerThread sThread;
+
+  // Iterating this doesn't copy it or block threads adding their stacks.
+  private static final Set<ShadowStack> sAllStacks =
+      Collections.newSetFromMap(new ConcurrentHashMap<ShadowStack, Boolean>());
+}
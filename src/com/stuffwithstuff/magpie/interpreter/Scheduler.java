@@ -0,0 +1,188 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which thread each Routine runs on. There are three kinds:
+ *
+ * - "thread" starts a new platform thread for each routine. This is what run()
+ *   has always done, and it's the default.
+ * - "pool" runs routines on a bounded work-stealing ForkJoinPool with one
+ *   thread per processor. Routines that block on a channel tell the pool, so
+ *   it can add a thread to keep the others moving.
+ * - "virtual" starts a virtual thread for each routine. These are only
+ *   available on Java 21 and later, so they're found reflectively. On older
+ *   VMs this warns and falls back to the pool.
+ *
+ * On the pool, a routine blocked on a channel still holds a thread, so it
+ * can't run many more blocked routines than the "thread" kind can.
+ * benchmark/programs/routines.mag blocks a chain of them at once to measure
+ * this.
+ *
+ * Virtual threads are what make routines cheap enough to use as fibers. When
+ * one blocks on a channel, the VM unmounts its stack and runs another on the
+ * carrier thread. Carriers come from a small fixed pool, one per processor,
+ * that takes fibers off a FIFO queue. For this to work, nothing a routine
+ * may block in can hold a monitor, since that pins the fiber to its carrier.
+ * Channels, joins and module loading all use java.util.concurrent locks.
+ *
+ * Pool and virtual threads don't keep the VM alive, so the scheduler also
+ * counts the routines that haven't finished, and the host can wait for them
+ * with {@link #awaitRoutines}. That also returns the errors thrown by
+ * routines that nothing joined, which would otherwise be lost.
+ */
+public class Scheduler {
+  public static Scheduler create(String kind) {
+    if (kind.equals("thread")) return new Scheduler(null);
+    if (kind.equals("pool")) return new Scheduler(createPool());
+    if (kind.equals("virtual")) {
+      Executor executor = createVirtual();
+      if (executor == null) {
+        System.err.println("Warning: Virtual threads need Java 21 or " +
+            "later. Running routines on a thread pool instead.");
+        executor = createPool();
+      }
+      return new Scheduler(executor);
+    }
+
+    throw new IllegalArgumentException("Unknown scheduler \"" + kind + "\".");
+  }
+
+  public Scheduler() {
+    this(null);
+  }
+
+  /**
+   * Starts running the routine.
+   */
+  public void schedule(final Routine routine) {
+    mLock.lock();
+    try {
+      mActive++;
+    } finally {
+      mLock.unlock();
+    }
+
+    Runnable task = new Runnable() {
+      public void run() {
+        try {
+          routine.run();
+        } finally {
+          mLock.lock();
+          try {
+            // Keep it around in case nothing joins it.
+            if (routine.getUnjoinedError() != null) mFailed.add(routine);
+
+            mActive--;
+            if (mActive == 0) mFinished.signalAll();
+          } finally {
+            mLock.unlock();
+          }
+        }
+      }
+    };
+
+    if (mExecutor == null) {
+      new Thread(task).start();
+    } else {
+      mExecutor.execute(task);
+    }
+  }
+
+  /**
+   * Blocks until every routine that has been scheduled has finished,
+   * including ones scheduled while waiting.
+   *
+   * @return The errors thrown by finished routines that were never joined,
+   *         in the order they finished. Each is only returned once.
+   */
+  public List<ErrorException> awaitRoutines() throws InterruptedException {
+    mLock.lock();
+    try {
+      while (mActive > 0) mFinished.await();
+
+      List<ErrorException> errors = new ArrayList<ErrorException>();
+      for (Routine routine : mFailed) {
+        ErrorException error = routine.getUnjoinedError();
+        if (error != null) errors.add(error);
+      }
+
+      mFailed.clear();
+      return errors;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the latch in a way that lets a ForkJoinPool add a thread while
+   * this one is blocked.
+   */
+  static void await(final CountDownLatch latch) throws InterruptedException {
+    ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+      public boolean block() throws InterruptedException {
+        latch.await();
+        return true;
+      }
+
+      public boolean isReleasable() {
+        return latch.getCount() == 0;
+      }
+    });
+  }
+
+  private static Executor createPool() {
+    return new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+        ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+  }
+
+  /**
+   * Looks for Executors.newVirtualThreadPerTaskExecutor(), which was added in
+   * Java 21.
+   *
+   * @return The executor or null if this VM doesn't have virtual threads.
+   */
+  private static Executor createVirtual() {
+    // Keep the carrier pool fixed at one thread per processor. This only has
+    // an effect if no virtual thread has been created yet.
+    String processors = Integer.toString(
+        Runtime.getRuntime().availableProcessors());
+    setDefault("jdk.virtualThreadScheduler.parallelism", processors);
+    setDefault("jdk.virtualThreadScheduler.maxPoolSize", processors);
+    
+    try {
+      Method method = Class.forName("java.util.concurrent.Executors")
+          .getMethod("newVirtualThreadPerTaskExecutor");
+      return (Executor) method.invoke(null);
+    } catch (Exception ex) {
+      return null;
+    }
+  }
+
+  private static void setDefault(String property, String value) {
+    if (System.getProperty(property) == null) {
+      System.setProperty(property, value);
+    }
+  }
+
+  private Scheduler(Executor executor) {
+    mExecutor = executor;
+  }
+
+  // Null to start a new thread for each routine.
+  private final Executor mExecutor;
+  private final Lock mLock = new ReentrantLock();
+  private final Condition mFinished = mLock.newCondition();
+  private int mActive = 0;
+
+  // Routines that threw an error, and hadn't been joined when they finished.
+  private final List<Routine> mFailed = new ArrayList<Routine>();
+}
@@ -2,12 +2,24 @@ package com.stuffwithstuff.magpie.interpreter;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.stuffwithstuff.magpie.util.Expect;
 import com.stuffwithstuff.magpie.util.Pair;
 
 /**
  * A lexical scope for named variables and multimethods.
+ * 
+ * A module's top-level scope stores its variables in a map, since names can be
+ * imported and defined in it from anywhere. Local scopes instead store their
+ * variables in a compact array of slots, in the order they are defined. The
+ * Resolver predicts that order, so that resolved NameExprs can go straight to
+ * the right slot without hashing the name.
+ *
+ * Top-level scopes may be used by several routines at once, so their maps are
+ * concurrent. Local scopes belong to the thread running the function.
  */
 public class Scope {
   /**
@@ -18,18 +30,21 @@ public class Scope {
     mAllowRedefinition = false;
     mModule = module;
     mParent = null;
+    mVariables = new ConcurrentHashMap<String, Pair<Boolean, Obj>>();
   }
   
   private Scope(Scope parent) {
     mAllowRedefinition = false;
     mModule = parent.mModule;
     mParent = parent;
+    mVariables = null;
   }
   
   public Scope(boolean allowRedefinition) {
     mAllowRedefinition = allowRedefinition;
     mModule = null;
     mParent = null;
+    mVariables = new ConcurrentHashMap<String, Pair<Boolean, Obj>>();
   }
   
   public Scope() {
@@ -53,13 +68,13 @@ public class Scope {
             "that name defined.");
       }
       
-      mVariables.put(rename, new Pair<Boolean, Obj>(false, variable));
+      put(false, rename, variable);
     }
     
     // Import multimethod.
     Multimethod multimethod = module.getScope().getMultimethod(name);
     if (multimethod != null || mAllowRedefinition) {
-      Multimethod existing = mMultimethods.get(rename);
+      Multimethod existing = getMultimethod(rename);
       if ((existing != null) && (existing != multimethod)) {
         mModule.error(Name.REDEFINITION_ERROR,
             "Can not import multimethod \"" + rename + "\" from " +
@@ -67,7 +82,7 @@ public class Scope {
             "that name defined.");
       }
       
-      mMultimethods.put(rename, multimethod);
+      getOrCreateMultimethods().put(rename, multimethod);
       // TODO(bob): Right now, all top-level multimethods are defined in the
       // global multimethod set, and not in the module itself, so we should
       // never hit this case. Eventually, we do want to support this so that
@@ -82,6 +97,14 @@ public class Scope {
     }
   }
   
+  /**
+   * Gets a counter that is incremented whenever a variable in a top-level
+   * scope is bound to a class or stops being bound to one. Code that caches
+   * what a type pattern's class name refers to can check it to tell when the
+   * name may refer to something else.
+   */
+  public static int getClassBindingEpoch() { return sClassBindingEpoch.get(); }
+  
   public Scope getParent() {
     return mParent;
   }
@@ -102,6 +125,23 @@ public class Scope {
     
     return null;
   }
+  
+  /**
+   * Looks up a variable using the local slot the Resolver found for it. This
+   * doesn't trust the resolution blindly: if the variable hasn't been defined
+   * in that slot (yet), this falls back to looking it up by name.
+   * 
+   * @param   name  The name of the variable to look up.
+   * @param   depth The number of local scopes to walk up.
+   * @param   slot  The index of the variable in that scope.
+   * @return        The value bound to that name, or null if not found.
+   */
+  public Obj lookUp(String name, int depth, int slot) {
+    Scope scope = find(name, depth, slot);
+    if (scope != null) return scope.mSlots[slot];
+    
+    return lookUp(name);
+  }
 
   /**
    * Assigns the given value to an existing variable with the given name in the
@@ -118,20 +158,42 @@ public class Scope {
   public boolean assign(String name, Obj value) {
     Scope scope = this;
     while (scope != null) {
-      Pair<Boolean, Obj> variable = scope.mVariables.get(name);
-      if (variable != null) {
-        // Only assign if the variable is mutable.
-        // TODO(bob): Should be a static error.
-        if (variable.getKey()) {
-          scope.mVariables.put(name, new Pair<Boolean, Obj>(true, value));
+      if (scope.mVariables != null) {
+        Pair<Boolean, Obj> variable = scope.mVariables.get(name);
+        if (variable != null) {
+          // Only assign if the variable is mutable.
+          // TODO(bob): Should be a static error.
+          if (variable.getKey()) {
+            scope.mVariables.put(name, new Pair<Boolean, Obj>(true, value));
+            bindingChanged(variable.getValue(), value);
+          }
+          return true;
+        }
+      } else {
+        int slot = scope.indexOf(name);
+        if (slot != -1) {
+          scope.assignSlot(slot, value);
+          return true;
         }
-        return true;
       }
       scope = scope.getParent();
     }
     
     return false;
   }
+  
+  /**
+   * Assigns a variable using the local slot the Resolver found for it. Like
+   * {@code lookUp(name, depth, slot)}, falls back to the name if the slot
+   * doesn't hold that variable.
+   */
+  public boolean assign(String name, int depth, int slot, Obj value) {
+    Scope scope = find(name, depth, slot);
+    if (scope == null) return assign(name, value);
+    
+    scope.assignSlot(slot, value);
+    return true;
+  }
 
   public boolean define(boolean isMutable, String name, Obj value) {
     Expect.notEmpty(name);
@@ -140,7 +202,7 @@ public class Scope {
     // Don't allow redefinition.
     if (!mAllowRedefinition && (get(name) != null)) return false;
 
-    mVariables.put(name, new Pair<Boolean, Obj>(isMutable, value));
+    put(isMutable, name, value);
     
     // If we're defining a top-level public variable, export it too.
     if ((mParent == null) && Name.isPublic(name)) {
@@ -153,12 +215,19 @@ public class Scope {
   public Obj get(String name) {
     Expect.notEmpty(name);
     
-    Pair<Boolean, Obj> variable = mVariables.get(name);
-    if (variable == null) return null;
-    return variable.getValue();
+    if (mVariables != null) {
+      Pair<Boolean, Obj> variable = mVariables.get(name);
+      if (variable == null) return null;
+      return variable.getValue();
+    }
+    
+    int slot = indexOf(name);
+    if (slot == -1) return null;
+    return mSlots[slot];
   }
   
   public Multimethod getMultimethod(String name) {
+    if (mMultimethods == null) return null;
     return mMultimethods.get(name);
   }
   
@@ -174,15 +243,8 @@ public class Scope {
   public Multimethod defineMultimethod(String name, String doc) {
     if ((mParent == null) && Name.isPublic(name)) {
       // Top-level public name, so define it globally.
-      Multimethod multimethod = mModule.getInterpreter().getMultimethods().get(name);
-      
-      // Only define it the first time if not found.
-      if (multimethod == null) {
-        multimethod = new Multimethod(doc);
-        mModule.getInterpreter().getMultimethods().put(name, multimethod);
-      }
-      
-      return multimethod;
+      return getOrCreateMultimethod(
+          mModule.getInterpreter().getMultimethods(), name, doc);
     }
     
     // Otherwise, it's a local multimethod.
@@ -194,8 +256,10 @@ public class Scope {
     
     // Walk up the parent scopes.
     while (scope != null) {
-      Multimethod multimethod = scope.mMultimethods.get(name);
-      if (multimethod != null) return multimethod;
+      if (scope.mMultimethods != null) {
+        Multimethod multimethod = scope.mMultimethods.get(name);
+        if (multimethod != null) return multimethod;
+      }
       scope = scope.mParent;
     }
     
@@ -204,10 +268,19 @@ public class Scope {
   }
 
   public Set<Entry<String, Pair<Boolean, Obj>>> entries() {
-    return mVariables.entrySet();
+    if (mVariables != null) return mVariables.entrySet();
+    
+    Map<String, Pair<Boolean, Obj>> variables =
+        new LinkedHashMap<String, Pair<Boolean, Obj>>();
+    for (int i = 0; i < mNumSlots; i++) {
+      variables.put(mSlotNames[i],
+          new Pair<Boolean, Obj>(mSlotMutable[i], mSlots[i]));
+    }
+    return variables.entrySet();
   }
   
   public Map<String, Multimethod> getMultimethods() {
+    if (mMultimethods == null) return Collections.emptyMap();
     return mMultimethods;
   }
   
@@ -242,20 +315,124 @@ public class Scope {
   }
 
   private Multimethod getOrCreateMultimethod(String name, String doc) {
-    Multimethod multimethod = mMultimethods.get(name);
+    return getOrCreateMultimethod(getOrCreateMultimethods(), name, doc);
+  }
+  
+  private static Multimethod getOrCreateMultimethod(
+      Map<String, Multimethod> multimethods, String name, String doc) {
+    Multimethod multimethod = multimethods.get(name);
     
     // Only define it the first time if not found.
     if (multimethod == null) {
       multimethod = new Multimethod(doc);
-      mMultimethods.put(name, multimethod);
+      if (multimethods instanceof ConcurrentMap) {
+        // Another thread may have defined it first.
+        Multimethod existing = ((ConcurrentMap<String, Multimethod>)
+            multimethods).putIfAbsent(name, multimethod);
+        if (existing != null) multimethod = existing;
+      } else {
+        multimethods.put(name, multimethod);
+      }
     }
     
     return multimethod;
   }
   
+  private synchronized Map<String, Multimethod> getOrCreateMultimethods() {
+    // Most local scopes never define a multimethod, so only create the map
+    // when needed.
+    if (mMultimethods == null) {
+      if (mParent == null) {
+        mMultimethods = new ConcurrentHashMap<String, Multimethod>();
+      } else {
+        mMultimethods = new HashMap<String, Multimethod>();
+      }
+    }
+    
+    return mMultimethods;
+  }
+  
+  private void put(boolean isMutable, String name, Obj value) {
+    if (mVariables != null) {
+      Pair<Boolean, Obj> old = mVariables.put(name,
+          new Pair<Boolean, Obj>(isMutable, value));
+      bindingChanged((old == null) ? null : old.getValue(), value);
+      return;
+    }
+    
+    int slot = indexOf(name);
+    if (slot == -1) {
+      // Grow the slot arrays if needed.
+      if (mSlots == null) {
+        mSlotNames = new String[INITIAL_SLOTS];
+        mSlots = new Obj[INITIAL_SLOTS];
+        mSlotMutable = new boolean[INITIAL_SLOTS];
+      } else if (mNumSlots == mSlots.length) {
+        mSlotNames = Arrays.copyOf(mSlotNames, mNumSlots * 2);
+        mSlots = Arrays.copyOf(mSlots, mNumSlots * 2);
+        mSlotMutable = Arrays.copyOf(mSlotMutable, mNumSlots * 2);
+      }
+      
+      slot = mNumSlots++;
+      mSlotNames[slot] = name;
+    }
+    
+    mSlots[slot] = value;
+    mSlotMutable[slot] = isMutable;
+  }
+  
+  private static void bindingChanged(Obj oldValue, Obj newValue) {
+    if ((oldValue instanceof ClassObj) || (newValue instanceof ClassObj)) {
+      sClassBindingEpoch.incrementAndGet();
+    }
+  }
+  
+  private int indexOf(String name) {
+    for (int i = 0; i < mNumSlots; i++) {
+      if (mSlotNames[i].equals(name)) return i;
+    }
+    
+    return -1;
+  }
+  
+  private void assignSlot(int slot, Obj value) {
+    // Only assign if the variable is mutable.
+    // TODO(bob): Should be a static error.
+    if (mSlotMutable[slot]) mSlots[slot] = value;
+  }
+  
+  /**
+   * Walks up the given number of local scopes and returns the scope if it has
+   * the named variable in the given slot. Otherwise returns null.
+   */
+  private Scope find(String name, int depth, int slot) {
+    Scope scope = this;
+    for (int i = 0; i < depth; i++) {
+      scope = scope.mParent;
+      if (scope == null) return null;
+    }
+    
+    if (slot >= scope.mNumSlots) return null;
+    if (!name.equals(scope.mSlotNames[slot])) return null;
+    return scope;
+  }
+  
+  private static final int INITIAL_SLOTS = 4;
+  
+  private static final AtomicInteger sClassBindingEpoch = new AtomicInteger();
+  
   private final boolean mAllowRedefinition;
   private final Scope mParent;
   private final Module mModule;
-  private final Map<String, Pair<Boolean, Obj> > mVariables = new HashMap<String, Pair<Boolean, Obj>>();
-  private final Map<String, Multimethod> mMultimethods = new HashMap<String, Multimethod>();
+  
+  // Top-level scopes store their variables here. Null for local scopes.
+  private final Map<String, Pair<Boolean, Obj> > mVariables;
+  
+  // Local scopes store their variables in these parallel arrays.
+  private String[] mSlotNames;
+  private Obj[] mSlots;
+  private boolean[] mSlotMutable;
+  private int mNumSlots = 0;
+  
+  private volatile Map<String, Multimethod> mMultimethods;
 }
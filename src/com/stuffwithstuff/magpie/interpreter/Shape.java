@@ -0,0 +1,102 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes the layout of an object's fields: which name is stored in which
+ * slot of its field array. Objects with the same fields added in the same
+ * order share a single Shape, so code that accesses a field can remember the
+ * slot it found for a shape and skip looking the name up the next time.
+ *
+ * Shapes form a tree rooted at EMPTY. Adding a field to an object moves it to
+ * a child shape, which is created the first time and reused after that.
+ * Instances of a class start out with all of the class's fields, and records
+ * with positional fields start out with all of them, so most objects never
+ * change shape after they're created.
+ */
+public class Shape {
+  public static final Shape EMPTY = new Shape(null, null);
+
+  /**
+   * Gets the shape of a record with the given number of positional fields.
+   */
+  public static Shape tuple(int size) {
+    if (size < sTuples.length) return sTuples[size];
+
+    Shape shape = sTuples[sTuples.length - 1];
+    for (int i = sTuples.length - 1; i < size; i++) {
+      shape = shape.with(Name.getTupleField(i));
+    }
+    return shape;
+  }
+
+  /**
+   * Gets the number of fields in the shape.
+   */
+  public int size() {
+    return mNames.length;
+  }
+
+  /**
+   * Gets the name of the field in the given slot.
+   */
+  public String getName(int slot) {
+    return mNames[slot];
+  }
+
+  /**
+   * Gets the slot for the field with the given name, or -1 if the shape has
+   * no field with that name.
+   */
+  public int indexOf(String name) {
+    // Field names are usually the same String objects, so try that first.
+    for (int i = 0; i < mNames.length; i++) {
+      if (mNames[i] == name) return i;
+    }
+
+    for (int i = 0; i < mNames.length; i++) {
+      if (mNames[i].equals(name)) return i;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Gets the shape that results from adding a field with the given name to
+   * this one. The name must not already be in this shape.
+   */
+  public Shape with(String name) {
+    synchronized (mTransitions) {
+      Shape shape = mTransitions.get(name);
+      if (shape == null) {
+        shape = new Shape(this, name);
+        mTransitions.put(name, shape);
+      }
+
+      return shape;
+    }
+  }
+
+  private Shape(Shape parent, String name) {
+    if (parent == null) {
+      mNames = new String[0];
+    } else {
+      mNames = Arrays.copyOf(parent.mNames, parent.mNames.length + 1);
+      mNames[parent.mNames.length] = name;
+    }
+  }
+
+  private static final Shape[] sTuples = new Shape[8];
+
+  static {
+    sTuples[0] = EMPTY;
+    for (int i = 1; i < sTuples.length; i++) {
+      sTuples[i] = sTuples[i - 1].with(Name.getTupleField(i - 1));
+    }
+  }
+
+  private final String[] mNames;
+  private final Map<String, Shape> mTransitions = new HashMap<String, Shape>();
+}
@@ -0,0 +1,117 @@
+package com.stuffwithstuff.magpie.interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Records how long bootstrapping the interpreter and loading each module
+ * takes, and where each module's expressions came from: the AstCache or the
+ * parser. Modules are shown nested under the module that imported them, in
+ * the order they started loading, and each one's total includes the modules
+ * it imported.
+ *
+ * Like the Profiler, it's enabled before the program starts and shown when
+ * it's done.
+ */
+public class StartupTrace {
+  public static void setEnabled(boolean enable) {
+    sEnabled = enable;
+  }
+
+  public static void display() {
+    if (!sEnabled) return;
+
+    String format = "%-44s %-7s %10s %10s\n";
+    System.out.format(format, "Module", "From", "Parse ms", "Total ms");
+    System.out.format(format, "------", "----", "--------", "--------");
+
+    synchronized (sEntries) {
+      for (Entry entry : sEntries) {
+        StringBuilder label = new StringBuilder();
+        for (int i = 0; i < entry.depth; i++) label.append("  ");
+        label.append(entry.label);
+
+        System.out.format(format, label,
+            (entry.from == null) ? "" : entry.from,
+            (entry.from == null) ? "" : milliseconds(entry.parse),
+            milliseconds(entry.total));
+      }
+    }
+  }
+
+  /**
+   * Starts timing something on the current thread.
+   *
+   * @return The entry to pass to {@link #end}, or null if not tracing.
+   */
+  static Entry begin(String label) {
+    if (!sEnabled) return null;
+
+    Stack<Entry> open = sOpen.get();
+
+    Entry entry = new Entry(label, open.size());
+    synchronized (sEntries) {
+      sEntries.add(entry);
+    }
+
+    open.push(entry);
+    entry.start = System.nanoTime();
+    return entry;
+  }
+
+  /**
+   * Notes where the module being loaded on the current thread got its
+   * expressions from, and how long that took.
+   */
+  static void parsed(String from, long start) {
+    if (!sEnabled) return;
+
+    Stack<Entry> open = sOpen.get();
+    if (open.isEmpty()) return;
+
+    Entry entry = open.peek();
+    entry.from = from;
+    entry.parse = System.nanoTime() - start;
+  }
+
+  /**
+   * Stops timing the entry returned by {@link #begin}.
+   */
+  static void end(Entry entry) {
+    if (entry == null) return;
+
+    entry.total = System.nanoTime() - entry.start;
+    sOpen.get().pop();
+  }
+
+  private static String milliseconds(long nanoseconds) {
+    return String.format("%.2f", nanoseconds / 1000000.0);
+  }
+
+  static class Entry {
+    public Entry(String label, int depth) {
+      this.label = label;
+      this.depth = depth;
+    }
+
+    public final String label;
+    public final int depth;
+    public String from;
+    public long start;
+    public long parse;
+    public long total;
+  }
+
+  // Not volatile, since it's only set before the interpreter is created.
+  private static boolean sEnabled = false;
+
+  private static final List<Entry> sEntries = new ArrayList<Entry>();
+  private static final ThreadLocal<Stack<Entry>> sOpen =
+      new ThreadLocal<Stack<Entry>>() {
+    @Override
+    protected Stack<Entry> initialValue() {
+      return new Stack<Entry>();
+    }
+  };
+}
@@ -0,0 +1,14 @@
+package com.stuffwithstuff.magpie.interpreter.jit;
+
+/**
+ * Thrown while generating code when a function runs into one of the limits
+ * of a JVM class file, like the size of a method or the number of locals or
+ * constants. The function is fine, it just can't be compiled, so it keeps
+ * being interpreted. Anything else that goes wrong in the JIT is a bug.
+ */
+@SuppressWarnings("serial")
+class CannotCompileException extends RuntimeException {
+  public CannotCompileException(String message) {
+    super(message);
+  }
+}
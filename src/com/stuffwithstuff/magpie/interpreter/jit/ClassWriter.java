@@ -0,0 +1,222 @@
+package com.stuffwithstuff.magpie.interpreter.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files. It only supports what the JIT needs:
+ * a class with a single superclass, no fields of its own, and methods whose
+ * code uses object references and small ints.
+ *
+ * Classes are written as version 49 (Java 5) so that the JVM verifies them by
+ * type inference. That way we don't need to compute StackMapTable frames.
+ */
+public class ClassWriter {
+  public static final int ACC_PUBLIC = 0x0001;
+  public static final int ACC_FINAL  = 0x0010;
+  public static final int ACC_SUPER  = 0x0020;
+
+  /**
+   * Creates a writer for a new class.
+   *
+   * @param name       The internal name of the class ("a/b/C").
+   * @param superName  The internal name of its superclass.
+   */
+  public ClassWriter(String name, String superName) {
+    mName = name;
+    mThisClass = classRef(name);
+    mSuperClass = classRef(superName);
+  }
+
+  public String getName() { return mName; }
+
+  /**
+   * Adds a new method to the class and returns a writer for its code.
+   */
+  public MethodWriter addMethod(int access, String name, String descriptor) {
+    MethodWriter method = new MethodWriter(this, access, utf8(name),
+        utf8(descriptor), descriptor);
+    mMethods.add(method);
+    return method;
+  }
+
+  /**
+   * Builds the class file.
+   */
+  public byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    try {
+      // The Code attribute name needs to be in the pool before it's written.
+      int code = utf8("Code");
+
+      out.writeInt(0xcafebabe);
+      out.writeShort(0);  // Minor version.
+      out.writeShort(49); // Major version.
+
+      out.writeShort(mConstantCount);
+      out.write(mConstantPool.toByteArray());
+
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(mThisClass);
+      out.writeShort(mSuperClass);
+      out.writeShort(0); // Interfaces.
+      out.writeShort(0); // Fields.
+
+      out.writeShort(mMethods.size());
+      for (MethodWriter method : mMethods) {
+        method.write(out, code);
+      }
+
+      out.writeShort(0); // Attributes.
+    } catch (IOException ex) {
+      // Can't happen when writing to memory.
+      throw new RuntimeException(ex);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  // Constant pool entries. Each returns the index of the entry, reusing an
+  // existing one if possible.
+
+  public int utf8(String value) {
+    String key = "U" + value;
+    Integer index = mConstantIndexes.get(key);
+    if (index != null) return index;
+
+    mConstantPool.writeByte(1);
+    try {
+      mConstantPool.writeUTF(value);
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    return addConstant(key);
+  }
+
+  public int classRef(String internalName) {
+    return addReference("C", 7, utf8(internalName));
+  }
+
+  public int string(String value) {
+    return addReference("S", 8, utf8(value));
+  }
+
+  public int integer(int value) {
+    String key = "I" + value;
+    Integer index = mConstantIndexes.get(key);
+    if (index != null) return index;
+
+    mConstantPool.writeByte(3);
+    mConstantPool.writeInt(value);
+    return addConstant(key);
+  }
+
+  public int fieldRef(String owner, String name, String descriptor) {
+    return addMember("F", 9, owner, name, descriptor);
+  }
+
+  public int methodRef(String owner, String name, String descriptor) {
+    return addMember("M", 10, owner, name, descriptor);
+  }
+
+  public int interfaceMethodRef(String owner, String name,
+      String descriptor) {
+    return addMember("N", 11, owner, name, descriptor);
+  }
+
+  private int addReference(String prefix, int tag, int utf8) {
+    String key = prefix + utf8;
+    Integer index = mConstantIndexes.get(key);
+    if (index != null) return index;
+
+    mConstantPool.writeByte(tag);
+    mConstantPool.writeShort(utf8);
+    return addConstant(key);
+  }
+
+  private int addMember(String prefix, int tag, String owner, String name,
+      String descriptor) {
+    int ownerIndex = classRef(owner);
+    int nameAndType = nameAndType(name, descriptor);
+
+    String key = prefix + ownerIndex + "." + nameAndType;
+    Integer index = mConstantIndexes.get(key);
+    if (index != null) return index;
+
+    mConstantPool.writeByte(tag);
+    mConstantPool.writeShort(ownerIndex);
+    mConstantPool.writeShort(nameAndType);
+    return addConstant(key);
+  }
+
+  private int nameAndType(String name, String descriptor) {
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+
+    String key = "T" + nameIndex + "." + descriptorIndex;
+    Integer index = mConstantIndexes.get(key);
+    if (index != null) return index;
+
+    mConstantPool.writeByte(12);
+    mConstantPool.writeShort(nameIndex);
+    mConstantPool.writeShort(descriptorIndex);
+    return addConstant(key);
+  }
+
+  private int addConstant(String key) {
+    int index = mConstantCount++;
+    if (mConstantCount > 0xffff) {
+      throw new CannotCompileException("Too many constants.");
+    }
+
+    mConstantIndexes.put(key, index);
+    return index;
+  }
+
+  /**
+   * Byte buffer for the constant pool. Wraps the output stream so that
+   * writing to memory doesn't need IOException handling everywhere.
+   */
+  private static class Buffer {
+    public void writeByte(int value) {
+      mBytes.write(value);
+    }
+
+    public void writeShort(int value) {
+      mBytes.write((value >>> 8) & 0xff);
+      mBytes.write(value & 0xff);
+    }
+
+    public void writeInt(int value) {
+      writeShort(value >>> 16);
+      writeShort(value);
+    }
+
+    public void writeUTF(String value) throws IOException {
+      mOut.writeUTF(value);
+    }
+
+    public byte[] toByteArray() {
+      return mBytes.toByteArray();
+    }
+
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mOut = new DataOutputStream(mBytes);
+  }
+
+  private final String mName;
+  private final int mThisClass;
+  private final int mSuperClass;
+  private final Buffer mConstantPool = new Buffer();
+  private int mConstantCount = 1;
+  private final Map<String, Integer> mConstantIndexes =
+      new HashMap<String, Integer>();
+  private final List<MethodWriter> mMethods = new ArrayList<MethodWriter>();
+}
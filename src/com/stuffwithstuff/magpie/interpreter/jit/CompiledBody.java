@@ -0,0 +1,19 @@
+package com.stuffwithstuff.magpie.interpreter.jit;
+
+import com.stuffwithstuff.magpie.interpreter.Multimethod;
+import com.stuffwithstuff.magpie.interpreter.node.Node;
+
+/**
+ * Base class for the JVM classes that the JIT generates for function bodies.
+ * The generated execute() method reads its AST constants and the multimethods
+ * it calls out of these fields.
+ */
+public abstract class CompiledBody extends Node {
+  protected CompiledBody(Object[] constants, Multimethod[] multimethods) {
+    mConstants = constants;
+    mMultimethods = multimethods;
+  }
+
+  protected final Object[] mConstants;
+  protected final Multimethod[] mMultimethods;
+}
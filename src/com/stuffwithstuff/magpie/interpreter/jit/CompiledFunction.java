@@ -0,0 +1,55 @@
+package com.stuffwithstuff.magpie.interpreter.jit;
+
+import com.stuffwithstuff.magpie.interpreter.Multimethod;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.interpreter.node.Node;
+
+/**
+ * The result of JIT compiling a function: the generated body, and the guards
+ * that say whether it is still valid to run.
+ *
+ * The generated code calls multimethods directly instead of looking them up
+ * by name on each call. That's only correct as long as looking the names up
+ * from the function's closure would still find the same multimethods. A new
+ * multimethod with the same name could be defined closer to the function, so
+ * whenever any multimethod has been created since the last check, the lookups
+ * are done again. If one of them changed, the compiled code is stale and the
+ * function goes back to the interpreter.
+ */
+public class CompiledFunction {
+  CompiledFunction(Node body, Scope closure, String[] names,
+      Multimethod[] multimethods, int epoch) {
+    mBody = body;
+    mClosure = closure;
+    mNames = names;
+    mMultimethods = multimethods;
+    mEpoch = epoch;
+  }
+
+  public Node getBody() { return mBody; }
+
+  /**
+   * Returns true if the multimethods the compiled code calls directly are
+   * still the ones it would find by name.
+   */
+  public boolean isValid() {
+    int epoch = Multimethod.getEpoch();
+    if (epoch == mEpoch) return true;
+
+    for (int i = 0; i < mNames.length; i++) {
+      if (mClosure.lookUpMultimethod(mNames[i]) != mMultimethods[i]) {
+        return false;
+      }
+    }
+
+    // Nothing we depend on changed.
+    mEpoch = epoch;
+    return true;
+  }
+
+  private final Node mBody;
+  private final Scope mClosure;
+  private final String[] mNames;
+  private final Multimethod[] mMultimethods;
+  private int mEpoch;
+}
@@ -0,0 +1,16 @@
+package com.stuffwithstuff.magpie.interpreter.jit;
+
+/**
+ * Loads a class generated by the JIT. Each compiled function gets its own
+ * loader so that its class can be unloaded once the function is deoptimized
+ * or no longer reachable.
+ */
+class JitClassLoader extends ClassLoader {
+  public JitClassLoader() {
+    super(JitClassLoader.class.getClassLoader());
+  }
+
+  public Class<?> define(String name, byte[] bytes) {
+    return defineClass(name, bytes, 0, bytes.length);
+  }
+}
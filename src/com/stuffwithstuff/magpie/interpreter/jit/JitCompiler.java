@@ -0,0 +1,788 @@
+package com.stuffwithstuff.magpie.interpreter.jit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stuffwithstuff.magpie.ast.*;
+import com.stuffwithstuff.magpie.ast.pattern.MatchCase;
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.ast.pattern.ValuePattern;
+import com.stuffwithstuff.magpie.ast.pattern.VariablePattern;
+import com.stuffwithstuff.magpie.ast.pattern.WildcardPattern;
+import com.stuffwithstuff.magpie.interpreter.Multimethod;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.interpreter.jit.MethodWriter.Label;
+import com.stuffwithstuff.magpie.interpreter.node.Node;
+import com.stuffwithstuff.magpie.interpreter.node.NodeCompiler;
+import com.stuffwithstuff.magpie.util.Pair;
+
+/**
+ * Compiles the body of a hot function to a JVM class so that HotSpot can
+ * optimize it like any other Java code.
+ *
+ * The generated execute() method does what the body's Nodes would do, but as
+ * straight-line code: local scopes are kept in JVM locals, loops and matches
+ * become branches, "catch" clauses become exception handlers, and "return"
+ * just returns. Variables still live in Scopes, since closures and patterns
+ * need to find them there. Calls to multimethods found in the function's
+ * closure go straight to the Multimethod object, guarded by
+ * CompiledFunction.isValid().
+ *
+ * Every expression compiles to code that leaves its value on the operand
+ * stack, and starts with the stack empty: the values of subexpressions are
+ * stored in locals before the next one is compiled. This matters because the
+ * JVM clears the stack when it enters an exception handler.
+ *
+ * Expressions should be run through the Resolver before being compiled.
+ *
+ * A function that runs into a limit of the class file format, like the size
+ * of a method, just isn't compiled. If the JVM rejects a class that was
+ * generated, that's a bug in the compiler. It's reported as a warning and the
+ * function keeps being interpreted, or, in debug mode, it's an error.
+ */
+public class JitCompiler implements ExprVisitor<Void, Integer> {
+  /**
+   * Sets whether a generated class that the JVM rejects is an error, instead
+   * of a warning. Like the Profiler, it's set before the program starts.
+   */
+  public static void setDebug(boolean debug) {
+    sDebug = debug;
+  }
+
+  /**
+   * Compiles the body of the given function, which closes over the given
+   * scope. Returns null if the function can't be compiled.
+   */
+  public static CompiledFunction compile(FnExpr function, Scope closure) {
+    try {
+      // Start off assuming every multimethod the function calls can be bound
+      // directly. If it turns out the body defines some of them itself,
+      // compile it again looking those up dynamically.
+      JitCompiler compiler = new JitCompiler(function, closure,
+          Collections.<String>emptySet(), false);
+      compiler.compileBody();
+
+      if (compiler.mDefinesUnknown ||
+          !Collections.disjoint(compiler.mDefinedNames, compiler.mNames)) {
+        compiler = new JitCompiler(function, closure, compiler.mDefinedNames,
+            compiler.mDefinesUnknown);
+        compiler.compileBody();
+      }
+
+      return compiler.load();
+    } catch (CannotCompileException ex) {
+      // The function is too big for a single JVM method.
+      return null;
+    }
+  }
+
+  @Override
+  public Void visit(ArrayExpr expr, Integer scope) {
+    int[] elements = compileToLocals(expr.getElements(), scope);
+
+    loadArray(elements);
+    mCode.aload(CONTEXT_LOCAL);
+    mCode.invokeStatic(RUNTIME, "array",
+        "([" + type(OBJ) + type(CONTEXT) + ")" + type(OBJ));
+    return null;
+  }
+
+  @Override
+  public Void visit(AssignExpr expr, Integer scope) {
+    compile(expr.getValue(), scope);
+
+    mCode.aload(CONTEXT_LOCAL);
+    mCode.aload(scope);
+    loadConstant(expr, ASSIGN_EXPR);
+    mCode.invokeStatic(RUNTIME,
+        expr.isResolved() ? "assignLocal" : "assignName",
+        "(" + type(OBJ) + type(CONTEXT) + type(SCOPE) + type(ASSIGN_EXPR) +
+        ")" + type(OBJ));
+    return null;
+  }
+
+  @Override
+  public Void visit(BoolExpr expr, Integer scope) {
+    mCode.aload(CONTEXT_LOCAL);
+    mCode.pushInt(expr.getValue() ? 1 : 0);
+    mCode.invokeInterface(CONTEXT, "toObj", "(Z)" + type(OBJ));
+    return null;
+  }
+
+  @Override
+  public Void visit(BreakExpr expr, Integer scope) {
+    // Outside of a loop, "break" does nothing.
+    if (mLoops.isEmpty()) {
+      loadNothing();
+      return null;
+    }
+
+    mCode.jump(mLoops.get(mLoops.size() - 1));
+
+    // Unreachable, but every expression leaves a value.
+    mCode.aconstNull();
+    return null;
+  }
+
+  @Override
+  public Void visit(CallExpr expr, Integer scope) {
+    int index = bindMultimethod(expr.getName());
+
+    // If we couldn't bind the multimethod statically, look it up first, like
+    // the evaluator does.
+    int multimethod = -1;
+    if (index == -1) {
+      mCode.aload(CONTEXT_LOCAL);
+      mCode.aload(scope);
+      loadConstant(expr, CALL_EXPR);
+      mCode.invokeStatic(RUNTIME, "lookUpMultimethod",
+          "(" + type(CONTEXT) + type(SCOPE) + type(CALL_EXPR) + ")" +
+          type(MULTIMETHOD));
+      multimethod = allocateLocal();
+      mCode.astore(multimethod);
+    }
+
+    // Pass a (left, right) argument as two values, so the record is only
+    // created if the method needs it.
+    int arg;
+    int right = -1;
+    if (expr.getLeft() != null) {
+      compile(expr.getLeft(), scope);
+      arg = allocateLocal();
+      mCode.astore(arg);
+      compile(expr.getRight(), scope);
+      right = allocateLocal();
+      mCode.astore(right);
+    } else {
+      compile(expr.getArg(), scope);
+      arg = allocateLocal();
+      mCode.astore(arg);
+    }
+
+    // Dispatch through the call site's inline cache.
+    loadConstant(expr.getSite(), CALL_SITE);
+
+    if (index == -1) {
+      mCode.aload(multimethod);
+    } else {
+      mCode.aload(0);
+      mCode.getField(BODY, "mMultimethods", "[" + type(MULTIMETHOD));
+      mCode.pushInt(index);
+      mCode.aaload();
+    }
+
+    mCode.pushString(expr.getName());
+    mCode.aload(CONTEXT_LOCAL);
+    mCode.aload(arg);
+    if (right != -1) {
+      mCode.aload(right);
+      mCode.invokeVirtual(CALL_SITE, "invoke",
+          "(" + type(MULTIMETHOD) + type(STRING) + type(CONTEXT) + type(OBJ) +
+          type(OBJ) + ")" + type(OBJ));
+    } else {
+      mCode.invokeVirtual(CALL_SITE, "invoke",
+          "(" + type(MULTIMETHOD) + type(STRING) + type(CONTEXT) + type(OBJ) +
+          ")" + type(OBJ));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(ClassExpr expr, Integer scope) {
+    // Defining a class defines multimethods for its constructor and fields.
+    mDefinesUnknown = true;
+    evaluate(expr, scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(FnExpr expr, Integer scope) {
+    mCode.aload(CONTEXT_LOCAL);
+    mCode.aload(scope);
+    loadConstant(expr, FN_EXPR);
+    loadConstant(NodeCompiler.compileTopLevel(expr.getBody()), NODE);
+    mCode.invokeStatic(RUNTIME, "function",
+        "(" + type(CONTEXT) + type(SCOPE) + type(FN_EXPR) + type(NODE) + ")" +
+        type(OBJ));
+    return null;
+  }
+
+  @Override
+  public Void visit(ImportExpr expr, Integer scope) {
+    mDefinesUnknown = true;
+    evaluate(expr, scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(IntExpr expr, Integer scope) {
+    mCode.aload(CONTEXT_LOCAL);
+    mCode.pushInt(expr.getValue());
+    mCode.invokeInterface(CONTEXT, "toObj", "(I)" + type(OBJ));
+    return null;
+  }
+
+  @Override
+  public Void visit(LoopExpr expr, Integer scope) {
+    Label start = new Label();
+    Label end = new Label();
+    mLoops.add(end);
+
+    // Evaluate the body in its own scope, forever. A "break" jumps past it.
+    mCode.mark(start);
+    compile(expr.getBody(), pushScope(scope));
+    mCode.pop();
+    mCode.jump(start);
+
+    mLoops.remove(mLoops.size() - 1);
+    mCode.mark(end);
+
+    loadNothing();
+    return null;
+  }
+
+  @Override
+  public Void visit(MatchExpr expr, Integer scope) {
+    // The value is evaluated in its own scope.
+    int matchScope = pushScope(scope);
+    compile(expr.getValue(), matchScope);
+
+    List<MatchCase> cases = expr.getCases();
+    Label end = new Label();
+
+    if (isIf(cases)) {
+      // Since neither case binds anything, just compare to true.
+      Label elseArm = new Label();
+      mCode.aload(CONTEXT_LOCAL);
+      mCode.invokeStatic(RUNTIME, "isTrue",
+          "(" + type(OBJ) + type(CONTEXT) + ")Z");
+      mCode.ifFalse(elseArm);
+
+      compile(cases.get(0).getBody(), pushScope(matchScope));
+      mCode.jump(end);
+
+      mCode.mark(elseArm);
+      compile(cases.get(1).getBody(), pushScope(matchScope));
+      mCode.mark(end);
+      return null;
+    }
+
+    int value = allocateLocal();
+    mCode.astore(value);
+    compileCases(cases, value, matchScope, end);
+
+    // If we got here, no patterns matched.
+    mCode.aload(value);
+    mCode.aload(CONTEXT_LOCAL);
+    loadConstant(expr, MATCH_EXPR);
+    mCode.invokeStatic(RUNTIME, "noMatch",
+        "(" + type(OBJ) + type(CONTEXT) + type(MATCH_EXPR) + ")" +
+        type(ERROR_EXCEPTION));
+    mCode.athrow();
+
+    mCode.mark(end);
+    return null;
+  }
+
+  @Override
+  public Void visit(MethodExpr expr, Integer scope) {
+    // Calls to this name can't be bound ahead of time, since each time the
+    // function runs it may define a new multimethod for it.
+    mDefinedNames.add(expr.getName());
+
+    mCode.aload(CONTEXT_LOCAL);
+    mCode.aload(scope);
+    loadConstant(expr, METHOD_EXPR);
+
+    if (expr.getBody() != null) {
+      loadConstant(Expr.fn(expr.getPosition(), expr.getDoc(),
+          expr.getPattern(), expr.getBody()), FN_EXPR);
+      loadConstant(NodeCompiler.compileTopLevel(expr.getBody()), NODE);
+    } else {
+      mCode.aconstNull();
+      mCode.aconstNull();
+    }
+
+    mCode.invokeStatic(RUNTIME, "method",
+        "(" + type(CONTEXT) + type(SCOPE) + type(METHOD_EXPR) + type(FN_EXPR) +
+        type(NODE) + ")" + type(OBJ));
+    return null;
+  }
+
+  @Override
+  public Void visit(NameExpr expr, Integer scope) {
+    mCode.aload(scope);
+    mCode.pushString(expr.getName());
+    if (expr.isResolved()) {
+      mCode.pushInt(expr.getDepth());
+      mCode.pushInt(expr.getSlot());
+      mCode.invokeVirtual(SCOPE, "lookUp",
+          "(" + type(STRING) + "II)" + type(OBJ));
+    } else {
+      mCode.invokeVirtual(SCOPE, "lookUp", "(" + type(STRING) + ")" +
+          type(OBJ));
+    }
+
+    Label found = new Label();
+    mCode.dup();
+    mCode.ifNonNull(found);
+    mCode.pop();
+    mCode.aload(CONTEXT_LOCAL);
+    loadConstant(expr, NAME_EXPR);
+    mCode.invokeStatic(RUNTIME, "noVariable",
+        "(" + type(CONTEXT) + type(NAME_EXPR) + ")" + type(ERROR_EXCEPTION));
+    mCode.athrow();
+    mCode.mark(found);
+    return null;
+  }
+
+  @Override
+  public Void visit(NothingExpr expr, Integer scope) {
+    loadNothing();
+    return null;
+  }
+
+  @Override
+  public Void visit(QuoteExpr expr, Integer scope) {
+    evaluate(expr, scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(RecordExpr expr, Integer scope) {
+    List<Pair<String, Expr>> fields = expr.getFields();
+
+    String[] keys = new String[fields.size()];
+    List<Expr> values = new ArrayList<Expr>();
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = fields.get(i).getKey();
+      values.add(fields.get(i).getValue());
+    }
+
+    loadArray(compileToLocals(values, scope));
+    mCode.aload(CONTEXT_LOCAL);
+    loadConstant(keys, "[" + type(STRING));
+    mCode.invokeStatic(RUNTIME, "record",
+        "([" + type(OBJ) + type(CONTEXT) + "[" + type(STRING) + ")" +
+        type(OBJ));
+    return null;
+  }
+
+  @Override
+  public Void visit(ReturnExpr expr, Integer scope) {
+    compile(expr.getValue(), scope);
+    mCode.areturn();
+
+    // Unreachable, but every expression leaves a value.
+    mCode.aconstNull();
+    return null;
+  }
+
+  @Override
+  public Void visit(ScopeExpr expr, Integer scope) {
+    int bodyScope = pushScope(scope);
+
+    List<MatchCase> catches = expr.getCatches();
+    if (catches == null || catches.isEmpty()) {
+      compile(expr.getBody(), bodyScope);
+      return null;
+    }
+
+    Label start = new Label();
+    Label end = new Label();
+    Label handler = new Label();
+    Label done = new Label();
+
+    mCode.mark(start);
+    compile(expr.getBody(), bodyScope);
+    mCode.mark(end);
+    mCode.jump(done);
+
+    // The catch clauses are tested in the body's scope.
+    mCode.markHandler(handler);
+    int error = allocateLocal();
+    mCode.astore(error);
+    mCode.aload(error);
+    mCode.invokeVirtual(ERROR_EXCEPTION, "getError", "()" + type(OBJ));
+    int value = allocateLocal();
+    mCode.astore(value);
+
+    compileCases(catches, value, bodyScope, done);
+
+    // Not caught here, so just keep unwinding.
+    mCode.aload(error);
+    mCode.athrow();
+
+    mCode.mark(done);
+
+    // Note that this is added after any handlers inside the body, so that
+    // the innermost one is found first.
+    mCode.tryCatch(start, end, handler, ERROR_EXCEPTION);
+    return null;
+  }
+
+  @Override
+  public Void visit(SequenceExpr expr, Integer scope) {
+    List<Expr> exprs = expr.getExpressions();
+    if (exprs.isEmpty()) {
+      loadNothing();
+      return null;
+    }
+
+    for (int i = 0; i < exprs.size(); i++) {
+      if (i > 0) mCode.pop();
+      compile(exprs.get(i), scope);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(StringExpr expr, Integer scope) {
+    mCode.aload(CONTEXT_LOCAL);
+    mCode.pushString(expr.getValue());
+    mCode.invokeInterface(CONTEXT, "toObj", "(" + type(STRING) + ")" +
+        type(OBJ));
+    return null;
+  }
+
+  @Override
+  public Void visit(ThrowExpr expr, Integer scope) {
+    compile(expr.getValue(), scope);
+    mCode.invokeStatic(RUNTIME, "error",
+        "(" + type(OBJ) + ")" + type(ERROR_EXCEPTION));
+    mCode.athrow();
+
+    // Unreachable, but every expression leaves a value.
+    mCode.aconstNull();
+    return null;
+  }
+
+  @Override
+  public Void visit(UnquoteExpr expr, Integer scope) {
+    mDefinesUnknown = true;
+    evaluate(expr, scope);
+    return null;
+  }
+
+  @Override
+  public Void visit(VarExpr expr, Integer scope) {
+    compile(expr.getValue(), scope);
+
+    // Handle the simple "var name = value" case directly.
+    String helper = "var";
+    if (expr.getPattern() instanceof VariablePattern) {
+      VariablePattern pattern = (VariablePattern) expr.getPattern();
+      if (!pattern.getName().equals("_") &&
+          (pattern.getPattern() instanceof WildcardPattern)) {
+        helper = "define";
+      }
+    }
+
+    mCode.aload(CONTEXT_LOCAL);
+    mCode.aload(scope);
+    loadConstant(expr, VAR_EXPR);
+    mCode.invokeStatic(RUNTIME, helper,
+        "(" + type(OBJ) + type(CONTEXT) + type(SCOPE) + type(VAR_EXPR) +
+        ")" + type(OBJ));
+    return null;
+  }
+
+  private JitCompiler(FnExpr function, Scope closure, Set<String> dynamicNames,
+      boolean allDynamic) {
+    mFunction = function;
+    mClosure = closure;
+    mDynamicNames = dynamicNames;
+    mAllDynamic = allDynamic;
+  }
+
+  private void compileBody() {
+    String name = PACKAGE + "Fn$" + sClassCount.incrementAndGet() + "$" +
+        mFunction.getPosition().getStartLine();
+    mClass = new ClassWriter(name, BODY);
+
+    String constructor = "([" + type(OBJECT) + "[" + type(MULTIMETHOD) +
+        ")V";
+    MethodWriter init = mClass.addMethod(ClassWriter.ACC_PUBLIC, "<init>",
+        constructor);
+    init.aload(0);
+    init.aload(1);
+    init.aload(2);
+    init.invokeSpecial(BODY, "<init>", constructor);
+    init.returnVoid();
+
+    mCode = mClass.addMethod(ClassWriter.ACC_PUBLIC, "execute",
+        "(" + type(CONTEXT) + type(SCOPE) + ")" + type(OBJ));
+    compile(mFunction.getBody(), SCOPE_LOCAL);
+    mCode.areturn();
+  }
+
+  /**
+   * Loads the generated class and creates the compiled function. Returns null
+   * if the JVM rejects it, unless in debug mode.
+   */
+  private CompiledFunction load() {
+    byte[] bytes = mClass.toByteArray();
+    Multimethod[] multimethods = mMultimethods.toArray(
+        new Multimethod[mMultimethods.size()]);
+
+    Node body;
+    try {
+      Class<?> bodyClass = new JitClassLoader().define(
+          mClass.getName().replace('/', '.'), bytes);
+      body = (Node) bodyClass.getConstructor(Object[].class,
+          Multimethod[].class).newInstance(mConstants.toArray(), multimethods);
+    } catch (LinkageError err) {
+      // Usually a VerifyError.
+      return rejected(err);
+    } catch (Exception ex) {
+      return rejected(ex);
+    }
+
+    return new CompiledFunction(body, mClosure,
+        mNames.toArray(new String[mNames.size()]), multimethods, mEpoch);
+  }
+
+  /**
+   * Reports that the JVM couldn't load or instantiate the generated class.
+   */
+  private CompiledFunction rejected(Throwable error) {
+    String message = "Could not load the compiled code for the function at " +
+        mFunction.getPosition() + ": " + error;
+    if (sDebug) throw new IllegalStateException(message, error);
+
+    // Keep interpreting it.
+    System.err.println("Warning: " + message);
+    return null;
+  }
+
+  private void compile(Expr expr, int scope) {
+    if (expr == null) {
+      loadNothing();
+      return;
+    }
+
+    expr.accept(this, scope);
+  }
+
+  /**
+   * Compiles each expression and stores its value in a new local. Returns the
+   * locals.
+   */
+  private int[] compileToLocals(List<Expr> exprs, int scope) {
+    int[] locals = new int[exprs.size()];
+    for (int i = 0; i < locals.length; i++) {
+      compile(exprs.get(i), scope);
+      locals[i] = allocateLocal();
+      mCode.astore(locals[i]);
+    }
+
+    return locals;
+  }
+
+  /**
+   * Compiles a series of match cases that test the value in the given local.
+   * The first case that matches leaves the value of its body on the stack and
+   * jumps to end. If none match, execution falls through.
+   */
+  private void compileCases(List<MatchCase> cases, int value, int scope,
+      Label end) {
+    for (MatchCase matchCase : cases) {
+      Label nextCase = new Label();
+      int pattern = addConstant(matchCase.getPattern());
+
+      mCode.aload(value);
+      mCode.aload(CONTEXT_LOCAL);
+      mCode.aload(scope);
+      loadConstant(pattern, PATTERN);
+      mCode.invokeStatic(RUNTIME, "test",
+          "(" + type(OBJ) + type(CONTEXT) + type(SCOPE) + type(PATTERN) +
+          ")Z");
+      mCode.ifFalse(nextCase);
+
+      // Matched. Bind variables and evaluate the body.
+      int caseScope = pushScope(scope);
+      mCode.aload(value);
+      mCode.aload(CONTEXT_LOCAL);
+      mCode.aload(caseScope);
+      loadConstant(pattern, PATTERN);
+      mCode.invokeStatic(RUNTIME, "bind",
+          "(" + type(OBJ) + type(CONTEXT) + type(SCOPE) + type(PATTERN) +
+          ")V");
+      compile(matchCase.getBody(), caseScope);
+      mCode.jump(end);
+
+      mCode.mark(nextCase);
+    }
+  }
+
+  /**
+   * Returns true if the cases are just a "true" case followed by a wildcard
+   * "else" case, which is how "if" desugars.
+   */
+  private boolean isIf(List<MatchCase> cases) {
+    if (cases.size() != 2) return false;
+
+    Pattern first = cases.get(0).getPattern();
+    if (!(first instanceof ValuePattern)) return false;
+    Expr value = ((ValuePattern) first).getValue();
+    if (!(value instanceof BoolExpr)) return false;
+    if (!((BoolExpr) value).getValue()) return false;
+
+    return cases.get(1).getPattern() instanceof WildcardPattern;
+  }
+
+  /**
+   * Finds the multimethod with the given name from the function's closure so
+   * that calls to it can skip the lookup. Returns its index in the compiled
+   * body's multimethod array, or -1 if it has to be looked up each time.
+   */
+  private int bindMultimethod(String name) {
+    if (mAllDynamic || mDynamicNames.contains(name)) return -1;
+
+    Integer index = mMultimethodIndexes.get(name);
+    if (index != null) return index;
+
+    Multimethod multimethod = mClosure.lookUpMultimethod(name);
+    if (multimethod == null) return -1;
+
+    mNames.add(name);
+    mMultimethods.add(multimethod);
+    mMultimethodIndexes.put(name, mMultimethods.size() - 1);
+    return mMultimethods.size() - 1;
+  }
+
+  private void evaluate(Expr expr, int scope) {
+    mCode.aload(CONTEXT_LOCAL);
+    loadConstant(expr, EXPR);
+    mCode.aload(scope);
+    mCode.invokeInterface(CONTEXT, "evaluate",
+        "(" + type(EXPR) + type(SCOPE) + ")" + type(OBJ));
+  }
+
+  /**
+   * Creates a new local scope whose parent is in the given local, and returns
+   * the local it's stored in.
+   */
+  private int pushScope(int parent) {
+    mCode.aload(parent);
+    mCode.invokeVirtual(SCOPE, "push", "()" + type(SCOPE));
+    int scope = allocateLocal();
+    mCode.astore(scope);
+    return scope;
+  }
+
+  private void loadNothing() {
+    mCode.aload(CONTEXT_LOCAL);
+    mCode.invokeInterface(CONTEXT, "nothing", "()" + type(OBJ));
+  }
+
+  /**
+   * Creates an Obj[] array containing the values in the given locals.
+   */
+  private void loadArray(int[] locals) {
+    mCode.pushInt(locals.length);
+    mCode.anewarray(OBJ);
+    for (int i = 0; i < locals.length; i++) {
+      mCode.dup();
+      mCode.pushInt(i);
+      mCode.aload(locals[i]);
+      mCode.aastore();
+    }
+  }
+
+  private int addConstant(Object value) {
+    mConstants.add(value);
+    return mConstants.size() - 1;
+  }
+
+  private void loadConstant(Object value, String type) {
+    loadConstant(addConstant(value), type);
+  }
+
+  private void loadConstant(int index, String type) {
+    mCode.aload(0);
+    mCode.getField(BODY, "mConstants", "[" + type(OBJECT));
+    mCode.pushInt(index);
+    mCode.aaload();
+    mCode.checkcast(type);
+  }
+
+  /**
+   * Locals are never reused, so that the verifier never sees one hold values
+   * of different types.
+   */
+  private int allocateLocal() {
+    int local = mNextLocal++;
+    mCode.useLocal(local);
+    return local;
+  }
+
+  private static String type(String internalName) {
+    if (internalName.startsWith("[")) return internalName;
+    return "L" + internalName + ";";
+  }
+
+  private static final String PACKAGE =
+      "com/stuffwithstuff/magpie/interpreter/jit/";
+  private static final String INTERPRETER =
+      "com/stuffwithstuff/magpie/interpreter/";
+  private static final String AST = "com/stuffwithstuff/magpie/ast/";
+
+  private static final String BODY = PACKAGE + "CompiledBody";
+  private static final String RUNTIME = PACKAGE + "JitRuntime";
+  private static final String CALL_SITE = INTERPRETER + "CallSite";
+  private static final String CONTEXT = INTERPRETER + "Context";
+  private static final String ERROR_EXCEPTION = INTERPRETER + "ErrorException";
+  private static final String MULTIMETHOD = INTERPRETER + "Multimethod";
+  private static final String OBJ = INTERPRETER + "Obj";
+  private static final String SCOPE = INTERPRETER + "Scope";
+  private static final String NODE = INTERPRETER + "node/Node";
+  private static final String ASSIGN_EXPR = AST + "AssignExpr";
+  private static final String CALL_EXPR = AST + "CallExpr";
+  private static final String EXPR = AST + "Expr";
+  private static final String FN_EXPR = AST + "FnExpr";
+  private static final String MATCH_EXPR = AST + "MatchExpr";
+  private static final String METHOD_EXPR = AST + "MethodExpr";
+  private static final String NAME_EXPR = AST + "NameExpr";
+  private static final String VAR_EXPR = AST + "VarExpr";
+  private static final String PATTERN = AST + "pattern/Pattern";
+  private static final String OBJECT = "java/lang/Object";
+  private static final String STRING = "java/lang/String";
+
+  // The generated execute() method's locals.
+  private static final int CONTEXT_LOCAL = 1;
+  private static final int SCOPE_LOCAL = 2;
+
+  private static final AtomicInteger sClassCount = new AtomicInteger();
+
+  private static boolean sDebug = false;
+
+  private final FnExpr mFunction;
+  private final Scope mClosure;
+  private final Set<String> mDynamicNames;
+  private final boolean mAllDynamic;
+
+  // Note the epoch before looking anything up, so that a multimethod created
+  // while compiling is always checked.
+  private final int mEpoch = Multimethod.getEpoch();
+
+  private ClassWriter mClass;
+  private MethodWriter mCode;
+  private int mNextLocal = SCOPE_LOCAL + 1;
+  private final List<Object> mConstants = new ArrayList<Object>();
+  private final List<String> mNames = new ArrayList<String>();
+  private final List<Multimethod> mMultimethods = new ArrayList<Multimethod>();
+  private final Map<String, Integer> mMultimethodIndexes =
+      new HashMap<String, Integer>();
+  private final List<Label> mLoops = new ArrayList<Label>();
+
+  // What the body defines. Filled in while compiling.
+  private final Set<String> mDefinedNames = new HashSet<String>();
+  private boolean mDefinesUnknown = false;
+}
@@ -0,0 +1,156 @@
+package com.stuffwithstuff.magpie.interpreter.jit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.stuffwithstuff.magpie.ast.AssignExpr;
+import com.stuffwithstuff.magpie.ast.CallExpr;
+import com.stuffwithstuff.magpie.ast.FnExpr;
+import com.stuffwithstuff.magpie.ast.MatchExpr;
+import com.stuffwithstuff.magpie.ast.MethodExpr;
+import com.stuffwithstuff.magpie.ast.NameExpr;
+import com.stuffwithstuff.magpie.ast.VarExpr;
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.ast.pattern.VariablePattern;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.ErrorException;
+import com.stuffwithstuff.magpie.interpreter.FnObj;
+import com.stuffwithstuff.magpie.interpreter.Function;
+import com.stuffwithstuff.magpie.interpreter.Multimethod;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.PatternBinder;
+import com.stuffwithstuff.magpie.interpreter.PatternTester;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.interpreter.node.Node;
+
+/**
+ * Static helpers called by JIT-generated code. Anything more involved than a
+ * single method call is implemented here in Java instead of being emitted as
+ * bytecode, which keeps the code generator simple. HotSpot inlines these into
+ * the generated method just like any other small static method.
+ *
+ * Arguments whose values are computed by the generated code come first, so
+ * that it can leave them on the operand stack and push the rest after.
+ */
+public class JitRuntime {
+  public static ErrorException noVariable(Context context, NameExpr expr) {
+    return context.error(Name.NO_VARIABLE_ERROR,
+        "Could not find a variable named \"" + expr.getName() + "\" (" +
+        expr.getPosition() + ").");
+  }
+
+  public static Obj assignLocal(Obj value, Context context, Scope scope,
+      AssignExpr expr) {
+    if (scope.assign(expr.getName(), expr.getDepth(), expr.getSlot(), value)) {
+      return value;
+    }
+
+    throw noVariable(context, expr);
+  }
+
+  public static Obj assignName(Obj value, Context context, Scope scope,
+      AssignExpr expr) {
+    if (scope.assign(expr.getName(), value)) return value;
+
+    throw noVariable(context, expr);
+  }
+
+  public static Obj define(Obj value, Context context, Scope scope,
+      VarExpr expr) {
+    String name = ((VariablePattern) expr.getPattern()).getName();
+    if (!scope.define(expr.isMutable(), name, value)) {
+      // Cannot redefine a variable in the same scope.
+      context.error(Name.REDEFINITION_ERROR, String.format(
+          "There is already a variable named \"%s\" in this scope.", name));
+    }
+
+    return value;
+  }
+
+  public static Obj var(Obj value, Context context, Scope scope,
+      VarExpr expr) {
+    if (!PatternTester.test(context, expr.getPattern(), value, scope)) {
+      throw context.error(Name.NO_MATCH_ERROR, "The variable pattern \"" +
+          expr.getPattern() + "\" does not match the initialized value \"" +
+          context.getInterpreter().evaluateToString(value) + "\" (" +
+          expr.getPosition() + ").");
+    }
+
+    PatternBinder.bind(context, expr.isMutable(), expr.getPattern(), value,
+        scope);
+    return value;
+  }
+
+  public static Obj record(Obj[] values, Context context, String[] keys) {
+    return context.toObj(keys, values);
+  }
+
+  public static Obj array(Obj[] values, Context context) {
+    return context.toArray(new ArrayList<Obj>(Arrays.asList(values)));
+  }
+
+  public static Multimethod lookUpMultimethod(Context context, Scope scope,
+      CallExpr expr) {
+    Multimethod multimethod = scope.lookUpMultimethod(expr.getName());
+    if (multimethod == null) {
+      throw context.error(Name.NO_METHOD_ERROR,
+          "Could not find a method named \"" + expr.getName() + "\". (" +
+          expr.getPosition() + ")");
+    }
+
+    return multimethod;
+  }
+
+  public static Obj function(Context context, Scope scope, FnExpr expr,
+      Node body) {
+    return new FnObj(context.getInterpreter().getFnClass(),
+        new Function(expr, scope, body));
+  }
+
+  public static Obj method(Context context, Scope scope, MethodExpr expr,
+      FnExpr function, Node body) {
+    if (function != null) {
+      scope.define(expr.getName(), new Function(function, scope, body));
+    } else {
+      // Defining the multimethod here but not adding any methods.
+      scope.defineMultimethod(expr.getName(), expr.getDoc());
+    }
+
+    return context.nothing();
+  }
+
+  public static boolean isTrue(Obj value, Context context) {
+    return context.objectsEqual(context.toObj(true), value);
+  }
+
+  public static boolean test(Obj value, Context context, Scope scope,
+      Pattern pattern) {
+    return PatternTester.test(context, pattern, value, scope);
+  }
+
+  public static void bind(Obj value, Context context, Scope scope,
+      Pattern pattern) {
+    PatternBinder.bind(context, false, pattern, value, scope);
+  }
+
+  public static ErrorException noMatch(Obj value, Context context,
+      MatchExpr expr) {
+    return context.error(Name.NO_MATCH_ERROR,
+        "Could not find a match for \"" +
+        context.getInterpreter().evaluateToString(value) + "\" (" +
+        expr.getPosition() + ").");
+  }
+
+  public static ErrorException error(Obj value) {
+    return new ErrorException(value);
+  }
+
+  private static ErrorException noVariable(Context context, AssignExpr expr) {
+    return context.error(Name.NO_VARIABLE_ERROR,
+        "Could not find a variable named \"" + expr.getName() + "\".");
+  }
+
+  private JitRuntime() {
+  }
+}
@@ -0,0 +1,318 @@
+package com.stuffwithstuff.magpie.interpreter.jit;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the code for one method in a class being built by ClassWriter. Each
+ * instruction method emits a single JVM instruction and keeps track of the
+ * operand stack depth so that the max stack size can be filled in at the end.
+ *
+ * Only single-slot values are supported, so every local and every argument is
+ * one slot. Code larger than 32K is rejected, since branches are only encoded
+ * with 16-bit offsets.
+ */
+public class MethodWriter {
+  MethodWriter(ClassWriter owner, int access, int name, int descriptor,
+      String descriptorString) {
+    mOwner = owner;
+    mAccess = access;
+    mName = name;
+    mDescriptor = descriptor;
+
+    // "this" plus the arguments.
+    mMaxLocals = 1 + countArguments(descriptorString);
+  }
+
+  /**
+   * A position in the code that can be jumped to. It may be jumped to before
+   * it is marked, in which case the jumps are patched when it is.
+   */
+  public static class Label {
+    private int mPosition = -1;
+    private int mStack = -1;
+    private final List<Integer> mJumps = new ArrayList<Integer>();
+  }
+
+  public void aload(int local) {
+    if (local <= 3) {
+      emit(0x2a + local); // aload_<n>
+    } else {
+      emit(0x19, checkLocal(local)); // aload
+    }
+    push(1);
+  }
+
+  public void astore(int local) {
+    if (local <= 3) {
+      emit(0x4b + local); // astore_<n>
+    } else {
+      emit(0x3a, checkLocal(local)); // astore
+    }
+    push(-1);
+  }
+
+  public void aconstNull() {
+    emit(0x01);
+    push(1);
+  }
+
+  public void pushInt(int value) {
+    if (value >= -1 && value <= 5) {
+      emit(0x03 + value); // iconst_<n>
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      emit(0x10, value & 0xff); // bipush
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      emitShort(0x11, value); // sipush
+    } else {
+      ldc(mOwner.integer(value));
+      return;
+    }
+    push(1);
+  }
+
+  public void pushString(String value) {
+    ldc(mOwner.string(value));
+  }
+
+  public void dup() {
+    emit(0x59);
+    push(1);
+  }
+
+  public void pop() {
+    emit(0x57);
+    push(-1);
+  }
+
+  public void aaload() {
+    emit(0x32);
+    push(-1);
+  }
+
+  public void aastore() {
+    emit(0x53);
+    push(-3);
+  }
+
+  public void anewarray(String type) {
+    emitShort(0xbd, mOwner.classRef(type));
+  }
+
+  public void checkcast(String type) {
+    emitShort(0xc0, mOwner.classRef(type));
+  }
+
+  public void getField(String owner, String name, String descriptor) {
+    emitShort(0xb4, mOwner.fieldRef(owner, name, descriptor));
+  }
+
+  public void invokeVirtual(String owner, String name, String descriptor) {
+    emitShort(0xb6, mOwner.methodRef(owner, name, descriptor));
+    invoked(descriptor, true);
+  }
+
+  public void invokeSpecial(String owner, String name, String descriptor) {
+    emitShort(0xb7, mOwner.methodRef(owner, name, descriptor));
+    invoked(descriptor, true);
+  }
+
+  public void invokeStatic(String owner, String name, String descriptor) {
+    emitShort(0xb8, mOwner.methodRef(owner, name, descriptor));
+    invoked(descriptor, false);
+  }
+
+  public void invokeInterface(String owner, String name, String descriptor) {
+    emitShort(0xb9, mOwner.interfaceMethodRef(owner, name, descriptor));
+    emit(1 + countArguments(descriptor));
+    emit(0);
+    invoked(descriptor, true);
+  }
+
+  public void jump(Label label) {
+    branch(0xa7, label); // goto
+    mStack = 0;
+  }
+
+  public void ifFalse(Label label) {
+    push(-1);
+    branch(0x99, label); // ifeq
+  }
+
+  public void ifNonNull(Label label) {
+    push(-1);
+    branch(0xc7, label); // ifnonnull
+  }
+
+  public void areturn() {
+    emit(0xb0);
+    mStack = 0;
+  }
+
+  public void returnVoid() {
+    emit(0xb1);
+    mStack = 0;
+  }
+
+  public void athrow() {
+    emit(0xbf);
+    mStack = 0;
+  }
+
+  /**
+   * Places the label at the current position. If any jumps to it have been
+   * seen, the stack depth is taken from them, since the code right before a
+   * label may not fall through into it.
+   */
+  public void mark(Label label) {
+    label.mPosition = mLength;
+    if (label.mStack != -1) mStack = label.mStack;
+
+    for (int jump : label.mJumps) patch(jump, label.mPosition);
+    label.mJumps.clear();
+  }
+
+  /**
+   * Places an exception handler label. The JVM enters it with just the
+   * exception on the stack.
+   */
+  public void markHandler(Label label) {
+    mark(label);
+    mStack = 1;
+    mMaxStack = Math.max(mMaxStack, mStack);
+  }
+
+  /**
+   * Adds an exception table entry. The labels must already be marked.
+   */
+  public void tryCatch(Label start, Label end, Label handler, String type) {
+    mExceptions.add(new int[] {
+        start.mPosition, end.mPosition, handler.mPosition,
+        mOwner.classRef(type)
+    });
+  }
+
+  /**
+   * Notes that a local variable slot is used.
+   */
+  public void useLocal(int local) {
+    mMaxLocals = Math.max(mMaxLocals, local + 1);
+  }
+
+  void write(DataOutputStream out, int codeAttribute) throws IOException {
+    out.writeShort(mAccess);
+    out.writeShort(mName);
+    out.writeShort(mDescriptor);
+
+    out.writeShort(1); // Attributes.
+    out.writeShort(codeAttribute);
+    out.writeInt(12 + mLength + 8 * mExceptions.size());
+    out.writeShort(mMaxStack);
+    out.writeShort(mMaxLocals);
+    out.writeInt(mLength);
+    out.write(mCode, 0, mLength);
+
+    out.writeShort(mExceptions.size());
+    for (int[] entry : mExceptions) {
+      for (int value : entry) out.writeShort(value);
+    }
+
+    out.writeShort(0); // Code attributes.
+  }
+
+  private static int countArguments(String descriptor) {
+    int count = 0;
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      char c = descriptor.charAt(i);
+      while (c == '[') c = descriptor.charAt(++i);
+      if (c == 'J' || c == 'D') {
+        throw new IllegalArgumentException("Wide types are not supported.");
+      }
+      if (c == 'L') i = descriptor.indexOf(';', i);
+      i++;
+      count++;
+    }
+    return count;
+  }
+
+  private void invoked(String descriptor, boolean hasReceiver) {
+    int popped = countArguments(descriptor) + (hasReceiver ? 1 : 0);
+    int pushed = descriptor.endsWith(")V") ? 0 : 1;
+    push(pushed - popped);
+  }
+
+  private void ldc(int index) {
+    if (index <= 0xff) {
+      emit(0x12, index); // ldc
+    } else {
+      emitShort(0x13, index); // ldc_w
+    }
+    push(1);
+  }
+
+  private void branch(int opcode, Label label) {
+    int position = mLength;
+    emitShort(opcode, 0);
+
+    label.mStack = mStack;
+    if (label.mPosition != -1) {
+      patch(position, label.mPosition);
+    } else {
+      label.mJumps.add(position);
+    }
+  }
+
+  private void patch(int jump, int target) {
+    int offset = target - jump;
+    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+      throw new CannotCompileException("Method is too large.");
+    }
+
+    mCode[jump + 1] = (byte) (offset >> 8);
+    mCode[jump + 2] = (byte) offset;
+  }
+
+  private int checkLocal(int local) {
+    if (local > 0xff) throw new CannotCompileException("Too many locals.");
+    useLocal(local);
+    return local;
+  }
+
+  private void push(int delta) {
+    mStack += delta;
+    mMaxStack = Math.max(mMaxStack, mStack);
+  }
+
+  private void emit(int... bytes) {
+    for (int b : bytes) {
+      if (mLength == mCode.length) {
+        if (mLength >= MAX_CODE) {
+          throw new CannotCompileException("Method is too large.");
+        }
+        mCode = Arrays.copyOf(mCode, mLength * 2);
+      }
+      mCode[mLength++] = (byte) b;
+    }
+  }
+
+  private void emitShort(int opcode, int value) {
+    emit(opcode, (value >> 8) & 0xff, value & 0xff);
+  }
+
+  private static final int MAX_CODE = 32 * 1024;
+
+  private final ClassWriter mOwner;
+  private final int mAccess;
+  private final int mName;
+  private final int mDescriptor;
+  private byte[] mCode = new byte[256];
+  private int mLength = 0;
+  private int mStack = 0;
+  private int mMaxStack = 0;
+  private int mMaxLocals;
+  private final List<int[]> mExceptions = new ArrayList<int[]>();
+}
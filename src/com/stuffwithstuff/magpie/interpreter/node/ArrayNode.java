@@ -0,0 +1,26 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+public class ArrayNode extends Node {
+  public ArrayNode(Node[] elements) {
+    mElements = elements;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    List<Obj> elements = new ArrayList<Obj>(mElements.length);
+    for (int i = 0; i < mElements.length; i++) {
+      elements.add(mElements[i].execute(context, scope));
+    }
+
+    return context.toArray(elements);
+  }
+
+  private final Node[] mElements;
+}
@@ -0,0 +1,29 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * Assigns to a variable that the Resolver couldn't find in a local scope.
+ */
+public class AssignNode extends Node {
+  public AssignNode(String name, Node value) {
+    mName = name;
+    mValue = value;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    Obj value = mValue.execute(context, scope);
+
+    if (scope.assign(mName, value)) return value;
+
+    throw context.error(Name.NO_VARIABLE_ERROR,
+        "Could not find a variable named \"" + mName + "\".");
+  }
+
+  private final String mName;
+  private final Node mValue;
+}
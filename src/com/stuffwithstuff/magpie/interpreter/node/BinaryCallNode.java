@@ -0,0 +1,44 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.CallSite;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Multimethod;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.parser.Position;
+
+/**
+ * A call whose argument is a (left, right) record. The two values are passed
+ * separately so that the record is only created if the method needs it.
+ */
+public class BinaryCallNode extends Node {
+  public BinaryCallNode(Position position, String name, Node left, Node right,
+      CallSite site) {
+    mPosition = position;
+    mName = name;
+    mLeft = left;
+    mRight = right;
+    mSite = site;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    Multimethod multimethod = scope.lookUpMultimethod(mName);
+    if (multimethod == null) {
+      throw context.error(Name.NO_METHOD_ERROR,
+          "Could not find a method named \"" + mName + "\". (" +
+          mPosition + ")");
+    }
+
+    Obj left = mLeft.execute(context, scope);
+    Obj right = mRight.execute(context, scope);
+    return mSite.invoke(multimethod, mName, context, left, right);
+  }
+
+  private final Position mPosition;
+  private final String mName;
+  private final Node mLeft;
+  private final Node mRight;
+  private final CallSite mSite;
+}
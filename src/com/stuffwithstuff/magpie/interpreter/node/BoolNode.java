@@ -0,0 +1,18 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+public class BoolNode extends Node {
+  public BoolNode(boolean value) {
+    mValue = value;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    return context.toObj(mValue);
+  }
+
+  private final boolean mValue;
+}
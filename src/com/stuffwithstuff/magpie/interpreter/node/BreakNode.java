@@ -0,0 +1,17 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.BreakException;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * A "break" inside a loop. (Outside of a loop, "break" does nothing, so the
+ * compiler turns it into a NothingNode.)
+ */
+public class BreakNode extends Node {
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    throw BreakException.INSTANCE;
+  }
+}
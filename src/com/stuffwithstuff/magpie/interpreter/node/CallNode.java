@@ -0,0 +1,36 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.CallSite;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Multimethod;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.parser.Position;
+
+public class CallNode extends Node {
+  public CallNode(Position position, String name, Node arg, CallSite site) {
+    mPosition = position;
+    mName = name;
+    mArg = arg;
+    mSite = site;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    Multimethod multimethod = scope.lookUpMultimethod(mName);
+    if (multimethod == null) {
+      throw context.error(Name.NO_METHOD_ERROR,
+          "Could not find a method named \"" + mName + "\". (" +
+          mPosition + ")");
+    }
+
+    Obj arg = mArg.execute(context, scope);
+    return mSite.invoke(multimethod, mName, context, arg);
+  }
+
+  private final Position mPosition;
+  private final String mName;
+  private final Node mArg;
+  private final CallSite mSite;
+}
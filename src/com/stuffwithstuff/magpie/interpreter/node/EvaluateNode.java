@@ -0,0 +1,23 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.ast.Expr;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * Falls back to ExprEvaluator for expressions that are rare enough that
+ * compiling them isn't worth it, like class definitions and imports.
+ */
+public class EvaluateNode extends Node {
+  public EvaluateNode(Expr expr) {
+    mExpr = expr;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    return context.evaluate(mExpr, scope);
+  }
+
+  private final Expr mExpr;
+}
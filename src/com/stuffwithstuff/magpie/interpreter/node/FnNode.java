@@ -0,0 +1,28 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.ast.FnExpr;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.FnObj;
+import com.stuffwithstuff.magpie.interpreter.Function;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * Creates a function closure. The body is compiled once along with the rest
+ * of the tree and shared by every closure created from it.
+ */
+public class FnNode extends Node {
+  public FnNode(FnExpr expr, Node body) {
+    mExpr = expr;
+    mBody = body;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    return new FnObj(context.getInterpreter().getFnClass(),
+        new Function(mExpr, scope, mBody));
+  }
+
+  private final FnExpr mExpr;
+  private final Node mBody;
+}
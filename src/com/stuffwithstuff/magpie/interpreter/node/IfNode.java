@@ -0,0 +1,36 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * The special case of a match expression with a "true" case and an "else"
+ * case, which is what "if", "and", and "or" desugar to. Since neither case
+ * binds anything, this can compare the value directly instead of running the
+ * patterns.
+ */
+public class IfNode extends Node {
+  public IfNode(Node condition, Node thenArm, Node elseArm) {
+    mCondition = condition;
+    mThen = thenArm;
+    mElse = elseArm;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    // Match the scopes that a match expression would create.
+    scope = scope.push();
+
+    Obj condition = mCondition.execute(context, scope);
+    if (context.objectsEqual(context.toObj(true), condition)) {
+      return mThen.execute(context, scope.push());
+    } else {
+      return mElse.execute(context, scope.push());
+    }
+  }
+
+  private final Node mCondition;
+  private final Node mThen;
+  private final Node mElse;
+}
@@ -0,0 +1,18 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+public class IntNode extends Node {
+  public IntNode(int value) {
+    mValue = value;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    return context.toObj(mValue);
+  }
+
+  private final int mValue;
+}
@@ -0,0 +1,33 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * Assigns to a local variable whose slot has been resolved.
+ */
+public class LocalAssignNode extends Node {
+  public LocalAssignNode(String name, int depth, int slot, Node value) {
+    mName = name;
+    mDepth = depth;
+    mSlot = slot;
+    mValue = value;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    Obj value = mValue.execute(context, scope);
+
+    if (scope.assign(mName, mDepth, mSlot, value)) return value;
+
+    throw context.error(Name.NO_VARIABLE_ERROR,
+        "Could not find a variable named \"" + mName + "\".");
+  }
+
+  private final String mName;
+  private final int mDepth;
+  private final int mSlot;
+  private final Node mValue;
+}
@@ -0,0 +1,34 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.parser.Position;
+
+/**
+ * Looks up a local variable whose slot has been resolved.
+ */
+public class LocalNameNode extends Node {
+  public LocalNameNode(Position position, String name, int depth, int slot) {
+    mPosition = position;
+    mName = name;
+    mDepth = depth;
+    mSlot = slot;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    Obj variable = scope.lookUp(mName, mDepth, mSlot);
+    if (variable != null) return variable;
+
+    throw context.error(Name.NO_VARIABLE_ERROR,
+        "Could not find a variable named \"" + mName + "\" (" +
+        mPosition + ").");
+  }
+
+  private final Position mPosition;
+  private final String mName;
+  private final int mDepth;
+  private final int mSlot;
+}
@@ -0,0 +1,30 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.BreakException;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+public class LoopNode extends Node {
+  public LoopNode(Node body) {
+    mBody = body;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    try {
+      // Loop forever. A "break" expression will throw a BreakException to
+      // escape this loop.
+      while (true) {
+        // Evaluate the body in its own scope.
+        mBody.execute(context, scope.push());
+      }
+    } catch (BreakException ex) {
+      // Nothing to do.
+    }
+
+    return context.nothing();
+  }
+
+  private final Node mBody;
+}
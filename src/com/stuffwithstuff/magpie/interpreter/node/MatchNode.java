@@ -0,0 +1,61 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.PatternBinder;
+import com.stuffwithstuff.magpie.interpreter.PatternTester;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.parser.Position;
+
+public class MatchNode extends Node {
+  public MatchNode(Position position, Node value, Pattern[] patterns,
+      Node[] bodies) {
+    mPosition = position;
+    mValue = value;
+    mPatterns = patterns;
+    mBodies = bodies;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    // Push a new scope so that a variable declared in the value expression
+    // itself disappears after the match.
+    scope = scope.push();
+
+    Obj value = mValue.execute(context, scope);
+
+    // Try each pattern until we get a match.
+    Obj result = executeCases(context, value, mPatterns, mBodies, scope);
+    if (result != null) return result;
+
+    // If we got here, no patterns matched.
+    throw context.error(Name.NO_MATCH_ERROR, "Could not find a match for \"" +
+        context.getInterpreter().evaluateToString(value) + "\" (" +
+        mPosition + ").");
+  }
+
+  /**
+   * Finds the first case whose pattern matches the value and executes its
+   * body. Returns null if no case matched.
+   */
+  static Obj executeCases(Context context, Obj value, Pattern[] patterns,
+      Node[] bodies, Scope scope) {
+    for (int i = 0; i < patterns.length; i++) {
+      if (PatternTester.test(context, patterns[i], value, scope)) {
+        // Matched. Bind variables and evaluate the body.
+        scope = scope.push();
+        PatternBinder.bind(context, false, patterns[i], value, scope);
+        return bodies[i].execute(context, scope);
+      }
+    }
+
+    return null;
+  }
+
+  private final Position mPosition;
+  private final Node mValue;
+  private final Pattern[] mPatterns;
+  private final Node[] mBodies;
+}
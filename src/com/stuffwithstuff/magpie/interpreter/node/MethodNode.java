@@ -0,0 +1,36 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.ast.FnExpr;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Function;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * Defines a method, or declares a multimethod if there is no body.
+ */
+public class MethodNode extends Node {
+  public MethodNode(String name, String doc, FnExpr function, Node body) {
+    mName = name;
+    mDoc = doc;
+    mFunction = function;
+    mBody = body;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    if (mFunction != null) {
+      scope.define(mName, new Function(mFunction, scope, mBody));
+    } else {
+      // Defining the multimethod here but not adding any methods.
+      scope.defineMultimethod(mName, mDoc);
+    }
+
+    return context.nothing();
+  }
+
+  private final String mName;
+  private final String mDoc;
+  private final FnExpr mFunction;
+  private final Node mBody;
+}
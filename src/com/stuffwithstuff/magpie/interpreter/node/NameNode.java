@@ -0,0 +1,31 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.parser.Position;
+
+/**
+ * Looks up a variable that the Resolver couldn't find in a local scope, like
+ * a module-level variable.
+ */
+public class NameNode extends Node {
+  public NameNode(Position position, String name) {
+    mPosition = position;
+    mName = name;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    Obj variable = scope.lookUp(mName);
+    if (variable != null) return variable;
+
+    throw context.error(Name.NO_VARIABLE_ERROR,
+        "Could not find a variable named \"" + mName + "\" (" +
+        mPosition + ").");
+  }
+
+  private final Position mPosition;
+  private final String mName;
+}
@@ -0,0 +1,23 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * A compiled chunk of Magpie code. NodeCompiler turns each AST expression into
+ * a tree of Nodes once, and executing the tree then calls execute() directly
+ * on each child instead of going through the ExprVisitor double dispatch that
+ * ExprEvaluator uses. Each subclass handles exactly one kind of expression (or
+ * a common special case of one), so the call sites stay simple for the JVM.
+ */
+public abstract class Node {
+  /**
+   * Executes this node.
+   * 
+   * @param   context  The context in which to execute.
+   * @param   scope    The scope that local variables are stored in.
+   * @return           The result of the expression.
+   */
+  public abstract Obj execute(Context context, Scope scope);
+}
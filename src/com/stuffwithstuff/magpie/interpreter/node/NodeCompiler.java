@@ -0,0 +1,273 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import java.util.List;
+
+import com.stuffwithstuff.magpie.ast.*;
+import com.stuffwithstuff.magpie.ast.pattern.MatchCase;
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.ast.pattern.ValuePattern;
+import com.stuffwithstuff.magpie.ast.pattern.VariablePattern;
+import com.stuffwithstuff.magpie.ast.pattern.WildcardPattern;
+import com.stuffwithstuff.magpie.parser.Position;
+import com.stuffwithstuff.magpie.util.Pair;
+
+/**
+ * Compiles an AST expression into a tree of Nodes that can be executed
+ * directly. This is the closure-compilation alternative to ExprEvaluator: the
+ * AST is walked once up front, and all of the decisions that ExprEvaluator
+ * makes on every evaluation (which kind of expression this is, whether a name
+ * has been resolved to a local slot, whether a "break" is inside a loop) are
+ * baked into the choice of node.
+ *
+ * Expressions should be run through the Resolver before being compiled.
+ */
+public class NodeCompiler implements ExprVisitor<Node, Void> {
+  /**
+   * Compiles the given top-level expression.
+   */
+  public static Node compileTopLevel(Expr expr) {
+    return new NodeCompiler().compile(expr);
+  }
+
+  @Override
+  public Node visit(ArrayExpr expr, Void dummy) {
+    return new ArrayNode(compileAll(expr.getElements()));
+  }
+
+  @Override
+  public Node visit(AssignExpr expr, Void dummy) {
+    Node value = compile(expr.getValue());
+
+    if (expr.isResolved()) {
+      return new LocalAssignNode(expr.getName(), expr.getDepth(),
+          expr.getSlot(), value);
+    }
+
+    return new AssignNode(expr.getName(), value);
+  }
+
+  @Override
+  public Node visit(BoolExpr expr, Void dummy) {
+    return new BoolNode(expr.getValue());
+  }
+
+  @Override
+  public Node visit(BreakExpr expr, Void dummy) {
+    // Outside of a loop, "break" does nothing.
+    if (mLoopDepth == 0) return new NothingNode();
+
+    return new BreakNode();
+  }
+
+  @Override
+  public Node visit(CallExpr expr, Void dummy) {
+    if (expr.getLeft() != null) {
+      return new BinaryCallNode(expr.getPosition(), expr.getName(),
+          compile(expr.getLeft()), compile(expr.getRight()), expr.getSite());
+    }
+    
+    return new CallNode(expr.getPosition(), expr.getName(),
+        compile(expr.getArg()), expr.getSite());
+  }
+
+  @Override
+  public Node visit(ClassExpr expr, Void dummy) {
+    return new EvaluateNode(expr);
+  }
+
+  @Override
+  public Node visit(FnExpr expr, Void dummy) {
+    return new FnNode(expr, compileFunction(expr.getBody()));
+  }
+
+  @Override
+  public Node visit(ImportExpr expr, Void dummy) {
+    return new EvaluateNode(expr);
+  }
+
+  @Override
+  public Node visit(IntExpr expr, Void dummy) {
+    return new IntNode(expr.getValue());
+  }
+
+  @Override
+  public Node visit(LoopExpr expr, Void dummy) {
+    mLoopDepth++;
+    Node body = compile(expr.getBody());
+    mLoopDepth--;
+
+    return new LoopNode(body);
+  }
+
+  @Override
+  public Node visit(MatchExpr expr, Void dummy) {
+    Node value = compile(expr.getValue());
+
+    if (isIf(expr.getCases())) {
+      return new IfNode(value,
+          compile(expr.getCases().get(0).getBody()),
+          compile(expr.getCases().get(1).getBody()));
+    }
+
+    List<MatchCase> cases = expr.getCases();
+    Pattern[] patterns = new Pattern[cases.size()];
+    Node[] bodies = new Node[cases.size()];
+    for (int i = 0; i < cases.size(); i++) {
+      patterns[i] = cases.get(i).getPattern();
+      bodies[i] = compile(cases.get(i).getBody());
+    }
+
+    return new MatchNode(expr.getPosition(), value, patterns, bodies);
+  }
+
+  @Override
+  public Node visit(MethodExpr expr, Void dummy) {
+    if (expr.getBody() == null) {
+      return new MethodNode(expr.getName(), expr.getDoc(), null, null);
+    }
+
+    FnExpr function = Expr.fn(expr.getPosition(), expr.getDoc(),
+        expr.getPattern(), expr.getBody());
+    return new MethodNode(expr.getName(), expr.getDoc(), function,
+        compileFunction(expr.getBody()));
+  }
+
+  @Override
+  public Node visit(NameExpr expr, Void dummy) {
+    if (expr.isResolved()) {
+      return new LocalNameNode(expr.getPosition(), expr.getName(),
+          expr.getDepth(), expr.getSlot());
+    }
+
+    return new NameNode(expr.getPosition(), expr.getName());
+  }
+
+  @Override
+  public Node visit(NothingExpr expr, Void dummy) {
+    return new NothingNode();
+  }
+
+  @Override
+  public Node visit(QuoteExpr expr, Void dummy) {
+    return new EvaluateNode(expr);
+  }
+
+  @Override
+  public Node visit(RecordExpr expr, Void dummy) {
+    List<Pair<String, Expr>> fields = expr.getFields();
+    String[] keys = new String[fields.size()];
+    Node[] values = new Node[fields.size()];
+    for (int i = 0; i < fields.size(); i++) {
+      keys[i] = fields.get(i).getKey();
+      values[i] = compile(fields.get(i).getValue());
+    }
+
+    return new RecordNode(keys, values);
+  }
+
+  @Override
+  public Node visit(ReturnExpr expr, Void dummy) {
+    return new ReturnNode(compile(expr.getValue()));
+  }
+
+  @Override
+  public Node visit(ScopeExpr expr, Void dummy) {
+    List<MatchCase> catches = expr.getCatches();
+    int numCatches = (catches == null) ? 0 : catches.size();
+
+    Pattern[] patterns = new Pattern[numCatches];
+    Node[] bodies = new Node[numCatches];
+    for (int i = 0; i < numCatches; i++) {
+      patterns[i] = catches.get(i).getPattern();
+      bodies[i] = compile(catches.get(i).getBody());
+    }
+
+    return new ScopeNode(compile(expr.getBody()), patterns, bodies);
+  }
+
+  @Override
+  public Node visit(SequenceExpr expr, Void dummy) {
+    List<Expr> exprs = expr.getExpressions();
+    Position[] positions = new Position[exprs.size()];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = exprs.get(i).getPosition();
+    }
+
+    return new SequenceNode(compileAll(exprs), positions);
+  }
+
+  @Override
+  public Node visit(StringExpr expr, Void dummy) {
+    return new StringNode(expr.getValue());
+  }
+
+  @Override
+  public Node visit(ThrowExpr expr, Void dummy) {
+    return new ThrowNode(compile(expr.getValue()));
+  }
+
+  @Override
+  public Node visit(UnquoteExpr expr, Void dummy) {
+    return new EvaluateNode(expr);
+  }
+
+  @Override
+  public Node visit(VarExpr expr, Void dummy) {
+    Node value = compile(expr.getValue());
+
+    // Handle the simple "var name = value" case directly.
+    if (expr.getPattern() instanceof VariablePattern) {
+      VariablePattern pattern = (VariablePattern) expr.getPattern();
+      if (!pattern.getName().equals("_") &&
+          (pattern.getPattern() instanceof WildcardPattern)) {
+        return new VariableNode(expr.isMutable(), pattern.getName(), value);
+      }
+    }
+
+    return new VarNode(expr.getPosition(), expr.isMutable(),
+        expr.getPattern(), value);
+  }
+
+  private NodeCompiler() {
+  }
+
+  private Node compile(Expr expr) {
+    if (expr == null) return new NothingNode();
+    return expr.accept(this, null);
+  }
+
+  private Node[] compileAll(List<Expr> exprs) {
+    Node[] nodes = new Node[exprs.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = compile(exprs.get(i));
+    }
+
+    return nodes;
+  }
+
+  /**
+   * Compiles the body of a function. A "break" inside a function body doesn't
+   * escape any loop the function is defined in, so this uses a new compiler.
+   */
+  private Node compileFunction(Expr body) {
+    return new NodeCompiler().compile(body);
+  }
+
+  /**
+   * Returns true if the cases are just a "true" case followed by a wildcard
+   * "else" case, which is how "if" desugars.
+   */
+  private boolean isIf(List<MatchCase> cases) {
+    if (cases.size() != 2) return false;
+
+    Pattern first = cases.get(0).getPattern();
+    if (!(first instanceof ValuePattern)) return false;
+    Expr value = ((ValuePattern) first).getValue();
+    if (!(value instanceof BoolExpr)) return false;
+    if (!((BoolExpr) value).getValue()) return false;
+
+    return cases.get(1).getPattern() instanceof WildcardPattern;
+  }
+
+  private int mLoopDepth = 0;
+}
@@ -0,0 +1,12 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+public class NothingNode extends Node {
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    return context.nothing();
+  }
+}
@@ -0,0 +1,26 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+public class RecordNode extends Node {
+  public RecordNode(String[] keys, Node[] values) {
+    mKeys = keys;
+    mValues = values;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    // Evaluate the fields.
+    Obj[] values = new Obj[mKeys.length];
+    for (int i = 0; i < mKeys.length; i++) {
+      values[i] = mValues[i].execute(context, scope);
+    }
+
+    return context.toObj(mKeys, values);
+  }
+
+  private final String[] mKeys;
+  private final Node[] mValues;
+}
@@ -0,0 +1,19 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.ReturnException;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+public class ReturnNode extends Node {
+  public ReturnNode(Node value) {
+    mValue = value;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    throw new ReturnException(mValue.execute(context, scope));
+  }
+
+  private final Node mValue;
+}
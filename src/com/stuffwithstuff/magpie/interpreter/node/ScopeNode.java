@@ -0,0 +1,38 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.ErrorException;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * A block with its own scope and optional "catch" clauses.
+ */
+public class ScopeNode extends Node {
+  public ScopeNode(Node body, Pattern[] catchPatterns, Node[] catchBodies) {
+    mBody = body;
+    mCatchPatterns = catchPatterns;
+    mCatchBodies = catchBodies;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    scope = scope.push();
+    try {
+      return mBody.execute(context, scope);
+    } catch (ErrorException err) {
+      // See if we can catch it here.
+      Obj result = MatchNode.executeCases(context, err.getError(),
+          mCatchPatterns, mCatchBodies, scope);
+      if (result != null) return result;
+
+      // Not caught here, so just keep unwinding.
+      throw err;
+    }
+  }
+
+  private final Node mBody;
+  private final Pattern[] mCatchPatterns;
+  private final Node[] mCatchBodies;
+}
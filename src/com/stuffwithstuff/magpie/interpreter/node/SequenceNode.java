@@ -0,0 +1,29 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Sampler;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.parser.Position;
+
+public class SequenceNode extends Node {
+  public SequenceNode(Node[] nodes, Position[] positions) {
+    mNodes = nodes;
+    mPositions = positions;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    // Execute all of the nodes and return the last.
+    Obj result = null;
+    for (int i = 0; i < mNodes.length; i++) {
+      Sampler.line(context, mPositions[i]);
+      result = mNodes[i].execute(context, scope);
+    }
+
+    return result;
+  }
+
+  private final Node[] mNodes;
+  private final Position[] mPositions;
+}
@@ -0,0 +1,43 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.PatternBinder;
+import com.stuffwithstuff.magpie.interpreter.PatternTester;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.parser.Position;
+
+/**
+ * A variable declaration with an arbitrary pattern.
+ */
+public class VarNode extends Node {
+  public VarNode(Position position, boolean isMutable, Pattern pattern,
+      Node value) {
+    mPosition = position;
+    mIsMutable = isMutable;
+    mPattern = pattern;
+    mValue = value;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    Obj value = mValue.execute(context, scope);
+
+    if (!PatternTester.test(context, mPattern, value, scope)) {
+      throw context.error(Name.NO_MATCH_ERROR, "The variable pattern \"" +
+          mPattern + "\" does not match the initialized value \"" +
+          context.getInterpreter().evaluateToString(value) + "\" (" +
+          mPosition + ").");
+    }
+
+    PatternBinder.bind(context, mIsMutable, mPattern, value, scope);
+    return value;
+  }
+
+  private final Position mPosition;
+  private final boolean mIsMutable;
+  private final Pattern mPattern;
+  private final Node mValue;
+}
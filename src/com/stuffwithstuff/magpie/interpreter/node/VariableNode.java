@@ -0,0 +1,36 @@
+package com.stuffwithstuff.magpie.interpreter.node;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * The common case of a variable declaration that just binds a single name,
+ * like "var a = 123". Since the pattern always matches, this can define the
+ * variable directly.
+ */
+public class VariableNode extends Node {
+  public VariableNode(boolean isMutable, String name, Node value) {
+    mIsMutable = isMutable;
+    mName = name;
+    mValue = value;
+  }
+
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    Obj value = mValue.execute(context, scope);
+
+    if (!scope.define(mIsMutable, mName, value)) {
+      // Cannot redefine a variable in the same scope.
+      context.error(Name.REDEFINITION_ERROR, String.format(
+          "There is already a variable named \"%s\" in this scope.", mName));
+    }
+
+    return value;
+  }
+
+  private final boolean mIsMutable;
+  private final String mName;
+  private final Node mValue;
+}
@@ -0,0 +1,533 @@
+package com.stuffwithstuff.magpie.interpreter.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.stuffwithstuff.magpie.ast.*;
+import com.stuffwithstuff.magpie.ast.pattern.MatchCase;
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.ast.pattern.ValuePattern;
+import com.stuffwithstuff.magpie.ast.pattern.VariablePattern;
+import com.stuffwithstuff.magpie.ast.pattern.WildcardPattern;
+import com.stuffwithstuff.magpie.util.Pair;
+
+/**
+ * Compiles a resolved AST expression to a Chunk of bytecode for the VM.
+ *
+ * Each expression is compiled to code that leaves its result in a given
+ * destination register. Local variables that only this chunk's code can see
+ * also get a register each, as picked by the Resolver. The rest still live
+ * in Scopes, since closures, patterns, and quotations all need to be able to
+ * find them there. Beyond that, what the VM saves is re-walking the tree:
+ * the scope pushes, jumps, and "break" unwinding that ExprEvaluator works out
+ * on every evaluation are all decided here once.
+ *
+ * Class definitions, imports, quotations and unquotes aren't compiled. They
+ * are left to ExprEvaluator through the EVALUATE instruction. A chunk that
+ * needs more than MAX_REGISTERS registers isn't compiled at all, and its
+ * code is evaluated instead.
+ */
+public class BytecodeCompiler implements ExprVisitor<Void, Integer> {
+  /**
+   * Compiles an expression that will be executed directly in a module's
+   * top-level scope. Returns null if it couldn't be compiled.
+   */
+  public static Chunk compileTopLevel(Expr expr) {
+    return new BytecodeCompiler(false).compileChunk(expr);
+  }
+
+  @Override
+  public Void visit(ArrayExpr expr, Integer dest) {
+    List<Expr> elements = expr.getElements();
+    int first = compileSequential(elements);
+    emit(OpCode.make(OpCode.ARRAY, dest, first, elements.size()));
+    release(elements.size());
+    return null;
+  }
+
+  @Override
+  public Void visit(AssignExpr expr, Integer dest) {
+    compile(expr.getValue(), dest);
+
+    if (expr.getRegister() != -1) {
+      emit(OpCode.make(OpCode.STORE, dest, local(expr.getRegister())));
+    } else if (expr.isResolved()) {
+      emit(OpCode.make(OpCode.SET_LOCAL, dest), constant(expr));
+    } else {
+      emit(OpCode.make(OpCode.SET_NAME, dest), constant(expr));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(BoolExpr expr, Integer dest) {
+    emit(OpCode.make(OpCode.BOOL, dest, expr.getValue() ? 1 : 0));
+    return null;
+  }
+
+  @Override
+  public Void visit(BreakExpr expr, Integer dest) {
+    // Outside of a loop, "break" does nothing.
+    if (mLoops.isEmpty()) {
+      emit(OpCode.make(OpCode.NOTHING, dest));
+      return null;
+    }
+
+    // Unwind to the loop and jump past it.
+    Loop loop = mLoops.get(mLoops.size() - 1);
+    for (int i = loop.tryDepth; i < mTryDepth; i++) {
+      emit(OpCode.make(OpCode.EXIT_TRY));
+    }
+    for (int i = loop.scopeDepth; i < mScopeDepth; i++) {
+      emit(OpCode.make(OpCode.POP_SCOPE));
+    }
+
+    emit(OpCode.make(OpCode.JUMP));
+    loop.breaks.add(emitPlaceholder());
+    return null;
+  }
+
+  @Override
+  public Void visit(CallExpr expr, Integer dest) {
+    // Note that unlike ExprEvaluator, the multimethod is looked up after the
+    // argument has been evaluated. The only visible difference is in the
+    // order of side effects when the method doesn't exist.
+    if (expr.getLeft() != null) {
+      int first = compileSequential(Arrays.asList(expr.getLeft(),
+          expr.getRight()));
+      emit(OpCode.make(OpCode.CALL_BINARY, dest, first), constant(expr));
+      release(2);
+      return null;
+    }
+    
+    int arg = allocate();
+    compile(expr.getArg(), arg);
+    emit(OpCode.make(OpCode.CALL, dest, arg), constant(expr));
+    release(1);
+    return null;
+  }
+
+  @Override
+  public Void visit(ClassExpr expr, Integer dest) {
+    emit(OpCode.make(OpCode.EVALUATE, dest), constant(expr));
+    return null;
+  }
+
+  @Override
+  public Void visit(FnExpr expr, Integer dest) {
+    emit(OpCode.make(OpCode.FUNCTION, dest), constant(
+        new FunctionTemplate(expr, compileFunction(expr.getBody()))));
+    return null;
+  }
+
+  @Override
+  public Void visit(ImportExpr expr, Integer dest) {
+    emit(OpCode.make(OpCode.EVALUATE, dest), constant(expr));
+    return null;
+  }
+
+  @Override
+  public Void visit(IntExpr expr, Integer dest) {
+    emit(OpCode.make(OpCode.INT, dest), expr.getValue());
+    return null;
+  }
+
+  @Override
+  public Void visit(LoopExpr expr, Integer dest) {
+    Loop loop = new Loop(mScopeDepth, mTryDepth);
+    mLoops.add(loop);
+
+    // Evaluate the body in its own scope, forever. A "break" jumps past it.
+    int start = mCount;
+    int body = allocate();
+    pushScope();
+    compile(expr.getBody(), body);
+    popScope();
+    release(1);
+    emit(OpCode.make(OpCode.JUMP), start);
+
+    mLoops.remove(mLoops.size() - 1);
+    for (int jump : loop.breaks) patch(jump);
+
+    emit(OpCode.make(OpCode.NOTHING, dest));
+    return null;
+  }
+
+  @Override
+  public Void visit(MatchExpr expr, Integer dest) {
+    // The value is evaluated in its own scope.
+    pushScope();
+
+    int value = allocate();
+    compile(expr.getValue(), value);
+
+    List<MatchCase> cases = expr.getCases();
+    if (isIf(cases)) {
+      // Since neither case binds anything, just compare to true.
+      emit(OpCode.make(OpCode.JUMP_IF_NOT_TRUE, value));
+      int elseJump = emitPlaceholder();
+
+      compileArm(cases.get(0).getBody(), dest);
+      emit(OpCode.make(OpCode.JUMP));
+      int endJump = emitPlaceholder();
+
+      patch(elseJump);
+      compileArm(cases.get(1).getBody(), dest);
+      patch(endJump);
+    } else {
+      List<Integer> endJumps = compileCases(cases, value, dest);
+
+      // If we got here, no patterns matched.
+      emit(OpCode.make(OpCode.NO_MATCH, value), constant(expr));
+      for (int jump : endJumps) patch(jump);
+    }
+
+    release(1);
+    popScope();
+    return null;
+  }
+
+  @Override
+  public Void visit(MethodExpr expr, Integer dest) {
+    FunctionTemplate function = null;
+    if (expr.getBody() != null) {
+      function = new FunctionTemplate(
+          Expr.fn(expr.getPosition(), expr.getDoc(), expr.getPattern(),
+              expr.getBody()),
+          compileFunction(expr.getBody()));
+    }
+
+    emit(OpCode.make(OpCode.METHOD), constant(
+        new MethodTemplate(expr.getName(), expr.getDoc(), function)));
+    emit(OpCode.make(OpCode.NOTHING, dest));
+    return null;
+  }
+
+  @Override
+  public Void visit(NameExpr expr, Integer dest) {
+    if (expr.getRegister() != -1) {
+      emit(OpCode.make(OpCode.LOAD, dest, local(expr.getRegister())));
+    } else if (expr.isResolved()) {
+      emit(OpCode.make(OpCode.GET_LOCAL, dest), constant(expr));
+    } else {
+      emit(OpCode.make(OpCode.GET_NAME, dest), constant(expr));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(NothingExpr expr, Integer dest) {
+    emit(OpCode.make(OpCode.NOTHING, dest));
+    return null;
+  }
+
+  @Override
+  public Void visit(QuoteExpr expr, Integer dest) {
+    emit(OpCode.make(OpCode.EVALUATE, dest), constant(expr));
+    return null;
+  }
+
+  @Override
+  public Void visit(RecordExpr expr, Integer dest) {
+    List<Pair<String, Expr>> fields = expr.getFields();
+
+    String[] keys = new String[fields.size()];
+    List<Expr> values = new ArrayList<Expr>();
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = fields.get(i).getKey();
+      values.add(fields.get(i).getValue());
+    }
+
+    int first = compileSequential(values);
+    emit(OpCode.make(OpCode.RECORD, dest, first, keys.length),
+        constant(keys));
+    release(keys.length);
+    return null;
+  }
+
+  @Override
+  public Void visit(ReturnExpr expr, Integer dest) {
+    compile(expr.getValue(), dest);
+
+    if (mIsFunction) {
+      emit(OpCode.make(OpCode.RETURN, dest));
+    } else {
+      emit(OpCode.make(OpCode.THROW_RETURN, dest));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(ScopeExpr expr, Integer dest) {
+    pushScope();
+
+    List<MatchCase> catches = expr.getCatches();
+    if (catches == null || catches.isEmpty()) {
+      compile(expr.getBody(), dest);
+      popScope();
+      return null;
+    }
+
+    int error = allocate();
+    emit(OpCode.make(OpCode.ENTER_TRY, error));
+    int handler = emitPlaceholder();
+    mTryDepth++;
+
+    compile(expr.getBody(), dest);
+
+    mTryDepth--;
+    emit(OpCode.make(OpCode.EXIT_TRY));
+    emit(OpCode.make(OpCode.JUMP));
+    int endJump = emitPlaceholder();
+
+    // The catch clauses are tested in the body's scope, outside of the try.
+    patch(handler);
+    List<Integer> endJumps = compileCases(catches, error, dest);
+
+    // Not caught here, so just keep unwinding.
+    emit(OpCode.make(OpCode.THROW, error));
+
+    patch(endJump);
+    for (int jump : endJumps) patch(jump);
+
+    release(1);
+    popScope();
+    return null;
+  }
+
+  @Override
+  public Void visit(SequenceExpr expr, Integer dest) {
+    for (Expr element : expr.getExpressions()) {
+      compile(element, dest);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(StringExpr expr, Integer dest) {
+    emit(OpCode.make(OpCode.STRING, dest), constant(expr.getValue()));
+    return null;
+  }
+
+  @Override
+  public Void visit(ThrowExpr expr, Integer dest) {
+    compile(expr.getValue(), dest);
+    emit(OpCode.make(OpCode.THROW, dest));
+    return null;
+  }
+
+  @Override
+  public Void visit(UnquoteExpr expr, Integer dest) {
+    emit(OpCode.make(OpCode.EVALUATE, dest), constant(expr));
+    return null;
+  }
+
+  @Override
+  public Void visit(VarExpr expr, Integer dest) {
+    compile(expr.getValue(), dest);
+
+    if (expr.getRegister() != -1) {
+      emit(OpCode.make(OpCode.STORE, dest, local(expr.getRegister())));
+      return null;
+    }
+
+    // Handle the simple "var name = value" case directly.
+    if (expr.getPattern() instanceof VariablePattern) {
+      VariablePattern pattern = (VariablePattern) expr.getPattern();
+      if (!pattern.getName().equals("_") &&
+          (pattern.getPattern() instanceof WildcardPattern)) {
+        emit(OpCode.make(OpCode.DEFINE, dest), constant(expr));
+        return null;
+      }
+    }
+
+    emit(OpCode.make(OpCode.VAR, dest), constant(expr));
+    return null;
+  }
+
+  /**
+   * Tracks an enclosing loop so that "break" knows what to unwind.
+   */
+  private static class Loop {
+    public Loop(int scopeDepth, int tryDepth) {
+      this.scopeDepth = scopeDepth;
+      this.tryDepth = tryDepth;
+    }
+
+    public final int scopeDepth;
+    public final int tryDepth;
+    public final List<Integer> breaks = new ArrayList<Integer>();
+  }
+
+  private BytecodeCompiler(boolean isFunction) {
+    mIsFunction = isFunction;
+  }
+
+  private Chunk compileChunk(Expr body) {
+    int result = allocate();
+    compile(body, result);
+    emit(OpCode.make(OpCode.RETURN, result));
+
+    // Bail if we ran out of registers.
+    if (mMaxRegisters > MAX_REGISTERS) return null;
+
+    return new Chunk(Arrays.copyOf(mCode, mCount), mConstants.toArray(),
+        mMaxRegisters, mNumLocals);
+  }
+
+  /**
+   * Compiles the body of a function to its own chunk. A "break" inside a
+   * function body doesn't escape any loop the function is defined in.
+   */
+  private Chunk compileFunction(Expr body) {
+    return new BytecodeCompiler(true).compileChunk(body);
+  }
+
+  private void compile(Expr expr, int dest) {
+    if (expr == null) {
+      emit(OpCode.make(OpCode.NOTHING, dest));
+      return;
+    }
+
+    expr.accept(this, dest);
+  }
+
+  /**
+   * Compiles the expressions into a run of consecutive registers and returns
+   * the first one. The caller must release them.
+   */
+  private int compileSequential(List<Expr> exprs) {
+    int first = mNextRegister;
+    for (int i = 0; i < exprs.size(); i++) allocate();
+
+    for (int i = 0; i < exprs.size(); i++) {
+      compile(exprs.get(i), first + i);
+    }
+
+    return first;
+  }
+
+  /**
+   * Compiles one arm of an "if" in its own scope.
+   */
+  private void compileArm(Expr body, int dest) {
+    pushScope();
+    compile(body, dest);
+    popScope();
+  }
+
+  /**
+   * Compiles a series of match cases that test the value in the given
+   * register. If none of them match, execution falls through the end of the
+   * generated code. Returns the jumps that need to be patched to go past the
+   * end of the whole match.
+   */
+  private List<Integer> compileCases(List<MatchCase> cases, int value,
+      int dest) {
+    List<Integer> endJumps = new ArrayList<Integer>();
+
+    for (MatchCase matchCase : cases) {
+      int pattern = constant(matchCase.getPattern());
+      emit(OpCode.make(OpCode.TEST, value), pattern);
+      int nextCase = emitPlaceholder();
+
+      // Matched. Bind variables and evaluate the body.
+      pushScope();
+      emit(OpCode.make(OpCode.BIND, value), pattern);
+      compile(matchCase.getBody(), dest);
+      popScope();
+
+      emit(OpCode.make(OpCode.JUMP));
+      endJumps.add(emitPlaceholder());
+
+      patch(nextCase);
+    }
+
+    return endJumps;
+  }
+
+  /**
+   * Returns true if the cases are just a "true" case followed by a wildcard
+   * "else" case, which is how "if" desugars.
+   */
+  private boolean isIf(List<MatchCase> cases) {
+    if (cases.size() != 2) return false;
+
+    Pattern first = cases.get(0).getPattern();
+    if (!(first instanceof ValuePattern)) return false;
+    Expr value = ((ValuePattern) first).getValue();
+    if (!(value instanceof BoolExpr)) return false;
+    if (!((BoolExpr) value).getValue()) return false;
+
+    return cases.get(1).getPattern() instanceof WildcardPattern;
+  }
+
+  private void pushScope() {
+    emit(OpCode.make(OpCode.PUSH_SCOPE));
+    mScopeDepth++;
+  }
+
+  private void popScope() {
+    emit(OpCode.make(OpCode.POP_SCOPE));
+    mScopeDepth--;
+  }
+
+  private int allocate() {
+    int register = mNextRegister++;
+    mMaxRegisters = Math.max(mMaxRegisters, mNextRegister);
+    return register;
+  }
+
+  private void release(int count) {
+    mNextRegister -= count;
+  }
+
+  /**
+   * Notes that the chunk uses the given local variable register.
+   */
+  private int local(int register) {
+    mNumLocals = Math.max(mNumLocals, register + 1);
+    return register;
+  }
+
+  private int constant(Object value) {
+    mConstants.add(value);
+    return mConstants.size() - 1;
+  }
+
+  private void emit(int... words) {
+    for (int word : words) {
+      if (mCount == mCode.length) mCode = Arrays.copyOf(mCode, mCount * 2);
+      mCode[mCount++] = word;
+    }
+  }
+
+  /**
+   * Emits a jump target to be filled in later by patch(). Returns its index.
+   */
+  private int emitPlaceholder() {
+    emit(-1);
+    return mCount - 1;
+  }
+
+  /**
+   * Sets the jump target at the given index to the current position.
+   */
+  private void patch(int index) {
+    mCode[index] = mCount;
+  }
+
+  private static final int MAX_REGISTERS = 256;
+
+  private final boolean mIsFunction;
+  private int[] mCode = new int[32];
+  private int mCount = 0;
+  private final List<Object> mConstants = new ArrayList<Object>();
+  private int mNextRegister = 0;
+  private int mMaxRegisters = 0;
+  private int mNumLocals = 0;
+  private int mScopeDepth = 0;
+  private int mTryDepth = 0;
+  private final List<Loop> mLoops = new ArrayList<Loop>();
+}
@@ -0,0 +1,41 @@
+package com.stuffwithstuff.magpie.interpreter.vm;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+import com.stuffwithstuff.magpie.interpreter.node.Node;
+
+/**
+ * A compiled chunk of bytecode: the body of a function or a top-level
+ * expression. Extends Node so that a Function can run a chunk the same way it
+ * runs a closure-compiled body.
+ */
+public class Chunk extends Node {
+  public Chunk(int[] code, Object[] constants, int numRegisters,
+      int numLocals) {
+    mCode = code;
+    mConstants = constants;
+    mNumRegisters = numRegisters;
+    mNumLocals = numLocals;
+  }
+  
+  public int[] getCode() { return mCode; }
+  public Object[] getConstants() { return mConstants; }
+  public int getNumRegisters() { return mNumRegisters; }
+  
+  /**
+   * Gets the number of registers used for local variables, which come after
+   * the temporary ones.
+   */
+  public int getNumLocals() { return mNumLocals; }
+  
+  @Override
+  public Obj execute(Context context, Scope scope) {
+    return VM.execute(this, context, scope);
+  }
+  
+  private final int[] mCode;
+  private final Object[] mConstants;
+  private final int mNumRegisters;
+  private final int mNumLocals;
+}
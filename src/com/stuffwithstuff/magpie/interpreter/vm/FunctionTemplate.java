@@ -0,0 +1,21 @@
+package com.stuffwithstuff.magpie.interpreter.vm;
+
+import com.stuffwithstuff.magpie.ast.FnExpr;
+
+/**
+ * Constant describing a function expression: its AST and its compiled body.
+ * The body may be null if it couldn't be compiled, in which case it will be
+ * evaluated.
+ */
+public class FunctionTemplate {
+  public FunctionTemplate(FnExpr expr, Chunk body) {
+    mExpr = expr;
+    mBody = body;
+  }
+  
+  public FnExpr getExpr() { return mExpr; }
+  public Chunk getBody() { return mBody; }
+  
+  private final FnExpr mExpr;
+  private final Chunk mBody;
+}
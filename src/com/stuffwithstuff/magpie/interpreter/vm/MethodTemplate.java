@@ -0,0 +1,21 @@
+package com.stuffwithstuff.magpie.interpreter.vm;
+
+/**
+ * Constant describing a method definition. If there is no function, it just
+ * declares the multimethod.
+ */
+public class MethodTemplate {
+  public MethodTemplate(String name, String doc, FunctionTemplate function) {
+    mName = name;
+    mDoc = doc;
+    mFunction = function;
+  }
+  
+  public String getName() { return mName; }
+  public String getDoc() { return mDoc; }
+  public FunctionTemplate getFunction() { return mFunction; }
+  
+  private final String mName;
+  private final String mDoc;
+  private final FunctionTemplate mFunction;
+}
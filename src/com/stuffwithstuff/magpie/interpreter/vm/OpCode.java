@@ -0,0 +1,161 @@
+package com.stuffwithstuff.magpie.interpreter.vm;
+
+/**
+ * The instruction set for the bytecode VM, and helpers for encoding and
+ * decoding instructions.
+ * 
+ * Like the C++ VM, each instruction is a single 32-bit int with the opcode in
+ * the low byte and up to three 8-bit operands, A, B, and C, in the higher
+ * bytes. Registers are always referred to by these operands, which limits a
+ * chunk to 256 registers. Operands that don't fit in a byte (constant indexes,
+ * integer literals and jump targets) are stored in the word(s) immediately
+ * following the instruction. In the descriptions below, "k" is a constant
+ * index and "t" an absolute jump target stored in following words, in order.
+ *
+ * Local variables that the Resolver keeps out of Scopes live in a second
+ * bank of registers, L, after the temporaries.
+ */
+public final class OpCode {
+  // R(A) = nothing
+  public static final int NOTHING = 0x01;
+  
+  // R(A) = true if B is 1, otherwise false.
+  public static final int BOOL = 0x02;
+  
+  // R(A) = the int literal in the following word.
+  public static final int INT = 0x03;
+  
+  // R(A) = the string in constant k.
+  public static final int STRING = 0x04;
+  
+  // R(A) = the local variable described by the resolved NameExpr in
+  // constant k, which lives in a Scope.
+  public static final int GET_LOCAL = 0x05;
+  
+  // R(A) = the variable named by the unresolved NameExpr in constant k.
+  public static final int GET_NAME = 0x06;
+  
+  // Assigns R(A) to the local variable described by the resolved AssignExpr
+  // in constant k.
+  public static final int SET_LOCAL = 0x07;
+  
+  // Assigns R(A) to the variable named by the unresolved AssignExpr in
+  // constant k.
+  public static final int SET_NAME = 0x08;
+  
+  // Defines a new variable in the current scope with value R(A). Constant k
+  // is the VarExpr, whose pattern is a single variable.
+  public static final int DEFINE = 0x09;
+  
+  // Tests R(A) against the pattern of the VarExpr in constant k and binds
+  // its variables in the current scope. Throws NoMatchError if it fails.
+  public static final int VAR = 0x0a;
+  
+  // R(A) = a record with the C fields starting at R(B). Constant k is the
+  // String[] of field names.
+  public static final int RECORD = 0x0b;
+  
+  // R(A) = an array with the C elements starting at R(B).
+  public static final int ARRAY = 0x0c;
+  
+  // R(A) = the result of invoking the multimethod for the CallExpr in
+  // constant k with argument R(B).
+  public static final int CALL = 0x0d;
+  
+  // R(A) = a new closure for the FunctionTemplate in constant k.
+  public static final int FUNCTION = 0x0e;
+  
+  // Defines a method (or declares a multimethod) for the MethodTemplate in
+  // constant k.
+  public static final int METHOD = 0x0f;
+  
+  // R(A) = the result of evaluating the Expr in constant k with the AST
+  // evaluator. Used for rare expressions that aren't worth compiling.
+  public static final int EVALUATE = 0x10;
+  
+  // Pushes a new local scope.
+  public static final int PUSH_SCOPE = 0x11;
+  
+  // Discards the current local scope.
+  public static final int POP_SCOPE = 0x12;
+  
+  // Jumps to t.
+  public static final int JUMP = 0x13;
+  
+  // Jumps to t unless R(A) is equal to true.
+  public static final int JUMP_IF_NOT_TRUE = 0x14;
+  
+  // Jumps to t if R(A) doesn't match the Pattern in constant k.
+  public static final int TEST = 0x15;
+  
+  // Binds the variables in the Pattern in constant k to R(A).
+  public static final int BIND = 0x16;
+  
+  // Throws a NoMatchError for value R(A). Constant k is the MatchExpr.
+  public static final int NO_MATCH = 0x17;
+  
+  // Registers a catch handler. If an error is thrown before the matching
+  // EXIT_TRY, the scope is restored to what it was here, the error object is
+  // stored in R(A), and execution jumps to t.
+  public static final int ENTER_TRY = 0x18;
+  
+  // Discards the most recent catch handler.
+  public static final int EXIT_TRY = 0x19;
+  
+  // Returns R(A) from the chunk.
+  public static final int RETURN = 0x1a;
+  
+  // Throws R(A) as a Magpie error.
+  public static final int THROW = 0x1b;
+  
+  // Throws a ReturnException with R(A). Used for a "return" that isn't
+  // inside a function, to match how the AST evaluator unwinds.
+  public static final int THROW_RETURN = 0x1c;
+  
+  // R(A) = the result of invoking the multimethod for the CallExpr in
+  // constant k with the argument (R(B), R(B + 1)), without creating the
+  // record.
+  public static final int CALL_BINARY = 0x1d;
+  
+  // R(A) = L(B)
+  public static final int LOAD = 0x1e;
+  
+  // L(B) = R(A). Used both to define and to assign a variable kept in a
+  // register.
+  public static final int STORE = 0x1f;
+  
+  public static int make(int op) {
+    return op;
+  }
+  
+  public static int make(int op, int a) {
+    return (a << 24) | op;
+  }
+  
+  public static int make(int op, int a, int b) {
+    return (a << 24) | (b << 16) | op;
+  }
+  
+  public static int make(int op, int a, int b, int c) {
+    return (a << 24) | (b << 16) | (c << 8) | op;
+  }
+  
+  public static int getOp(int instruction) {
+    return instruction & 0xff;
+  }
+  
+  public static int getA(int instruction) {
+    return (instruction >>> 24) & 0xff;
+  }
+  
+  public static int getB(int instruction) {
+    return (instruction >>> 16) & 0xff;
+  }
+  
+  public static int getC(int instruction) {
+    return (instruction >>> 8) & 0xff;
+  }
+  
+  private OpCode() {
+  }
+}
@@ -0,0 +1,398 @@
+package com.stuffwithstuff.magpie.interpreter.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.stuffwithstuff.magpie.ast.AssignExpr;
+import com.stuffwithstuff.magpie.ast.CallExpr;
+import com.stuffwithstuff.magpie.ast.Expr;
+import com.stuffwithstuff.magpie.ast.MatchExpr;
+import com.stuffwithstuff.magpie.ast.NameExpr;
+import com.stuffwithstuff.magpie.ast.VarExpr;
+import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.ast.pattern.VariablePattern;
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.ErrorException;
+import com.stuffwithstuff.magpie.interpreter.FnObj;
+import com.stuffwithstuff.magpie.interpreter.Function;
+import com.stuffwithstuff.magpie.interpreter.Multimethod;
+import com.stuffwithstuff.magpie.interpreter.Name;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+import com.stuffwithstuff.magpie.interpreter.PatternBinder;
+import com.stuffwithstuff.magpie.interpreter.PatternTester;
+import com.stuffwithstuff.magpie.interpreter.ReturnException;
+import com.stuffwithstuff.magpie.interpreter.Scope;
+
+/**
+ * Executes a Chunk of bytecode. Each execution gets its own register file,
+ * so chunks are reentrant and a Magpie function call is just a Java call back
+ * into the VM from Function.invoke(). The local variables kept in registers
+ * are at the end of the file.
+ */
+public class VM {
+  public static Obj execute(Chunk chunk, Context context, Scope scope) {
+    final int[] code = chunk.getCode();
+    final Object[] constants = chunk.getConstants();
+    final Obj[] registers = new Obj[chunk.getNumRegisters() +
+                                    chunk.getNumLocals()];
+    final int locals = chunk.getNumRegisters();
+
+    // Look these up once instead of going through the Context for every
+    // instruction that needs one.
+    final Obj nothing = context.nothing();
+    final Obj trueObj = context.toObj(true);
+    final Obj falseObj = context.toObj(false);
+
+    // The active catch handlers. Most chunks don't have any.
+    Handlers handlers = null;
+
+    int ip = 0;
+    while (true) {
+      try {
+        while (true) {
+          int instruction = code[ip++];
+          switch (OpCode.getOp(instruction)) {
+          case OpCode.NOTHING:
+            registers[OpCode.getA(instruction)] = nothing;
+            break;
+
+          case OpCode.BOOL:
+            registers[OpCode.getA(instruction)] =
+                (OpCode.getB(instruction) == 1) ? trueObj : falseObj;
+            break;
+
+          case OpCode.INT:
+            registers[OpCode.getA(instruction)] = context.toObj(code[ip++]);
+            break;
+
+          case OpCode.STRING:
+            registers[OpCode.getA(instruction)] =
+                context.toObj((String) constants[code[ip++]]);
+            break;
+
+          case OpCode.GET_LOCAL: {
+            NameExpr expr = (NameExpr) constants[code[ip++]];
+            Obj variable = scope.lookUp(expr.getName(), expr.getDepth(),
+                expr.getVmSlot());
+            if (variable == null) throw noVariable(context, expr);
+            registers[OpCode.getA(instruction)] = variable;
+            break;
+          }
+
+          case OpCode.GET_NAME: {
+            NameExpr expr = (NameExpr) constants[code[ip++]];
+            Obj variable = scope.lookUp(expr.getName());
+            if (variable == null) throw noVariable(context, expr);
+            registers[OpCode.getA(instruction)] = variable;
+            break;
+          }
+
+          case OpCode.SET_LOCAL: {
+            AssignExpr expr = (AssignExpr) constants[code[ip++]];
+            if (!scope.assign(expr.getName(), expr.getDepth(),
+                expr.getVmSlot(), registers[OpCode.getA(instruction)])) {
+              throw noVariable(context, expr);
+            }
+            break;
+          }
+
+          case OpCode.SET_NAME: {
+            AssignExpr expr = (AssignExpr) constants[code[ip++]];
+            if (!scope.assign(expr.getName(),
+                registers[OpCode.getA(instruction)])) {
+              throw noVariable(context, expr);
+            }
+            break;
+          }
+
+          case OpCode.LOAD:
+            registers[OpCode.getA(instruction)] =
+                registers[locals + OpCode.getB(instruction)];
+            break;
+
+          case OpCode.STORE:
+            registers[locals + OpCode.getB(instruction)] =
+                registers[OpCode.getA(instruction)];
+            break;
+
+          case OpCode.DEFINE:
+            define(context, (VarExpr) constants[code[ip++]],
+                registers[OpCode.getA(instruction)], scope);
+            break;
+
+          case OpCode.VAR:
+            var(context, (VarExpr) constants[code[ip++]],
+                registers[OpCode.getA(instruction)], scope);
+            break;
+
+          case OpCode.RECORD:
+            registers[OpCode.getA(instruction)] = record(context,
+                (String[]) constants[code[ip++]], registers,
+                OpCode.getB(instruction));
+            break;
+
+          case OpCode.ARRAY:
+            registers[OpCode.getA(instruction)] = array(context, registers,
+                OpCode.getB(instruction), OpCode.getC(instruction));
+            break;
+
+          case OpCode.CALL:
+            registers[OpCode.getA(instruction)] = call(context,
+                (CallExpr) constants[code[ip++]],
+                registers[OpCode.getB(instruction)], scope);
+            break;
+
+          case OpCode.CALL_BINARY: {
+            int left = OpCode.getB(instruction);
+            registers[OpCode.getA(instruction)] = call(context,
+                (CallExpr) constants[code[ip++]],
+                registers[left], registers[left + 1], scope);
+            break;
+          }
+
+          case OpCode.FUNCTION: {
+            FunctionTemplate template =
+                (FunctionTemplate) constants[code[ip++]];
+            registers[OpCode.getA(instruction)] = new FnObj(
+                context.getInterpreter().getFnClass(),
+                new Function(template.getExpr(), scope, template.getBody()));
+            break;
+          }
+
+          case OpCode.METHOD:
+            method(context, (MethodTemplate) constants[code[ip++]], scope);
+            break;
+
+          case OpCode.EVALUATE:
+            registers[OpCode.getA(instruction)] = context.evaluate(
+                (Expr) constants[code[ip++]], scope);
+            break;
+
+          case OpCode.PUSH_SCOPE:
+            scope = scope.push();
+            break;
+
+          case OpCode.POP_SCOPE:
+            scope = scope.getParent();
+            break;
+
+          case OpCode.JUMP:
+            ip = code[ip];
+            break;
+
+          case OpCode.JUMP_IF_NOT_TRUE: {
+            // The condition is almost always the result of "isTrue", so only
+            // ask the interpreter when it's something other than a Bool.
+            Obj condition = registers[OpCode.getA(instruction)];
+            if (condition == trueObj ||
+                (condition != falseObj && isTrue(context, condition))) {
+              ip++;
+            } else {
+              ip = code[ip];
+            }
+            break;
+          }
+
+          case OpCode.TEST: {
+            Pattern pattern = (Pattern) constants[code[ip++]];
+            if (PatternTester.test(context, pattern,
+                registers[OpCode.getA(instruction)], scope)) {
+              ip++;
+            } else {
+              ip = code[ip];
+            }
+            break;
+          }
+
+          case OpCode.BIND:
+            PatternBinder.bind(context, false, (Pattern) constants[code[ip++]],
+                registers[OpCode.getA(instruction)], scope);
+            break;
+
+          case OpCode.NO_MATCH:
+            throw noMatch(context, (MatchExpr) constants[code[ip++]],
+                registers[OpCode.getA(instruction)]);
+
+          case OpCode.ENTER_TRY:
+            if (handlers == null) handlers = new Handlers();
+            handlers.push(code[ip++], OpCode.getA(instruction), scope);
+            break;
+
+          case OpCode.EXIT_TRY:
+            handlers.pop();
+            break;
+
+          case OpCode.RETURN:
+            return registers[OpCode.getA(instruction)];
+
+          case OpCode.THROW:
+            throw new ErrorException(registers[OpCode.getA(instruction)]);
+
+          case OpCode.THROW_RETURN:
+            throw new ReturnException(registers[OpCode.getA(instruction)]);
+
+          default:
+            throw unknownOpCode(instruction);
+          }
+        }
+      } catch (ErrorException err) {
+        // Not in a try, so let it propagate.
+        if (handlers == null || handlers.isEmpty()) throw err;
+
+        // Unwind to the innermost handler.
+        scope = handlers.getScope();
+        registers[handlers.getRegister()] = err.getError();
+        ip = handlers.getTarget();
+        handlers.pop();
+      }
+    }
+  }
+
+  /**
+   * The stack of catch handlers that are active in one execution of a chunk,
+   * innermost last.
+   */
+  private static class Handlers {
+    public boolean isEmpty() { return mCount == 0; }
+    
+    public int getTarget() { return mTargets[mCount - 1]; }
+    public int getRegister() { return mRegisters[mCount - 1]; }
+    public Scope getScope() { return mScopes[mCount - 1]; }
+
+    public void push(int target, int register, Scope scope) {
+      if (mCount == mTargets.length) {
+        mTargets = Arrays.copyOf(mTargets, mCount * 2);
+        mRegisters = Arrays.copyOf(mRegisters, mCount * 2);
+        mScopes = Arrays.copyOf(mScopes, mCount * 2);
+      }
+
+      mTargets[mCount] = target;
+      mRegisters[mCount] = register;
+      mScopes[mCount] = scope;
+      mCount++;
+    }
+
+    public void pop() {
+      mCount--;
+      mScopes[mCount] = null;
+    }
+
+    private int[] mTargets = new int[INITIAL_HANDLERS];
+    private int[] mRegisters = new int[INITIAL_HANDLERS];
+    private Scope[] mScopes = new Scope[INITIAL_HANDLERS];
+    private int mCount = 0;
+  }
+
+  // The less common instructions are implemented out of line to keep the
+  // dispatch loop small enough for the JIT to optimize well.
+
+  private static void define(Context context, VarExpr expr, Obj value,
+      Scope scope) {
+    String name = ((VariablePattern) expr.getPattern()).getName();
+    if (!scope.define(expr.isMutable(), name, value)) {
+      // Cannot redefine a variable in the same scope.
+      context.error(Name.REDEFINITION_ERROR, String.format(
+          "There is already a variable named \"%s\" in this scope.", name));
+    }
+  }
+
+  private static void var(Context context, VarExpr expr, Obj value,
+      Scope scope) {
+    if (!PatternTester.test(context, expr.getPattern(), value, scope)) {
+      throw context.error(Name.NO_MATCH_ERROR, "The variable pattern \"" +
+          expr.getPattern() + "\" does not match the initialized value \"" +
+          context.getInterpreter().evaluateToString(value) + "\" (" +
+          expr.getPosition() + ").");
+    }
+
+    PatternBinder.bind(context, expr.isMutable(), expr.getPattern(), value,
+        scope);
+  }
+
+  private static boolean isTrue(Context context, Obj condition) {
+    return context.objectsEqual(context.toObj(true), condition);
+  }
+
+  private static Obj record(Context context, String[] keys, Obj[] registers,
+      int first) {
+    return context.toObj(keys,
+        Arrays.copyOfRange(registers, first, first + keys.length));
+  }
+
+  private static Obj array(Context context, Obj[] registers, int first,
+      int count) {
+    List<Obj> elements = new ArrayList<Obj>(count);
+    for (int i = 0; i < count; i++) {
+      elements.add(registers[first + i]);
+    }
+
+    return context.toArray(elements);
+  }
+
+  private static Obj call(Context context, CallExpr expr, Obj arg,
+      Scope scope) {
+    Multimethod multimethod = scope.lookUpMultimethod(expr.getName());
+    if (multimethod == null) {
+      throw context.error(Name.NO_METHOD_ERROR,
+          "Could not find a method named \"" + expr.getName() + "\". (" +
+          expr.getPosition() + ")");
+    }
+
+    return expr.getSite().invoke(multimethod, expr.getName(), context, arg);
+  }
+
+  private static Obj call(Context context, CallExpr expr, Obj left, Obj right,
+      Scope scope) {
+    Multimethod multimethod = scope.lookUpMultimethod(expr.getName());
+    if (multimethod == null) {
+      throw context.error(Name.NO_METHOD_ERROR,
+          "Could not find a method named \"" + expr.getName() + "\". (" +
+          expr.getPosition() + ")");
+    }
+
+    return expr.getSite().invoke(multimethod, expr.getName(), context,
+        left, right);
+  }
+
+  private static void method(Context context, MethodTemplate template,
+      Scope scope) {
+    FunctionTemplate function = template.getFunction();
+    if (function != null) {
+      scope.define(template.getName(), new Function(function.getExpr(), scope,
+          function.getBody()));
+    } else {
+      // Defining the multimethod here but not adding any methods.
+      scope.defineMultimethod(template.getName(), template.getDoc());
+    }
+  }
+
+  private static ErrorException noMatch(Context context, MatchExpr expr,
+      Obj value) {
+    return context.error(Name.NO_MATCH_ERROR,
+        "Could not find a match for \"" +
+        context.getInterpreter().evaluateToString(value) + "\" (" +
+        expr.getPosition() + ").");
+  }
+
+  private static IllegalStateException unknownOpCode(int instruction) {
+    return new IllegalStateException("Unknown opcode " +
+        OpCode.getOp(instruction) + ".");
+  }
+
+  private static ErrorException noVariable(Context context, NameExpr expr) {
+    return context.error(Name.NO_VARIABLE_ERROR,
+        "Could not find a variable named \"" + expr.getName() + "\" (" +
+        expr.getPosition() + ").");
+  }
+
+  private static ErrorException noVariable(Context context, AssignExpr expr) {
+    return context.error(Name.NO_VARIABLE_ERROR,
+        "Could not find a variable named \"" + expr.getName() + "\".");
+  }
+
+  private static final int INITIAL_HANDLERS = 4;
+
+  private VM() {
+  }
+}
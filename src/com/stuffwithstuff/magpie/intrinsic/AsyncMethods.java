@@ -1,21 +1,31 @@
 package com.stuffwithstuff.magpie.intrinsic;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.stuffwithstuff.magpie.Def;
 import com.stuffwithstuff.magpie.Doc;
 import com.stuffwithstuff.magpie.interpreter.Channel;
 import com.stuffwithstuff.magpie.interpreter.ClassObj;
 import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.ErrorException;
 import com.stuffwithstuff.magpie.interpreter.FnObj;
+import com.stuffwithstuff.magpie.interpreter.Name;
 import com.stuffwithstuff.magpie.interpreter.Obj;
 import com.stuffwithstuff.magpie.interpreter.Routine;
+import com.stuffwithstuff.magpie.util.Pair;
 
 // TODO(bob): This is all very rough and hacked together.
 public class AsyncMethods {
   // TODO(bob): Hackish.
-  @Def("_setClasses(== Channel)")
+  @Def("_setClasses(channel: == Channel, routine: == Routine, " +
+       "iterator: == ChannelIterator, closedError: == ChannelClosedError)")
   public static class SetClasses implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
-      sChannelClass = right.asClass();
+      sChannelClass = right.getField("channel").asClass();
+      sRoutineClass = right.getField("routine").asClass();
+      sIteratorClass = right.getField("iterator").asClass();
+      sClosedErrorClass = right.getField("closedError").asClass();
       
       return context.nothing();
     }
@@ -33,6 +43,10 @@ public class AsyncMethods {
   public static class NewChannel_Capacity implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       int capacity = right.asInt();
+      if (capacity < 1) {
+        throw context.error(Name.ARGUMENT_ERROR,
+            "A channel's capacity must be at least 1, not " + capacity + ".");
+      }
       
       Channel channel = new Channel(capacity);
       return context.instantiate(sChannelClass, channel);
@@ -41,47 +55,201 @@ public class AsyncMethods {
   
   @Def("(is Channel) send(value)")
   @Doc("Sends the given value to the channel. The value must be\n" +
-       "thread-safe. If the channel's buffer is full, this blocks")
+       "thread-safe. If the channel's buffer is full, this blocks. Throws a\n" +
+       "ChannelClosedError if the channel is closed.")
   public static class Send implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       Channel channel = (Channel) left.getValue();
       
       try {
-        channel.send(right);
+        if (!channel.send(right)) throw closedError(context);
         return context.nothing();
       } catch (InterruptedException e) {
-        // TODO(bob): Better error.
-        throw context.error("Error", "Interrupted");
+        throw interruptedError(context);
       }
     }
   }
   
+  @Def("(is Channel) trySend(value)")
+  @Doc("Sends the given value to the channel if there is room in its\n" +
+       "buffer, without blocking. Returns true if it was sent, or false if\n" +
+       "the buffer is full or the channel is closed.")
+  public static class TrySend implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Channel channel = (Channel) left.getValue();
+      return context.toObj(channel.trySend(right));
+    }
+  }
+  
   @Def("(is Channel) receive()")
-  @Doc("Reads a value from the channel. If the channe's buffer is empty,\n" +
-       "then this blocks until another thread sends a value to it.")
+  @Doc("Reads a value from the channel. If the channel's buffer is empty,\n" +
+       "then this blocks until another thread sends a value to it. Throws a\n" +
+       "ChannelClosedError if the channel is closed and has no more values.")
   public static class Receive implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       Channel channel = (Channel) left.getValue();
       
       try {
-        return channel.receive();
+        Obj value = channel.receive();
+        if (value == null) throw closedError(context);
+        return value;
       } catch (InterruptedException e) {
-        // TODO(bob): Better error.
-        throw context.error("Error", "Interrupted");
+        throw interruptedError(context);
       }
     }
   }
+  
+  @Def("(is Channel) receive(timeout: milliseconds is Int)")
+  @Doc("Reads a value from the channel, waiting up to the given number of\n" +
+       "milliseconds for one to be sent. Returns nothing if none was. Throws\n" +
+       "a ChannelClosedError if the channel is closed and has no more values.")
+  public static class Receive_Timeout implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Channel channel = (Channel) left.getValue();
+      
+      try {
+        Obj value = channel.receive(timeout(context, right));
+        if (value != null) return value;
+        if (!channel.isOpen()) throw closedError(context);
+        return context.nothing();
+      } catch (InterruptedException e) {
+        throw interruptedError(context);
+      }
+    }
+  }
+  
+  @Def("(is Channel) tryReceive()")
+  @Doc("Reads a value from the channel if one has been sent, without\n" +
+       "blocking. Returns nothing if there isn't one.")
+  public static class TryReceive implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Channel channel = (Channel) left.getValue();
+      
+      Obj value = channel.tryReceive();
+      if (value == null) return context.nothing();
+      return value;
+    }
+  }
+  
+  @Def("(is Channel) close()")
+  @Doc("Closes the channel. Nothing more can be sent to it, but values\n" +
+       "that have already been sent can still be received.")
+  public static class Close implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Channel channel = (Channel) left.getValue();
+      channel.close();
+      return context.nothing();
+    }
+  }
+  
+  @Def("(is Channel) isOpen")
+  @Doc("Returns true if the channel has not been closed.")
+  public static class IsOpen implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Channel channel = (Channel) left.getValue();
+      return context.toObj(channel.isOpen());
+    }
+  }
+  
+  @Def("(is Channel) iterate()")
+  @Doc("Returns an iterator that receives values from the channel until it\n" +
+       "is closed and has no more values.")
+  public static class Iterate implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Channel channel = (Channel) left.getValue();
+      return context.instantiate(sIteratorClass, new ChannelIteration(channel));
+    }
+  }
+  
+  @Def("(is ChannelIterator) next()")
+  public static class IteratorNext implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ChannelIteration iteration = (ChannelIteration) left.getValue();
+      
+      try {
+        iteration.current = iteration.channel.receive();
+        return context.toObj(iteration.current != null);
+      } catch (InterruptedException e) {
+        throw interruptedError(context);
+      }
+    }
+  }
+  
+  @Def("(is ChannelIterator) current")
+  public static class IteratorCurrent implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      ChannelIteration iteration = (ChannelIteration) left.getValue();
+      return iteration.current;
+    }
+  }
+  
+  @Def("select(channels is Array)")
+  @Doc("Waits until one of the channels has a value and receives it.\n" +
+       "Returns a record of the channel and the value. Throws a\n" +
+       "ChannelClosedError if every channel is closed and has no more\n" +
+       "values.")
+  public static class Select implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Obj result = select(context, right.asList(), -1);
+      if (result == null) throw closedError(context);
+      return result;
+    }
+  }
+  
+  @Def("select(channels is Array, timeout: milliseconds is Int)")
+  @Doc("Like select(channels), but waits at most the given number of\n" +
+       "milliseconds. Returns nothing if no channel had a value by then.")
+  public static class Select_Timeout implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      List<Obj> channels = right.getField(0).asList();
+      int timeout = timeout(context, right);
+      
+      Obj result = select(context, channels, timeout);
+      if (result != null) return result;
+      
+      for (Obj channel : channels) {
+        if (((Channel) channel.getValue()).isOpen()) return context.nothing();
+      }
+      
+      throw closedError(context);
+    }
+  }
 
   @Def("run(body is Function)")
-  @Doc("Creates a new thread and runs the function concurrently on it.")
+  @Doc("Runs the function concurrently with the caller. Returns a Routine\n" +
+       "that can be used to wait for it to finish.")
   public static class Run implements Intrinsic {
     public Obj invoke(Context context, Obj left, Obj right) {
       FnObj function = right.asFn();
       
       Routine routine = new Routine(context, function);
-      routine.start();
+      context.getInterpreter().getScheduler().schedule(routine);
       
-      return context.nothing();
+      return context.instantiate(sRoutineClass, routine);
+    }
+  }
+  
+  @Def("(is Routine) join()")
+  @Doc("Waits for the routine to finish and returns the value its function\n" +
+       "returned. If the function threw an error, throws it here.")
+  public static class Join implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Routine routine = (Routine) left.getValue();
+      
+      try {
+        return routine.join();
+      } catch (InterruptedException e) {
+        throw interruptedError(context);
+      }
+    }
+  }
+  
+  @Def("(is Routine) isDone")
+  @Doc("Returns true if the routine has finished running.")
+  public static class IsDone implements Intrinsic {
+    public Obj invoke(Context context, Obj left, Obj right) {
+      Routine routine = (Routine) left.getValue();
+      return context.toObj(routine.isDone());
     }
   }
 
@@ -93,13 +261,74 @@ public class AsyncMethods {
       try {
         Thread.sleep(milliseconds);
       } catch (InterruptedException e) {
-        // TODO(bob): Handle error.
-        e.printStackTrace();
+        throw interruptedError(context);
       }
       
       return context.nothing();
     }
   }
   
+  /**
+   * Receives from the first of the channels that has a value.
+   * 
+   * @return A (channel, value) record, or null if the timeout expired or
+   *         every channel is closed.
+   */
+  private static Obj select(Context context, List<Obj> channelObjs,
+      int timeout) {
+    List<Channel> channels = new ArrayList<Channel>();
+    for (Obj channelObj : channelObjs) {
+      channels.add((Channel) channelObj.getValue());
+    }
+    
+    try {
+      Pair<Channel, Obj> received = Channel.select(channels, timeout);
+      if (received == null) return null;
+      
+      Obj channel = channelObjs.get(channels.indexOf(received.getKey()));
+      return context.toObj(channel, received.getValue());
+    } catch (InterruptedException e) {
+      throw interruptedError(context);
+    }
+  }
+  
+  /**
+   * Gets the "timeout" field of the argument, which must not be negative.
+   */
+  private static int timeout(Context context, Obj arg) {
+    int timeout = arg.getField("timeout").asInt();
+    if (timeout < 0) {
+      throw context.error(Name.ARGUMENT_ERROR,
+          "A timeout can't be negative, but was " + timeout + ".");
+    }
+    
+    return timeout;
+  }
+  
+  private static ErrorException interruptedError(Context context) {
+    return context.error(Name.INTERRUPTED_ERROR,
+        "The routine was interrupted while waiting.");
+  }
+  
+  private static ErrorException closedError(Context context) {
+    Obj error = context.instantiate(sClosedErrorClass, "Channel is closed.");
+    return new ErrorException(error);
+  }
+  
+  /**
+   * The state of a ChannelIterator. Only the thread iterating uses it.
+   */
+  private static class ChannelIteration {
+    public ChannelIteration(Channel channel) {
+      this.channel = channel;
+    }
+    
+    public final Channel channel;
+    public Obj current;
+  }
+  
   private static ClassObj sChannelClass;
+  private static ClassObj sRoutineClass;
+  private static ClassObj sIteratorClass;
+  private static ClassObj sClosedErrorClass;
 }
@@ -21,13 +21,17 @@ public class ClassInit implements Callable {
   public ClassInit(ClassObj classObj, Scope closure) {
     mClass = classObj;
     mClosure = closure;
+    mPattern = createPattern(classObj);
   }
 
   @Override
   public Obj invoke(Context context, Obj arg) {
+    return invoke(context, arg.getField(0), arg.getField(1));
+  }
+  
+  @Override
+  public Obj invoke(Context context, Obj left, Obj arg) {
     // We don't care about the receiver.
-    arg = arg.getField(1);
-    
     Obj obj = context.getInterpreter().getConstructingObject();
 
     // Initialize the parent classes from the record.
@@ -55,13 +59,17 @@ public class ClassInit implements Callable {
   
   @Override
   public Pattern getPattern() {
+    return mPattern;
+  }
+  
+  private static Pattern createPattern(ClassObj classObj) {
     // The receiver should be the class object itself.
-    Pattern receiver = Pattern.value(Expr.name(mClass.getName()));
+    Pattern receiver = Pattern.value(Expr.name(classObj.getName()));
     
     // The argument should be a record with fields for each declared field
     // in the class.
     Map<String, Pattern> fields = new HashMap<String, Pattern>();
-    for (Entry<String, FieldObj> field : mClass.getFieldDefinitions().entrySet()) {
+    for (Entry<String, FieldObj> field : classObj.getFieldDefinitions().entrySet()) {
       // Only care about fields that don't have initializers.
       if (field.getValue().getInitializer() == null) {
         fields.put(field.getKey(), field.getValue().getPattern());
@@ -90,4 +98,5 @@ public class ClassInit implements Callable {
   
   private final ClassObj mClass;
   private final Scope mClosure;
+  private final Pattern mPattern;
 }
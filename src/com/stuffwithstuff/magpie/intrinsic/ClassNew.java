@@ -17,23 +17,30 @@ import com.stuffwithstuff.magpie.interpreter.Scope;
 public class ClassNew implements Callable {
   public ClassNew(Scope closure) {
     mClosure = closure;
+
+    // The receiver is any instance of Class, and it takes any argument, since
+    // it will simply forward it onto 'init()'.
+    mPattern = Pattern.record(
+        Pattern.type(Expr.name(Name.CLASS)),
+        Pattern.wildcard());
   }
 
   @Override
   public Obj invoke(Context context, Obj arg) {
+    return invoke(context, arg.getField(0), arg.getField(1));
+  }
+  
+  @Override
+  public Obj invoke(Context context, Obj left, Obj right) {
     // Get the class being constructed.
-    ClassObj classObj = arg.getField(0).asClass();
+    ClassObj classObj = left.asClass();
     return context.getInterpreter().constructNewObject(
-        context, classObj, arg.getField(1));
+        context, classObj, right);
   }
   
   @Override
   public Pattern getPattern() {
-    // The receiver is any instance of Class, and it takes any argument, since
-    // it will simply forward it onto 'init()'.
-    return Pattern.record(
-        Pattern.type(Expr.name(Name.CLASS)),
-        Pattern.wildcard());
+    return mPattern;
   }
 
   @Override
@@ -47,4 +54,5 @@ public class ClassNew implements Callable {
   }
 
   private final Scope mClosure;
+  private final Pattern mPattern;
 }
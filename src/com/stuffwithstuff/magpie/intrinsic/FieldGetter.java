@@ -5,6 +5,7 @@ import com.stuffwithstuff.magpie.ast.pattern.Pattern;
 import com.stuffwithstuff.magpie.interpreter.Callable;
 import com.stuffwithstuff.magpie.interpreter.ClassObj;
 import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.FieldSlot;
 import com.stuffwithstuff.magpie.interpreter.Obj;
 import com.stuffwithstuff.magpie.interpreter.Scope;
 
@@ -13,14 +14,19 @@ import com.stuffwithstuff.magpie.interpreter.Scope;
  */
 public class FieldGetter implements Callable {
   public FieldGetter(ClassObj classObj, String name, Scope closure) {
-    mName = name;
+    mField = new FieldSlot(name);
     mPattern = Pattern.record(Pattern.type(Expr.name(classObj.getName())), Pattern.nothing());
     mClosure = closure;
   }
   
   @Override
   public Obj invoke(Context context, Obj arg) {
-    Obj value = arg.getField(0).getField(mName);
+    return invoke(context, arg.getField(0), arg.getField(1));
+  }
+  
+  @Override
+  public Obj invoke(Context context, Obj left, Obj right) {
+    Obj value = mField.get(left);
     if (value == null) return context.nothing();
     return value;
   }
@@ -40,7 +46,7 @@ public class FieldGetter implements Callable {
     return "Gets the value of the field.";
   }
 
-  private final String mName;
+  private final FieldSlot mField;
   private final Pattern mPattern;
   private final Scope mClosure;
 }
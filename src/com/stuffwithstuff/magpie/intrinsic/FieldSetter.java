@@ -6,6 +6,7 @@ import com.stuffwithstuff.magpie.ast.pattern.Pattern;
 import com.stuffwithstuff.magpie.interpreter.Callable;
 import com.stuffwithstuff.magpie.interpreter.ClassObj;
 import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.FieldSlot;
 import com.stuffwithstuff.magpie.interpreter.Obj;
 import com.stuffwithstuff.magpie.interpreter.Scope;
 
@@ -14,7 +15,7 @@ import com.stuffwithstuff.magpie.interpreter.Scope;
  */
 public class FieldSetter implements Callable {
   public FieldSetter(ClassObj classObj, String name, Field field, Scope closure) {
-    mName = name;
+    mField = new FieldSlot(name);
     mPattern = Pattern.record(
         Pattern.record(Pattern.type(Expr.name(classObj.getName())), Pattern.nothing()),
         field.getPattern());
@@ -23,8 +24,13 @@ public class FieldSetter implements Callable {
   
   @Override
   public Obj invoke(Context context, Obj arg) {
-    arg.getField(0).getField(0).setField(mName, arg.getField(1));
-    return arg.getField(1);
+    return invoke(context, arg.getField(0), arg.getField(1));
+  }
+  
+  @Override
+  public Obj invoke(Context context, Obj left, Obj right) {
+    mField.set(left.getField(0), right);
+    return right;
   }
 
   @Override
@@ -42,7 +48,7 @@ public class FieldSetter implements Callable {
     return "Sets the field to the given value.";
   }
 
-  private final String mName;
+  private final FieldSlot mField;
   private final Pattern mPattern;
   private final Scope mClosure;
 }
@@ -0,0 +1,18 @@
+package com.stuffwithstuff.magpie.intrinsic;
+
+import com.stuffwithstuff.magpie.interpreter.Context;
+import com.stuffwithstuff.magpie.interpreter.Obj;
+
+/**
+ * An intrinsic for a primitive operation on two Ints. Its operands are
+ * declared as Java ints, so once a call site has selected it for two Ints it
+ * can call it straight with their values, without looking at the cached
+ * argument shapes or going through Obj.
+ */
+public abstract class IntIntrinsic implements Intrinsic {
+  public final Obj invoke(Context context, Obj left, Obj right) {
+    return invoke(context, left.asInt(), right.asInt());
+  }
+  
+  public abstract Obj invoke(Context context, int left, int right);
+}
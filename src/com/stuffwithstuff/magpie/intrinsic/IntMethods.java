@@ -53,9 +53,9 @@ public class IntMethods {
     protected int perform(int left, int right) { return left % right; }
   }
 
-  private abstract static class ArithmeticOperator implements Intrinsic {
-    public Obj invoke(Context context, Obj left, Obj right) {
-      return context.toObj(perform(left.asInt(), right.asInt()));
+  private abstract static class ArithmeticOperator extends IntIntrinsic {
+    public Obj invoke(Context context, int left, int right) {
+      return context.toObj(perform(left, right));
     }
     
     protected abstract int perform(int left, int right);
@@ -63,18 +63,18 @@ public class IntMethods {
   
   @Def("(left is Int) ==(right is Int)")
   @Doc("Returns true if the two numbers are equal.")
-  public static class Equals implements Intrinsic {
-    public Obj invoke(Context context, Obj left, Obj right) {
-      return context.toObj(left.asInt() == right.asInt());
+  public static class Equals extends IntIntrinsic {
+    public Obj invoke(Context context, int left, int right) {
+      return context.toObj(left == right);
     }
   }
   
   @Def("(left is Int) compareTo(right is Int)")
   @Doc("Returns -1 if left is less than right, 1 if it is greater or 0 if\n" +
        "they are the same.")
-  public static class Compare implements Intrinsic {
-    public Obj invoke(Context context, Obj left, Obj right) {
-      return context.toObj(((Integer)left.asInt()).compareTo(right.asInt()));
+  public static class Compare extends IntIntrinsic {
+    public Obj invoke(Context context, int left, int right) {
+      return context.toObj((left < right) ? -1 : ((left == right) ? 0 : 1));
     }
   }
   
@@ -2,15 +2,22 @@ package com.stuffwithstuff.magpie.intrinsic;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.stuffwithstuff.magpie.Def;
 import com.stuffwithstuff.magpie.Doc;
 import com.stuffwithstuff.magpie.Method;
+import com.stuffwithstuff.magpie.ast.Expr;
+import com.stuffwithstuff.magpie.ast.MethodExpr;
+import com.stuffwithstuff.magpie.ast.StringExpr;
 import com.stuffwithstuff.magpie.ast.pattern.Pattern;
+import com.stuffwithstuff.magpie.interpreter.AstCache;
 import com.stuffwithstuff.magpie.interpreter.Callable;
 import com.stuffwithstuff.magpie.interpreter.Scope;
 import com.stuffwithstuff.magpie.parser.MagpieParser;
 import com.stuffwithstuff.magpie.parser.ParseException;
+import com.stuffwithstuff.magpie.parser.Position;
 import com.stuffwithstuff.magpie.util.Pair;
 
 public abstract class IntrinsicLoader {
@@ -34,26 +41,90 @@ public abstract class IntrinsicLoader {
     }
   }
   
+  /**
+   * Defines the intrinsic methods in the given Java class in the scope. Each
+   * one is an inner class with a {@link Def} annotation giving its signature.
+   * If the AstCache has kept what those are, they're used instead of reading
+   * the annotations and parsing the signatures. If the cache names a class
+   * that no longer exists, it's stale, and the annotations are read as if it
+   * had no entry.
+   */
   @SuppressWarnings({ "unchecked", "rawtypes" })
   public static void register(Class javaClass, Scope scope) {
-
-    for (Class innerClass : javaClass.getDeclaredClasses()) {
-      Def signature = (Def) innerClass.getAnnotation(Def.class);
-      if (signature != null) {
-        registerMethod(scope, innerClass, signature.value());
+    List<Expr> methods = AstCache.loadIntrinsics(javaClass);
+    List<Class> classes = null;
+    if (methods != null) {
+      classes = loadClasses(javaClass.getClassLoader(), methods);
+    }
+    
+    if (classes == null) {
+      methods = new ArrayList<Expr>();
+      classes = new ArrayList<Class>();
+      for (Class innerClass : javaClass.getDeclaredClasses()) {
+        Def signature = (Def) innerClass.getAnnotation(Def.class);
+        if (signature != null) {
+          Expr method = describeMethod(innerClass, signature.value());
+          if (method != null) {
+            methods.add(method);
+            classes.add(innerClass);
+          }
+        }
+      }
+      
+      AstCache.storeIntrinsics(javaClass, methods);
+    }
+    
+    for (int i = 0; i < methods.size(); i++) {
+      registerMethod(scope, classes.get(i), (MethodExpr) methods.get(i));
+    }
+  }
+  
+  /**
+   * Loads the classes named by the bodies of recorded method definitions.
+   * 
+   * @return The classes, or null if any of them couldn't be found.
+   */
+  @SuppressWarnings("rawtypes")
+  private static List<Class> loadClasses(ClassLoader classLoader,
+      List<Expr> methods) {
+    List<Class> classes = new ArrayList<Class>();
+    for (Expr method : methods) {
+      String className = ((StringExpr) ((MethodExpr) method).getBody())
+          .getValue();
+      try {
+        classes.add(classLoader.loadClass(className));
+      } catch (ClassNotFoundException e) {
+        return null;
       }
     }
+    
+    return classes;
+  }
+  
+  /**
+   * Creates a method definition for an intrinsic, whose body is the name of
+   * the class that implements it.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static Expr describeMethod(Class innerClass, String signature) {
+    Pair<String, Pattern> parsed = parseSignature(signature);
+    if (parsed == null) return null;
+    
+    // Look for documentation.
+    String doc = "";
+    Doc docAnnotation = (Doc) innerClass.getAnnotation(Doc.class);
+    if (docAnnotation != null) {
+      doc = docAnnotation.value();
+    }
+    
+    return Expr.method(Position.none(), doc, parsed.getKey(),
+        parsed.getValue(), Expr.string(innerClass.getName()));
   }
   
   @SuppressWarnings({ "unchecked", "rawtypes" })
-  private static void registerMethod(Scope scope,
-      Class innerClass, String signature) {
+  private static void registerMethod(Scope scope, Class innerClass,
+      MethodExpr method) {
     try {
-      Pair<String, Pattern> parsed = parseSignature(signature);
-
-      String name = parsed.getKey();
-      Pattern pattern = parsed.getValue();
-      
       Constructor ctor = innerClass.getConstructor();
       Object instance = ctor.newInstance();
       
@@ -63,17 +134,11 @@ public abstract class IntrinsicLoader {
         instance = new MethodWrapper((Method) instance);
       }
       
-      // Look for documentation.
-      String doc = "";
-      Doc docAnnotation = (Doc) innerClass.getAnnotation(Doc.class);
-      if (docAnnotation != null) {
-        doc = docAnnotation.value();
-      }
-      
-      Callable callable = new IntrinsicCallable(pattern, doc, (Intrinsic) instance, scope);
+      Callable callable = new IntrinsicCallable(method.getPattern(),
+          method.getDoc(), (Intrinsic) instance, scope);
       
       // Register it.
-      scope.define(name, callable);
+      scope.define(method.getName(), callable);
       
     } catch (SecurityException e) {
       // TODO Auto-generated catch block
@@ -0,0 +1,74 @@
+package com.stuffwithstuff.magpie.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import com.stuffwithstuff.magpie.SourceReader;
+import com.stuffwithstuff.magpie.util.Expect;
+
+/**
+ * Reads UTF-8 text from a ByteBuffer, decoding it straight into the lexer's
+ * buffer as it's asked for. Used to read memory-mapped source files without
+ * first copying their text onto the heap.
+ */
+public class ByteBufferReader implements SourceReader {
+  public ByteBufferReader(String description, ByteBuffer bytes) {
+    Expect.notNull(description);
+    Expect.notNull(bytes);
+
+    mDescription = description;
+    mBytes = bytes;
+    mDecoder = Charset.forName("UTF-8").newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+  
+  @Override
+  public String getDescription() { return mDescription; }
+  
+  @Override
+  public int read(char[] buffer, int offset, int length) {
+    if (length == 0) return 0;
+    
+    // Finish a surrogate pair that didn't fit last time.
+    if (mHasPending) {
+      buffer[offset] = mPending;
+      mHasPending = false;
+      return 1;
+    }
+    
+    if (mFlushed) return -1;
+    
+    CharBuffer chars = CharBuffer.wrap(buffer, offset, length);
+    CoderResult result = mDecoder.decode(mBytes, chars, true);
+    if (result.isUnderflow()) {
+      // All of the bytes have been decoded.
+      mDecoder.flush(chars);
+      mFlushed = true;
+    }
+    
+    int read = chars.position() - offset;
+    if (read > 0) return read;
+    if (mFlushed) return -1;
+    
+    // There was only room for one char and the next one is a surrogate pair,
+    // so decode it on the side and keep the second half.
+    CharBuffer pair = CharBuffer.allocate(2);
+    mDecoder.decode(mBytes, pair, true);
+    buffer[offset] = pair.get(0);
+    mPending = pair.get(1);
+    mHasPending = true;
+    return 1;
+  }
+
+  private final String mDescription;
+  private final ByteBuffer mBytes;
+  private final CharsetDecoder mDecoder;
+  private boolean mFlushed = false;
+  private boolean mHasPending = false;
+  private char mPending;
+}
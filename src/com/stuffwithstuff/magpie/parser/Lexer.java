@@ -7,6 +7,13 @@ import com.stuffwithstuff.magpie.SourceReader;
 import com.stuffwithstuff.magpie.parser.Token;
 import com.stuffwithstuff.magpie.parser.TokenType;
 
+/**
+ * Splits source text into tokens. The lexer reads the source in chunks into
+ * its own buffer, and the characters of the token being read stay together at
+ * the end of it. A token's text is made in one piece from that slice of the
+ * buffer when the token is done. Names, operators, numbers and whitespace are
+ * scanned by looping directly over the buffer.
+ */
 public class Lexer implements TokenReader {
 
   public Lexer(SourceReader text) {
@@ -16,7 +23,6 @@ public class Lexer implements TokenReader {
     
     mStartLine = 1;
     mStartCol = 1;
-    mRead = "";
   }
 
   public Token readToken() {
@@ -72,7 +78,7 @@ public class Lexer implements TokenReader {
       return makeToken(TokenType.LINE_CONTINUATION);
       
       // EOF.
-    case '\0': return makeToken(TokenType.EOF);
+    case '\0': return makeToken(TokenType.EOF, "\0", "\0");
     
     default:
       if (isName(c)) {
@@ -92,17 +98,8 @@ public class Lexer implements TokenReader {
   }
   
   private Token readWhitespace() {
-    while (true) {
-      switch (peek()) {
-      case ' ':
-      case '\t':
-        advance();
-        break;
-        
-      default:
-        return makeToken(TokenType.WHITESPACE);
-      }
-    }
+    scan(SPACE);
+    return makeToken(TokenType.WHITESPACE);
   }
   
   private Token readString() {
@@ -175,19 +172,23 @@ public class Lexer implements TokenReader {
     // See if it's a "///" doc comment.
     boolean isDoc = slashCount == 3;
       
+    // Skip to the end of the line.
     while (true) {
-      switch (peek()) {
-      case '\n':
-      case '\r':
-      case '\0':
-        String value = mRead.substring(slashCount).trim();
-        return makeToken(
-            isDoc ? TokenType.DOC_COMMENT : TokenType.LINE_COMMENT, value);
-        
-      default:
-        advance();
+      int pos = mPos;
+      while (pos < mLength) {
+        char c = mChars[pos];
+        if ((c == '\n') || (c == '\r') || (c == '\0')) break;
+        pos++;
       }
+      
+      mCol += pos - mPos;
+      mPos = pos;
+      if ((pos < mLength) || !fill()) break;
     }
+    
+    String value = readText(slashCount, 0).trim();
+    return makeToken(
+        isDoc ? TokenType.DOC_COMMENT : TokenType.LINE_COMMENT, value);
   }
 
   private Token readBlockComment() {
@@ -210,62 +211,71 @@ public class Lexer implements TokenReader {
   }
 
   private Token readName() {
-    while (true) {
-      if (isName(peek()) || isDigit(peek())) {
-        advance();
-      } else if (peek() == ':') {
-        advance();
-        
-        // Trim off the ":".
-        String value = mRead.substring(0, mRead.length() - 1);
-        return makeToken(TokenType.FIELD, value);
-      } else {
-        return makeToken(TokenType.NAME);
-      }
-    }
+    scan(NAME | DIGIT);
+    return finishName();
   }
 
   private Token readOperator() {
-    while (true) {
-      if (isName(peek()) || isOperator(peek())) {
-        advance();
-      } else if (peek() == ':') {
-        advance();
-        
-        // Trim off the ":".
-        String value = mRead.substring(0, mRead.length() - 1);
-        return makeToken(TokenType.FIELD, value);
-      } else {
-        return makeToken(TokenType.NAME);
-      }
+    scan(NAME | OPERATOR);
+    return finishName();
+  }
+  
+  private Token finishName() {
+    if (peek() == ':') {
+      advance();
+      
+      // Trim off the ":".
+      return makeToken(TokenType.FIELD, readText(0, 1));
     }
+    
+    return makeToken(TokenType.NAME);
   }
   
   private Token readNumber() {
+    scan(DIGIT);
+    
+    if (peek() == ':') {
+      advance();
+      
+      // Trim off the ":".
+      return makeToken(TokenType.FIELD, readText(0, 1));
+    }
+    
+    String text = readText(0, 0);
+    return makeToken(TokenType.INT, text, Integer.parseInt(text));
+  }
+  
+  /**
+   * Advances past any characters of the given kinds. None of them can be a
+   * newline, so only the column changes.
+   */
+  private void scan(int kinds) {
     while (true) {
-      if (isDigit(peek())) {
-        advance();
-      } else if (peek() == ':') {
-        advance();
-        
-        // Trim off the ":".
-        String value = mRead.substring(0, mRead.length() - 1);
-        return makeToken(TokenType.FIELD, value);
-      } else {
-        return makeToken(TokenType.INT, Integer.parseInt(mRead));
+      int pos = mPos;
+      while (pos < mLength) {
+        char c = mChars[pos];
+        if ((c >= sKinds.length) || ((sKinds[c] & kinds) == 0)) break;
+        pos++;
       }
+      
+      mCol += pos - mPos;
+      mPos = pos;
+      
+      // Stop at a character that doesn't match or the end of the source.
+      if ((pos < mLength) || !fill()) return;
     }
   }
   
   private char peek() {
-    return mText.current();
+    if ((mPos == mLength) && !fill()) return '\0';
+    return mChars[mPos];
   }
   
   private char advance() {
-    char c = mText.current();
-    mText.advance();
-
-    mRead += c;
+    char c = peek();
+    
+    // Stay at the end once we're there.
+    if (mPos < mLength) mPos++;
 
     // Update the position.
     if (c == '\n') {
@@ -277,30 +287,81 @@ public class Lexer implements TokenReader {
 
     return c;
   }
+  
+  /**
+   * Reads more of the source into the buffer, keeping the current token's
+   * characters. Moves them to the front, or grows the buffer if the token
+   * already fills it.
+   * 
+   * @return false if at the end of the source.
+   */
+  private boolean fill() {
+    if (mStart > 0) {
+      System.arraycopy(mChars, mStart, mChars, 0, mLength - mStart);
+      mLength -= mStart;
+      mPos -= mStart;
+      mStart = 0;
+    }
+    
+    if (mLength == mChars.length) {
+      char[] chars = new char[mChars.length * 2];
+      System.arraycopy(mChars, 0, chars, 0, mLength);
+      mChars = chars;
+    }
+    
+    int read = mText.read(mChars, mLength, mChars.length - mLength);
+    if (read <= 0) return false;
+    
+    mLength += read;
+    return true;
+  }
+  
+  /**
+   * Gets the text of the current token, minus the given number of characters
+   * at the beginning and end.
+   */
+  private String readText(int trimStart, int trimEnd) {
+    int start = mStart + trimStart;
+    int length = mPos - trimEnd - start;
+    
+    // Punctuators and one-letter names are common, so share those.
+    if (length == 1) {
+      char c = mChars[start];
+      if (c < sSingleChars.length) return sSingleChars[c];
+    }
+    
+    return new String(mChars, start, length);
+  }
 
   private Token makeToken(TokenType type) {
-    return makeToken(type, mRead);
+    String text = readText(0, 0);
+    return makeToken(type, text, text);
   }
   
   private Token makeToken(TokenType type, Object value) {
+    return makeToken(type, readText(0, 0), value);
+  }
+  
+  private Token makeToken(TokenType type, String text, Object value) {
     // Handle reserved words.
     if (type == TokenType.NAME) {
-      if (sKeywords.containsKey(mRead)) {
-        type = sKeywords.get(mRead);
-      } else if (mRead.equals("false")) {
+      TokenType keyword = sKeywords.get(text);
+      if (keyword != null) {
+        type = keyword;
+      } else if (text.equals("false")) {
         type = TokenType.BOOL;
         value = false;
-      } else if (mRead.equals("true")) {
+      } else if (text.equals("true")) {
         type = TokenType.BOOL;
         value = true;
       }
     }
     
-    Token token = new Token(currentPosition(), type, mRead, value);
+    Token token = new Token(currentPosition(), type, text, value);
     
     mStartLine = mLine;
     mStartCol = mCol;
-    mRead = "";
+    mStart = mPos;
     
     return token;
   }
@@ -311,29 +372,65 @@ public class Lexer implements TokenReader {
   }
   
   private boolean isDigit(final char c) {
-    return (c >= '0') && (c <= '9');
+    return is(c, DIGIT);
   }
   
   private boolean isName(final char c) {
-    return ((c >= 'a') && (c <= 'z'))
-        || ((c >= 'A') && (c <= 'Z'))
-        || (c == '_') || (c == '.');
+    return is(c, NAME);
   }
   
   private boolean isOperator(final char c) {
-    return ("~!$%^&*-=+|/?<>".indexOf(c) != -1);
+    return is(c, OPERATOR);
+  }
+  
+  private boolean is(final char c, int kind) {
+    return (c < sKinds.length) && ((sKinds[c] & kind) != 0);
   }
   
   private final SourceReader mText;
-  private String mRead;
+  
+  // The characters read from the source. The current token starts at mStart
+  // and the next character to read is at mPos. Characters up to mLength have
+  // been read from the source.
+  private char[] mChars = new char[BUFFER_SIZE];
+  private int mStart = 0;
+  private int mPos = 0;
+  private int mLength = 0;
+  
   private int mStartLine;
   private int mStartCol;
   private int mLine;
   private int mCol;
   
+  private static final int BUFFER_SIZE = 4096;
+  
+  // Bits for the kinds of characters that scan() can skip.
+  private static final int NAME     = 1;
+  private static final int DIGIT    = 2;
+  private static final int OPERATOR = 4;
+  private static final int SPACE    = 8;
+  
+  // The kinds of each ASCII character. Other characters have no kind.
+  private static final byte[] sKinds = new byte[128];
+  
+  private static final String[] sSingleChars = new String[128];
+  
   private static final Map<String, TokenType> sKeywords;
   
   static {
+    for (char c = 'a'; c <= 'z'; c++) sKinds[c] |= NAME;
+    for (char c = 'A'; c <= 'Z'; c++) sKinds[c] |= NAME;
+    sKinds['_'] |= NAME;
+    sKinds['.'] |= NAME;
+    for (char c = '0'; c <= '9'; c++) sKinds[c] |= DIGIT;
+    for (char c : "~!$%^&*-=+|/?<>".toCharArray()) sKinds[c] |= OPERATOR;
+    sKinds[' '] |= SPACE;
+    sKinds['\t'] |= SPACE;
+    
+    for (char c = 0; c < sSingleChars.length; c++) {
+      sSingleChars[c] = String.valueOf(c);
+    }
+    
     sKeywords = new HashMap<String, TokenType>();
     sKeywords.put("and",      TokenType.AND);
     sKeywords.put("as",       TokenType.AS);
@@ -5,7 +5,7 @@ import com.stuffwithstuff.magpie.util.Expect;
 
 
 /**
- * Reads a string, one character at a time.
+ * Reads a string.
  */
 public class StringReader implements SourceReader {
   public StringReader(String description, String text) {
@@ -21,14 +21,13 @@ public class StringReader implements SourceReader {
   public String getDescription() { return mDescription; }
   
   @Override
-  public char current() {
-    if (mPosition >= mText.length()) return '\0';
-    return mText.charAt(mPosition);
-  }
-  
-  @Override
-  public void advance() {
-    if (mPosition < mText.length()) mPosition++;
+  public int read(char[] buffer, int offset, int length) {
+    if (mPosition >= mText.length()) return -1;
+    
+    int count = Math.min(length, mText.length() - mPosition);
+    mText.getChars(mPosition, mPosition + count, buffer, offset);
+    mPosition += count;
+    return count;
   }
 
   private final String mDescription;